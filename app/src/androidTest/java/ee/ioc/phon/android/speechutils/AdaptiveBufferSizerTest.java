@@ -0,0 +1,80 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class AdaptiveBufferSizerTest {
+
+    @Test
+    public void test01() {
+        // an overrun doubles the read size at once, up to the max
+        AdaptiveBufferSizer sizer = new AdaptiveBufferSizer(10, 160);
+        assertThat(sizer.getReadMillis(), is(20));
+        assertThat(sizer.onRead(100, true), is(true));
+        assertThat(sizer.getReadMillis(), is(40));
+        assertThat(sizer.getBufferMillis(), is(160));
+        assertThat(sizer.onRead(200, true), is(true));
+        assertThat(sizer.onRead(400, true), is(true));
+        assertThat(sizer.getReadMillis(), is(160));
+        assertThat(sizer.onRead(800, true), is(false));
+        assertThat(sizer.getReadMillis(), is(160));
+    }
+
+    @Test
+    public void test02() {
+        // a window of 50 reads grows the read size if more than 10% of the reads were late (i.e. later than 150%)
+        AdaptiveBufferSizer sizer = new AdaptiveBufferSizer(10, 160);
+        assertThat(readWindow(sizer, 5, 31), is(false));
+        assertThat(sizer.getReadMillis(), is(20));
+        assertThat(readWindow(sizer, 50, 30), is(false));
+        assertThat(sizer.getReadMillis(), is(20));
+        assertThat(readWindow(sizer, 6, 31), is(true));
+        assertThat(sizer.getReadMillis(), is(40));
+    }
+
+    @Test
+    public void test03() {
+        // the read size is halved after 3 windows without late reads, down to the min,
+        // and a window with a late read starts the count again
+        AdaptiveBufferSizer sizer = new AdaptiveBufferSizer(10, 160);
+        sizer.onRead(100, true);
+        assertThat(sizer.getReadMillis(), is(40));
+        assertThat(readWindow(sizer, 0, 0), is(false));
+        assertThat(readWindow(sizer, 0, 0), is(false));
+        assertThat(readWindow(sizer, 1, 61), is(false));
+        assertThat(readWindow(sizer, 0, 0), is(false));
+        assertThat(readWindow(sizer, 0, 0), is(false));
+        assertThat(sizer.getReadMillis(), is(40));
+        assertThat(readWindow(sizer, 0, 0), is(true));
+        assertThat(sizer.getReadMillis(), is(20));
+        for (int i = 0; i < 3; i++) {
+            readWindow(sizer, 0, 0);
+        }
+        assertThat(sizer.getReadMillis(), is(10));
+        for (int i = 0; i < 3; i++) {
+            assertThat(readWindow(sizer, 0, 0), is(false));
+        }
+        assertThat(sizer.getReadMillis(), is(10));
+    }
+
+    /**
+     * Reports a window of reads, the given number of which arrive after the given interval,
+     * and the rest on time.
+     *
+     * @return true if the read size was changed
+     */
+    private static boolean readWindow(AdaptiveBufferSizer sizer, int numLate, int lateMillis) {
+        boolean isChanged = false;
+        int readMillis = sizer.getReadMillis();
+        for (int i = 0; i < 50; i++) {
+            isChanged |= sizer.onRead(i < numLate ? lateMillis : readMillis, false);
+        }
+        return isChanged;
+    }
+}
@@ -0,0 +1,111 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class CompressedAudioRingTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int LENGTH_IN_MILLIS = 60000;
+
+    @Test
+    public void test01() {
+        // ADPCM holds about 4x more audio than raw PCM, with a moderate quality loss
+        CompressedAudioRing ring = new CompressedAudioRing(CompressedAudioRing.Format.IMA_ADPCM, SAMPLE_RATE, LENGTH_IN_MILLIS);
+        int rawSize = 2 * SAMPLE_RATE * LENGTH_IN_MILLIS / 1000;
+        assertThat(ring.getSizeInBytes(), lessThan(rawSize / 3));
+        assertThat(getSnr(ring, getSpeechLikeSignal(10 * SAMPLE_RATE)), greaterThan(25.0));
+    }
+
+    @Test
+    public void test02() {
+        CompressedAudioRing ring = new CompressedAudioRing(CompressedAudioRing.Format.MU_LAW, SAMPLE_RATE, LENGTH_IN_MILLIS);
+        assertThat(getSnr(ring, getSpeechLikeSignal(10 * SAMPLE_RATE)), greaterThan(30.0));
+    }
+
+    @Test
+    public void test03() {
+        // After wrapping around, the oldest audio is gone, and is returned as silence
+        CompressedAudioRing ring = new CompressedAudioRing(CompressedAudioRing.Format.IMA_ADPCM, SAMPLE_RATE, 1000);
+        short[] signal = getSpeechLikeSignal(3 * SAMPLE_RATE);
+        ring.write(signal, 0, signal.length);
+        assertThat(ring.getLength(), is((long) signal.length));
+        long oldest = ring.getOldestPosition();
+        assertThat(oldest, greaterThan(0L));
+        short[] decoded = new short[100];
+        assertThat(ring.read(oldest - 50, decoded, 0, decoded.length), is(100));
+        assertThat(decoded[0], is((short) 0));
+        assertThat(decoded[49], is((short) 0));
+        // Reading past the newest sample returns fewer samples
+        assertThat(ring.read(signal.length - 10, decoded, 0, decoded.length), is(10));
+    }
+
+    @Test
+    public void test04() {
+        // A full ring of 60 seconds, written and read as PCM bytes (as the recorder does), comes
+        // back complete and with the same quality as a short signal
+        CompressedAudioRing ring = new CompressedAudioRing(CompressedAudioRing.Format.IMA_ADPCM, SAMPLE_RATE, LENGTH_IN_MILLIS);
+        short[] signal = getSpeechLikeSignal(SAMPLE_RATE * LENGTH_IN_MILLIS / 1000);
+        byte[] pcm = toBytes(signal);
+        for (int i = 0; i < pcm.length; i += 640) {
+            ring.write(pcm, i, Math.min(640, pcm.length - i));
+        }
+        assertThat(ring.getOldestPosition(), is(0L));
+        byte[] decoded = new byte[pcm.length];
+        assertThat(ring.read(0, decoded, 0, signal.length), is(signal.length));
+        double sumSignal = 0;
+        double sumError = 0;
+        for (int i = 0; i < signal.length; i++) {
+            double error = signal[i] - (short) ((decoded[2 * i] & 0xff) | (decoded[2 * i + 1] << 8));
+            sumSignal += (double) signal[i] * signal[i];
+            sumError += error * error;
+        }
+        assertThat(10 * Math.log10(sumSignal / sumError), greaterThan(25.0));
+    }
+
+    private static double getSnr(CompressedAudioRing ring, short[] signal) {
+        // write in uneven pieces, as the recorder would
+        for (int i = 0; i < signal.length; i += 333) {
+            ring.write(signal, i, Math.min(333, signal.length - i));
+        }
+        short[] decoded = new short[signal.length];
+        assertThat(ring.read(0, decoded, 0, decoded.length), is(signal.length));
+        double sumSignal = 0;
+        double sumError = 0;
+        for (int i = 0; i < signal.length; i++) {
+            double error = signal[i] - decoded[i];
+            sumSignal += (double) signal[i] * signal[i];
+            sumError += error * error;
+        }
+        return 10 * Math.log10(sumSignal / sumError);
+    }
+
+    private static byte[] toBytes(short[] samples) {
+        byte[] bytes = new byte[2 * samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            bytes[2 * i] = (byte) samples[i];
+            bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return bytes;
+    }
+
+    private static short[] getSpeechLikeSignal(int numSamples) {
+        Random random = new Random(1);
+        short[] signal = new short[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            signal[i] = (short) (8000 * Math.sin(2 * Math.PI * 220 * t) + 3000 * Math.sin(2 * Math.PI * 1230 * t) + 200 * random.nextGaussian());
+        }
+        return signal;
+    }
+}
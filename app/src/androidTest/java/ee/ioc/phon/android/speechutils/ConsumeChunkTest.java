@@ -0,0 +1,41 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Consumes the audio of a {@link CountingAudioRecorder}, whose recording buffer holds 1600 samples.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConsumeChunkTest {
+
+    @Test
+    public void test01() {
+        // a long gap is reported in full, but only the end of it is filled with silence
+        CountingAudioRecorder recorder = new CountingAudioRecorder(AbstractAudioRecorder.GapPolicy.INSERT_SILENCE);
+        recorder.record(1);
+        assertThat(recorder.consumeChunk().getBytes().length, is(320));
+        recorder.record(100);
+        AudioChunk chunk = recorder.consumeChunk();
+        AudioGap gap = chunk.getGap();
+        assertThat(gap.getReason(), is(AudioGap.Reason.CONSUMER_OVERRUN));
+        assertThat(gap.getPosition(), is(160L));
+        long end = gap.getPosition() + gap.getNumLostSamples();
+        byte[] bytes = chunk.getBytes();
+        // the silence and the audio that is still in the recording buffer
+        assertThat(bytes.length, is(2 * 2 * 1600));
+        assertThat(chunk.getPosition(), is(end - 1600));
+        assertThat(bytes[2 * 1600 - 1], is((byte) 0));
+        assertThat(getSample(bytes, 1600), is((short) end));
+        assertThat(end + 1600, is(recorder.getPosition()));
+    }
+
+    private static short getSample(byte[] bytes, int index) {
+        return (short) ((bytes[2 * index] & 0xff) | (bytes[2 * index + 1] << 8));
+    }
+}
@@ -0,0 +1,55 @@
+package ee.ioc.phon.android.speechutils;
+
+/**
+ * Records from a fake SpeechRecord, which records the sample index as the sample, i.e. the audio
+ * shows where it was read from. The audio is recorded synchronously on the calling thread,
+ * in pieces of 10 ms, into a recording buffer of 100 ms (unless nothing is kept).
+ */
+class CountingAudioRecorder extends AbstractAudioRecorder {
+
+    static final int SAMPLE_RATE = 16000;
+    static final int PIECE_SIZE = 160;
+    static final int WINDOW_MILLIS = 100;
+
+    private final CountingSpeechRecord mSpeechRecord = new CountingSpeechRecord();
+    private final byte[] mPiece = new byte[2 * PIECE_SIZE];
+
+    CountingAudioRecorder(GapPolicy gapPolicy) {
+        this(RawPolicy.WINDOW, gapPolicy);
+    }
+
+    CountingAudioRecorder(RawPolicy rawPolicy, GapPolicy gapPolicy) {
+        super(DEFAULT_AUDIO_SOURCE, SAMPLE_RATE, rawPolicy, WINDOW_MILLIS, null);
+        setGapPolicy(gapPolicy);
+        setState(State.RECORDING);
+    }
+
+    void record(int numPieces) {
+        for (int i = 0; i < numPieces; i++) {
+            read(mSpeechRecord, mPiece);
+        }
+    }
+
+    @Override
+    public String getWsArgs() {
+        return "";
+    }
+
+    private static class CountingSpeechRecord extends SpeechRecord {
+        private int mNext = 0;
+
+        private CountingSpeechRecord() {
+            super(SAMPLE_RATE, 2 * PIECE_SIZE);
+        }
+
+        @Override
+        public int read(byte[] audioData, int offsetInBytes, int sizeInBytes) {
+            for (int i = offsetInBytes; i + 1 < offsetInBytes + sizeInBytes; i += 2) {
+                audioData[i] = (byte) mNext;
+                audioData[i + 1] = (byte) (mNext >> 8);
+                mNext++;
+            }
+            return sizeInBytes;
+        }
+    }
+}
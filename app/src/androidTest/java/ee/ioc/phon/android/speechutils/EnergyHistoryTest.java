@@ -0,0 +1,69 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class EnergyHistoryTest {
+
+    // 10 ms at 16 kHz
+    private static final int FRAME_SIZE = 160;
+
+    @Test
+    public void test01() {
+        // the search goes back to the nearest quiet frame in the window, and stays at the position
+        // if the window is equally loud
+        EnergyHistory history = new EnergyHistory(16000, 10, 1000, 0);
+        assertThat(history.getFrameSize(), is(FRAME_SIZE));
+        for (int frame = 0; frame < 50; frame++) {
+            add(history, frame == 10 || frame == 11 || frame == 30 ? 0 : 10000, 1);
+        }
+        assertThat(history.findSilenceBefore(40 * FRAME_SIZE, 20 * FRAME_SIZE), is(30L * FRAME_SIZE));
+        assertThat(history.findSilenceBefore(29 * FRAME_SIZE, 25 * FRAME_SIZE), is(11L * FRAME_SIZE));
+        assertThat(history.findSilenceBefore(40 * FRAME_SIZE, 5 * FRAME_SIZE), is(40L * FRAME_SIZE));
+    }
+
+    @Test
+    public void test02() {
+        // a frame that is close to the quietest frame of the window counts as quiet, unless it is loud
+        EnergyHistory history = new EnergyHistory(16000, 10, 1000, 0);
+        add(history, 1000, 1);
+        add(history, 5000, 1);
+        add(history, 1500, 1);
+        add(history, 5000, 2);
+        assertThat(history.findSilenceBefore(4 * FRAME_SIZE, 4 * FRAME_SIZE), is(2L * FRAME_SIZE));
+    }
+
+    @Test
+    public void test03() {
+        // the positions are relative to the start position, and the frames that have left
+        // the history (or that are not complete yet) are not available
+        EnergyHistory history = new EnergyHistory(16000, 10, 100, 1000);
+        add(history, 0, 5);
+        add(history, 10000, 25);
+        assertThat(history.findSilenceBefore(1000 + 10 * FRAME_SIZE, 5 * FRAME_SIZE), is(-1L));
+        assertThat(history.findSilenceBefore(1000 + 40 * FRAME_SIZE, 20 * FRAME_SIZE), is(1000L + 29 * FRAME_SIZE));
+        history.add(new byte[2 * FRAME_SIZE - 2], 0, 2 * FRAME_SIZE - 2);
+        assertThat(history.findSilenceBefore(1000 + 40 * FRAME_SIZE, 20 * FRAME_SIZE), is(1000L + 29 * FRAME_SIZE));
+        history.add(new byte[2], 0, 2);
+        assertThat(history.findSilenceBefore(1000 + 40 * FRAME_SIZE, 20 * FRAME_SIZE), is(1000L + 30 * FRAME_SIZE));
+    }
+
+    /**
+     * Adds the given number of frames of a square wave of the given amplitude.
+     */
+    private static void add(EnergyHistory history, int amplitude, int numFrames) {
+        byte[] pcm = new byte[2 * FRAME_SIZE * numFrames];
+        for (int i = 0; i < pcm.length; i += 2) {
+            short sample = (short) (i % 4 == 0 ? amplitude : -amplitude);
+            pcm[i] = (byte) sample;
+            pcm[i + 1] = (byte) (sample >> 8);
+        }
+        history.add(pcm, 0, pcm.length);
+    }
+}
@@ -0,0 +1,127 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Reads the frames of a {@link CountingAudioRecorder}, i.e. the frames show where they were read from.
+ * The recording buffer holds 1600 samples.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FrameReaderTest {
+
+    // 10 ms, i.e. a piece of the recording
+    private static final int FRAME_SIZE = CountingAudioRecorder.PIECE_SIZE;
+
+    @Test
+    public void test01() {
+        // the frames that were overwritten before they were read are skipped and reported
+        CountingAudioRecorder recorder = new CountingAudioRecorder(AbstractAudioRecorder.GapPolicy.SKIP);
+        short[] frame = new short[FRAME_SIZE];
+        recorder.record(1);
+        assertThat(recorder.pollFrame(10, frame), is(true));
+        assertThat(frame[0], is((short) 0));
+        recorder.record(20);
+        assertThat(recorder.pollFrame(10, frame), is(true));
+        assertThat(frame[0], is((short) 1760));
+        assertGap(recorder.getLastGap(), 160, 1600);
+    }
+
+    @Test
+    public void test02() {
+        // the frames that were overwritten before they were read are replaced by silence
+        CountingAudioRecorder recorder = new CountingAudioRecorder(AbstractAudioRecorder.GapPolicy.INSERT_SILENCE);
+        short[] frames = new short[21 * FRAME_SIZE];
+        recorder.record(1);
+        assertThat(recorder.drainFrames(10, frames, 1), is(1));
+        recorder.record(20);
+        assertThat(recorder.drainFrames(10, frames, 21), is(20));
+        assertGap(recorder.getLastGap(), 160, 1600);
+        assertThat(frames[0], is((short) 0));
+        assertThat(frames[1599], is((short) 0));
+        assertThat(frames[1600], is((short) 1760));
+    }
+
+    @Test
+    public void test03() {
+        // an overwritten frame is an error if the gaps are not tolerated
+        CountingAudioRecorder recorder = new CountingAudioRecorder(AbstractAudioRecorder.GapPolicy.FAIL);
+        short[] frame = new short[FRAME_SIZE];
+        recorder.record(1);
+        assertThat(recorder.pollFrame(10, frame), is(true));
+        recorder.record(20);
+        assertThat(recorder.pollFrame(10, frame), is(false));
+        assertThat(recorder.getState(), is(AudioRecorder.State.ERROR));
+        assertGap(recorder.getLastGap(), 160, 1600);
+    }
+
+    @Test
+    public void test04() throws InterruptedException {
+        // a reader that lags behind the recorder by the whole buffer never gets the frames that
+        // the recorder overwrites while they are being copied
+        final CountingAudioRecorder recorder = new CountingAudioRecorder(AbstractAudioRecorder.GapPolicy.SKIP);
+        Thread writer = new Thread() {
+            public void run() {
+                while (!isInterrupted()) {
+                    recorder.record(1);
+                }
+            }
+        };
+        int numFrames = CountingAudioRecorder.WINDOW_MILLIS / 10;
+        short[] frames = new short[numFrames * FRAME_SIZE];
+        recorder.record(numFrames);
+        writer.start();
+        int numTorn = 0;
+        try {
+            for (int i = 0; i < 200; i++) {
+                // lets the recorder overwrite the whole buffer, i.e. the reader starts from the oldest frame
+                long position = recorder.getPosition() + numFrames * FRAME_SIZE;
+                while (recorder.getPosition() < position) {
+                    Thread.yield();
+                }
+                int n = recorder.drainFrames(10, frames, numFrames);
+                for (int j = 1; j < n * FRAME_SIZE; j++) {
+                    if (frames[j] != (short) (frames[j - 1] + 1)) {
+                        numTorn++;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            writer.interrupt();
+            writer.join();
+        }
+        assertThat(numTorn, is(0));
+    }
+
+    @Test
+    public void test05() {
+        // without the raw audio there are no frames to read and no audio to consume, but also no gaps
+        for (AbstractAudioRecorder.GapPolicy gapPolicy : AbstractAudioRecorder.GapPolicy.values()) {
+            CountingAudioRecorder recorder = new CountingAudioRecorder(AbstractAudioRecorder.RawPolicy.NONE, gapPolicy);
+            short[] frame = new short[FRAME_SIZE];
+            recorder.record(30);
+            assertThat(recorder.getPosition(), is(30L * FRAME_SIZE));
+            assertThat(recorder.pollFrame(10, frame), is(false));
+            recorder.record(1);
+            assertThat(recorder.drainFrames(10, frame, 1), is(0));
+            AudioChunk chunk = recorder.consumeChunk();
+            assertThat(chunk.getBytes().length, is(0));
+            assertThat(chunk.getPosition(), is(31L * FRAME_SIZE));
+            assertThat(chunk.getGap(), is((AudioGap) null));
+            assertThat(recorder.getLastGap(), is((AudioGap) null));
+            assertThat(recorder.getState(), is(AudioRecorder.State.RECORDING));
+        }
+    }
+
+    private static void assertGap(AudioGap gap, long position, long numLostSamples) {
+        assertThat(gap.getReason(), is(AudioGap.Reason.FRAME_READER_OVERRUN));
+        assertThat(gap.getPosition(), is(position));
+        assertThat(gap.getNumLostSamples(), is(numLostSamples));
+    }
+}
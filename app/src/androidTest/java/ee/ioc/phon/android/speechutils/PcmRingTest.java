@@ -0,0 +1,78 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class PcmRingTest {
+
+    @Test
+    public void test01() {
+        // the producer does not overwrite the unread bytes, the silence and the bytes wrap around the end
+        PcmRing ring = new PcmRing(10);
+        assertThat(ring.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8})), is(8));
+        assertThat(ring.write(ByteBuffer.wrap(new byte[]{9, 10, 11, 12})), is(2));
+        ByteBuffer dst = ByteBuffer.allocate(6);
+        assertThat(ring.read(dst), is(6));
+        assertThat(ring.writeSilence(3), is(3));
+        assertThat(ring.write(ByteBuffer.wrap(new byte[]{13, 14, 15, 16})), is(3));
+        assertThat(ring.available(), is(10));
+        dst = ByteBuffer.allocate(20);
+        assertThat(ring.read(dst), is(10));
+        assertThat(dst.array()[0], is((byte) 7));
+        assertThat(dst.array()[3], is((byte) 10));
+        assertThat(dst.array()[6], is((byte) 0));
+        assertThat(dst.array()[9], is((byte) 15));
+        assertThat(ring.getReadPosition(), is(16L));
+    }
+
+    @Test
+    public void test02() throws InterruptedException {
+        // the consumer waits for the bytes that the producer writes in pieces of random size, and gets them in order
+        final int numBytes = 1000000;
+        final PcmRing ring = new PcmRing(1024);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(0);
+                byte[] piece = new byte[300];
+                int next = 0;
+                while (next < numBytes) {
+                    int length = Math.min(1 + random.nextInt(piece.length), numBytes - next);
+                    for (int i = 0; i < length; i++) {
+                        piece[i] = (byte) (next + i);
+                    }
+                    ByteBuffer src = ByteBuffer.wrap(piece, 0, length);
+                    next += ring.write(src);
+                    if (src.hasRemaining()) {
+                        Thread.yield();
+                    }
+                }
+                ring.close();
+            }
+        });
+        producer.start();
+        ByteBuffer dst = ByteBuffer.allocate(512);
+        int next = 0;
+        boolean isInOrder = true;
+        while (ring.await() > 0) {
+            dst.clear();
+            int length = ring.read(dst);
+            for (int i = 0; i < length; i++) {
+                isInOrder &= dst.get(i) == (byte) (next + i);
+            }
+            next += length;
+        }
+        producer.join();
+        assertThat(isInOrder, is(true));
+        assertThat(next, is(numBytes));
+    }
+}
@@ -0,0 +1,113 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Uses a sample rate of 1000 Hz, i.e. levels of 1 ms and 10 ms have frames of 1 and 10 samples,
+ * and a ramp, i.e. the sample i is i.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WaveformEnvelopeTest {
+
+    private static final int[] LEVELS = {1, 10};
+
+    private final short[] mMin = new short[11];
+    private final short[] mMax = new short[11];
+    private final short[] mRms = new short[11];
+
+    @Test
+    public void test01() {
+        // the pixels get the min, max and RMS of their samples, from the coarsest level that is fine enough
+        WaveformEnvelope envelope = new WaveformEnvelope(1000, LEVELS);
+        addRamp(envelope, 0, 105);
+        assertThat(envelope.getLength(), is(105L));
+        envelope.getEnvelope(0, 100, 10, mMin, mMax, mRms);
+        assertThat(mMin[0], is((short) 0));
+        assertThat(mMax[0], is((short) 9));
+        // sqrt((0^2 + ... + 9^2) / 10)
+        assertThat(mRms[0], is((short) 5));
+        assertThat(mMin[9], is((short) 90));
+        assertThat(mMax[9], is((short) 99));
+        envelope.getEnvelope(50, 60, 10, mMin, mMax, mRms);
+        assertThat(mMin[3], is((short) 53));
+        assertThat(mMax[3], is((short) 53));
+        assertThat(mRms[3], is((short) 53));
+        // the frames that are not complete yet are empty
+        envelope.getEnvelope(100, 110, 10, mMin, mMax, null);
+        assertThat(mMax[4], is((short) 104));
+        assertThat(mMax[5], is((short) 0));
+    }
+
+    @Test
+    public void test02() {
+        // a full level stops growing, and the full coarsest level is decimated
+        WaveformEnvelope envelope = new WaveformEnvelope(1000, LEVELS, 8);
+        addRamp(envelope, 0, 200);
+        assertThat(envelope.getLength(), is(200L));
+        // the beginning is still available in full detail
+        envelope.getEnvelope(0, 8, 8, mMin, mMax, mRms);
+        assertThat(mMin[7], is((short) 7));
+        assertThat(mMax[7], is((short) 7));
+        // ...but the rest is only available in the coarsest level, whose frames are now 40 samples
+        envelope.getEnvelope(100, 108, 8, mMin, mMax, mRms);
+        assertThat(mMin[0], is((short) 80));
+        assertThat(mMax[0], is((short) 119));
+        envelope.getEnvelope(0, 200, 5, mMin, mMax, mRms);
+        assertThat(mMin[4], is((short) 160));
+        assertThat(mMax[4], is((short) 199));
+    }
+
+    @Test
+    public void test03() throws IOException {
+        // the stored envelope is loaded with the same values, and continues to grow
+        WaveformEnvelope envelope = new WaveformEnvelope(1000, LEVELS);
+        addRamp(envelope, 0, 100);
+        File file = File.createTempFile("waveform", ".env");
+        try {
+            envelope.save(file);
+            envelope = WaveformEnvelope.load(file);
+        } finally {
+            file.delete();
+        }
+        assertThat(envelope.getLength(), is(100L));
+        addRamp(envelope, 100, 10);
+        envelope.getEnvelope(0, 110, 11, mMin, mMax, mRms);
+        assertThat(mMin[5], is((short) 50));
+        assertThat(mMax[10], is((short) 109));
+    }
+
+    @Test
+    public void test04() {
+        // the RMS of full scale negative audio (32768) is clamped to the short range, in every level
+        WaveformEnvelope envelope = new WaveformEnvelope(1000, LEVELS, 8);
+        byte[] pcm = new byte[2 * 200];
+        for (int i = 0; i < 200; i++) {
+            pcm[2 * i + 1] = (byte) 0x80;
+        }
+        envelope.add(pcm, 0, pcm.length);
+        envelope.getEnvelope(0, 8, 8, mMin, mMax, mRms);
+        assertThat(mMin[0], is(Short.MIN_VALUE));
+        assertThat(mRms[0], is(Short.MAX_VALUE));
+        envelope.getEnvelope(0, 200, 5, mMin, mMax, mRms);
+        assertThat(mRms[0], is(Short.MAX_VALUE));
+        assertThat(mRms[4], is(Short.MAX_VALUE));
+    }
+
+    private static void addRamp(WaveformEnvelope envelope, int from, int numSamples) {
+        byte[] pcm = new byte[2 * numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            pcm[2 * i] = (byte) (from + i);
+            pcm[2 * i + 1] = (byte) ((from + i) >> 8);
+        }
+        envelope.add(pcm, 0, pcm.length);
+    }
+}
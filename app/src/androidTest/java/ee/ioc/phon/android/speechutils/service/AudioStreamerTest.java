@@ -0,0 +1,259 @@
+package ee.ioc.phon.android.speechutils.service;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ee.ioc.phon.android.speechutils.AudioRecorder;
+import ee.ioc.phon.android.speechutils.EncodedAudioRecorder;
+import ee.ioc.phon.android.speechutils.SpeechRecord;
+import ee.ioc.phon.android.speechutils.codec.PcmAudioEncoder;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class AudioStreamerTest {
+
+    @Test
+    public void test01() throws InterruptedException {
+        // a transport that is held back holds back the source (the 1st piece is being sent, the 2nd
+        // is queued, and the 3rd waits), and then gets all the audio in order, followed by EOS
+        CountingRecorder recorder = new CountingRecorder();
+        GatedTransport transport = new GatedTransport();
+        AudioStreamer streamer = new AudioStreamer(recorder, transport).setChunkMillis(0).setQueueSize(1);
+        streamer.start();
+        // the source waits for room in the queue
+        while (streamer.getMetrics().getNumBlocks() == 0) {
+            Thread.yield();
+        }
+        recorder.mIsStopped = true;
+        streamer.finish();
+        transport.mGate.countDown();
+        transport.mEos.await();
+        byte[] sent = transport.mOut.toByteArray();
+        assertThat(sent.length, is(recorder.mNext));
+        boolean isInOrder = true;
+        for (int i = 0; i < sent.length; i++) {
+            isInOrder &= sent[i] == (byte) i;
+        }
+        assertThat(isInOrder, is(true));
+        assertThat(streamer.getMetrics().getNumBytes(), is((long) sent.length));
+        assertThat(streamer.getMetrics().getNumBlocks() > 0, is(true));
+    }
+
+    @Test
+    public void test02() throws InterruptedException {
+        // a failing transport is reported, and the streaming stops without EOS
+        final AtomicReference<IOException> error = new AtomicReference<>();
+        final CountDownLatch isError = new CountDownLatch(1);
+        final CountDownLatch isRecorderDone = new CountDownLatch(1);
+        GatedTransport transport = new GatedTransport();
+        transport.mIsFailing = true;
+        AudioStreamer streamer = new AudioStreamer(new CountingRecorder(), transport).setChunkMillis(0)
+                .setOnErrorListener(new AudioStreamer.OnErrorListener() {
+                    @Override
+                    public void onError(IOException e) {
+                        error.set(e);
+                        isError.countDown();
+                    }
+                })
+                .setOnRecorderDoneListener(new AudioStreamer.OnRecorderDoneListener() {
+                    @Override
+                    public void onRecorderDone() {
+                        isRecorderDone.countDown();
+                    }
+                });
+        streamer.start();
+        isError.await();
+        isRecorderDone.await();
+        assertThat(error.get().getMessage(), is("failed"));
+        assertThat(transport.mEos.getCount(), is(1L));
+    }
+
+    @Test
+    public void test03() throws InterruptedException {
+        // the streamed audio is the complete encoded recording, incl. the tail that is encoded
+        // after the recorder has been stopped
+        FakeMicRecorder recorder = new FakeMicRecorder();
+        GatedTransport transport = new GatedTransport();
+        transport.mGate.countDown();
+        AudioStreamer streamer = new AudioStreamer(recorder, transport).setChunkMillis(0);
+        recorder.start();
+        streamer.start();
+        transport.mFirstSend.await();
+        recorder.stop();
+        streamer.finish();
+        transport.mEos.await();
+        byte[] recording = recorder.getCompleteRecording();
+        assertThat(recording.length > 0, is(true));
+        assertThat(Arrays.equals(transport.mOut.toByteArray(), recording), is(true));
+    }
+
+    /**
+     * Records a byte sequence 0, 1, 2, ... in pieces of 100 bytes, until it is stopped.
+     */
+    private static class CountingRecorder implements AudioRecorder {
+        private volatile boolean mIsStopped = false;
+        private int mNext = 0;
+
+        @Override
+        public synchronized byte[] consumeRecording() {
+            if (mIsStopped) {
+                return new byte[0];
+            }
+            byte[] bytes = new byte[100];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) mNext++;
+            }
+            return bytes;
+        }
+
+        @Override
+        public String getWsArgs() {
+            return "";
+        }
+
+        @Override
+        public State getState() {
+            return mIsStopped ? State.STOPPED : State.RECORDING;
+        }
+
+        @Override
+        public byte[] consumeRecordingAndTruncate() {
+            return consumeRecording();
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public float getRmsdb() {
+            return 0;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public boolean isPausing() {
+            return false;
+        }
+    }
+
+    /**
+     * Encodes (i.e. passes through) the PCM of a fake microphone, which records the sample index
+     * as the sample, in real time.
+     */
+    private static class FakeMicRecorder extends EncodedAudioRecorder {
+
+        private FakeMicRecorder() {
+            super(DEFAULT_AUDIO_SOURCE, DEFAULT_SAMPLE_RATE, null, new PcmAudioEncoder.Factory());
+        }
+
+        @Override
+        protected SpeechRecord newSpeechRecord(int audioSource, int sampleRate, int bufferSize) {
+            return new FakeMic(sampleRate, bufferSize);
+        }
+    }
+
+    private static class FakeMic extends SpeechRecord {
+        private final int mSampleRate;
+        private volatile int mRecordingState = RECORDSTATE_STOPPED;
+        private short mNext = 0;
+
+        private FakeMic(int sampleRate, int bufferSize) {
+            super(sampleRate, bufferSize);
+            mSampleRate = sampleRate;
+        }
+
+        @Override
+        public int getState() {
+            return STATE_INITIALIZED;
+        }
+
+        @Override
+        public int getRecordingState() {
+            return mRecordingState;
+        }
+
+        @Override
+        public void startRecording() {
+            mRecordingState = RECORDSTATE_RECORDING;
+        }
+
+        @Override
+        public void stop() {
+            mRecordingState = RECORDSTATE_STOPPED;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public int read(byte[] audioData, int offsetInBytes, int sizeInBytes) {
+            return read(ByteBuffer.wrap(audioData, offsetInBytes, sizeInBytes), sizeInBytes);
+        }
+
+        @Override
+        public int read(ByteBuffer audioBuffer, int sizeInBytes) {
+            int numSamples = sizeInBytes / 2;
+            int pos = audioBuffer.position();
+            for (int i = 0; i < numSamples; i++) {
+                audioBuffer.put(pos + 2 * i, (byte) mNext);
+                audioBuffer.put(pos + 2 * i + 1, (byte) (mNext >> 8));
+                mNext++;
+            }
+            try {
+                // the audio arrives in real time
+                Thread.sleep(1000L * numSamples / mSampleRate);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 2 * numSamples;
+        }
+    }
+
+    /**
+     * Sends the audio after the gate has been opened.
+     */
+    private static class GatedTransport implements Transport {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private final CountDownLatch mFirstSend = new CountDownLatch(1);
+        private final CountDownLatch mGate = new CountDownLatch(1);
+        private final CountDownLatch mEos = new CountDownLatch(1);
+        private volatile boolean mIsFailing = false;
+
+        @Override
+        public void send(byte[] data, int offset, int length, long presentationTimeUs) throws IOException {
+            if (mIsFailing) {
+                throw new IOException("failed");
+            }
+            mFirstSend.countDown();
+            try {
+                mGate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e.getMessage());
+            }
+            synchronized (this) {
+                mOut.write(data, offset, length);
+            }
+        }
+
+        @Override
+        public void sendEos() {
+            mEos.countDown();
+        }
+    }
+}
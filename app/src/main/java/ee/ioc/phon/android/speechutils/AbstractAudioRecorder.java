@@ -18,24 +18,69 @@ package ee.ioc.phon.android.speechutils;
 
 import android.media.AudioFormat;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
 
 import ee.ioc.phon.android.speechutils.utils.AudioUtils;
 
 public abstract class AbstractAudioRecorder implements AudioRecorder {
 
+    /**
+     * What to do when the recorder has overwritten audio that has not been consumed yet.
+     */
+    public enum GapPolicy {
+        // continue from the session start pointer (see ContinuousRawAudioRecorder), report the gap
+        SKIP,
+        // continue from the oldest available audio, and replace the lost audio with silence,
+        // so that the consumed stream stays aligned with the recording time (the silence is at most
+        // as long as the recording buffer, a longer gap is only reported)
+        INSERT_SILENCE,
+        // stop the recorder (state becomes ERROR)
+        FAIL
+    }
+
+    /**
+     * What the recorder keeps of the raw audio in the recording buffer. The position
+     * (see {@link #getPosition()}) is counted in any case.
+     */
+    public enum RawPolicy {
+        // keep all the audio until the recording buffer is full, which is an error (the default)
+        FULL,
+        // keep the most recent audio, i.e. the recording buffer is cyclic and the older audio
+        // is overwritten (and reported as a gap to the consumers that fall behind)
+        WINDOW,
+        // keep no audio (the recording buffer is empty), e.g. if a subclass encodes the audio and
+        // only the encoded audio is consumed. The raw consumers, the waveform envelope,
+        // onAudioRecorded, the volume and the pause detection get no audio.
+        NONE
+    }
+
     private static final int RESOLUTION = AudioFormat.ENCODING_PCM_16BIT;
     private static final int BUFFER_SIZE_MULTIPLIER = 4; // was: 2
-    private static final int DEFAULT_BUFFER_LENGTH_IN_MILLIS = 35000;
+    // Max length of a (non-cyclic) recording
+    public static final int DEFAULT_BUFFER_LENGTH_IN_MILLIS = 35000;
+    private static final long RECORDER_THREAD_JOIN_TIMEOUT = 1000;
 
     private SpeechRecord mRecorder = null;
+    private Thread mRecorderThread = null;
+    private volatile boolean mIsRecorderLoopRunning = false;
+    private final int mAudioSource;
+    // Size of the SpeechRecord buffer in bytes
+    private int mSpeechRecordBufferSize = 0;
+
+    private final RecorderMetrics mMetrics = new RecorderMetrics();
+    // Optional auto-tuning of the read size and the SpeechRecord buffer size
+    private final AdaptiveBufferSizer mBufferSizer;
 
     private double mAvgEnergy = 0;
 
     private final int mSampleRate;
     private final int mSamplesInOneSec;
-    private final int mSamplesInOneMilliSec;
     private final boolean mAlwaysListen;
+    private final RawPolicy mRawPolicy;
 
     // Recorder state
     private State mState;
@@ -47,38 +92,107 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
     // 2 (bytes) * 1 (channels) * 20 (max rec time in seconds) * 16000 (times per second) = 640 000 bytes
     final byte[] mRecording;
 
+    // Little-endian 16-bit view of mRecording, indexed in samples rather than bytes
+    private final ShortBuffer mRecordingShorts;
+
     // TODO: use: mRecording.length instead
     private int mRecordedLength = 0;
     private AtomicLong mRecordedSessionId = new AtomicLong(0L);
     boolean mRecordingBufferIsFullWithData = false;
     private final int mRecordingBufferLengthMillis;
 
+    // Absolute number of bytes recorded since the recorder was created, and the absolute position
+    // that corresponds to the beginning of mRecording (changes when the recording is truncated).
+    private volatile long mTotalRecordedLength = 0;
+    private long mRecordingStartPosition = 0;
+    // Absolute position up to which the recorder is writing, i.e. set before the audio is copied
+    // into mRecording (while mTotalRecordedLength is updated after the copy)
+    private volatile long mWriteEnd = 0;
+
+    // Absolute position of the next frame returned by nextFrame/drainFrames (-1 if not yet started)
+    private final Object mFrameLock = new Object();
+    private long mFramePosition = -1;
+    private ShortBuffer mFrameView;
+    // Absolute position up to which the frame reader delivers silence instead of lost audio
+    private long mFrameSilenceEnd = -1;
+
     // The number of bytes the client has already consumed
     private int mConsumedLength = 0;
     private AtomicLong mConsumedSessionId = new AtomicLong(0L);
+    // Absolute position up to which the client has consumed
+    private long mConsumedPosition = 0;
+    // Position in mRecording up to which the last getCurrentRecording call copied
+    private int mCopiedLength = 0;
+
+    private GapPolicy mGapPolicy = GapPolicy.SKIP;
+    // Set by the recorder thread when it overwrites audio that has not been consumed
+    private volatile boolean mIsConsumerOverrun = false;
+    private volatile AudioGap mLastGap;
 
     // Buffer for output
     private byte[] mBuffer;
 
-    protected AbstractAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis, boolean alwaysListen) {
+    // True between standby() and the next start(), during which the recorded audio is discarded
+    private volatile boolean mIsStandby = false;
+
+    // Optional waveform envelope that is updated as the audio is recorded
+    private volatile WaveformEnvelope mWaveformEnvelope;
+
+    protected AbstractAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis, boolean alwaysListen,
+                                    AdaptiveBufferSizer bufferSizer) {
+        this(audioSource, sampleRate, recordingBufferLengthMillis, alwaysListen, RawPolicy.FULL, bufferSizer);
+    }
+
+    /**
+     * @param rawPolicy                   what to keep of the raw audio
+     * @param recordingBufferLengthMillis length of the recording buffer (ignored if nothing is kept),
+     *                                    the window should be much longer than a single read
+     */
+    protected AbstractAudioRecorder(int audioSource, int sampleRate, RawPolicy rawPolicy, int recordingBufferLengthMillis,
+                                    AdaptiveBufferSizer bufferSizer) {
+        this(audioSource, sampleRate, rawPolicy == RawPolicy.NONE ? 0 : recordingBufferLengthMillis, false, rawPolicy, bufferSizer);
+    }
+
+    private AbstractAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis, boolean alwaysListen,
+                                  RawPolicy rawPolicy, AdaptiveBufferSizer bufferSizer) {
+        mAudioSource = audioSource;
         mSampleRate = sampleRate;
         // E.g. 1 second of 16kHz 16-bit mono audio takes 32000 bytes.
         mSamplesInOneSec = RESOLUTION_IN_BYTES * CHANNELS * mSampleRate;
-        mSamplesInOneMilliSec = (int)((double) mSamplesInOneSec / 1000.0);
         mRecordingBufferLengthMillis = recordingBufferLengthMillis;
-        mRecording = new byte[mSamplesInOneMilliSec * mRecordingBufferLengthMillis];
+        mRecording = new byte[toNumOfBytes(sampleRate, mRecordingBufferLengthMillis)];
+        mRecordingShorts = ByteBuffer.wrap(mRecording).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
         mAlwaysListen = alwaysListen;
+        mRawPolicy = rawPolicy;
+        mBufferSizer = bufferSizer;
+    }
+
+    protected AbstractAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis, boolean alwaysListen) {
+        this(audioSource, sampleRate, recordingBufferLengthMillis, alwaysListen, null);
+    }
+
+    protected AbstractAudioRecorder(int audioSource, int sampleRate, AdaptiveBufferSizer bufferSizer) {
+        this(audioSource, sampleRate, DEFAULT_BUFFER_LENGTH_IN_MILLIS, false, bufferSizer);
     }
 
     protected AbstractAudioRecorder(int audioSource, int sampleRate) {
-        this(audioSource, sampleRate, DEFAULT_BUFFER_LENGTH_IN_MILLIS, false);
+        this(audioSource, sampleRate, null);
     }
 
     protected SpeechRecord createRecorder(int audioSource, int sampleRate, int bufferSize) {
         if (mRecorder != null)
             release();
 
-        mRecorder = new SpeechRecord(audioSource, sampleRate, AudioFormat.CHANNEL_IN_MONO, RESOLUTION, bufferSize, false, false, false);
+        CaptureCapabilities caps = CaptureCapabilities.getCached();
+        if (caps != null) {
+            int workingAudioSource = caps.getWorkingAudioSource(audioSource);
+            if (workingAudioSource != audioSource) {
+                Log.i("Audio source " + audioSource + " is not available, using " + workingAudioSource);
+                audioSource = workingAudioSource;
+            }
+        }
+        mRecorder = newSpeechRecord(audioSource, sampleRate, bufferSize);
+        mSpeechRecordBufferSize = bufferSize;
         if (getSpeechRecordState() != SpeechRecord.STATE_INITIALIZED) {
             throw new IllegalStateException("SpeechRecord initialization failed");
         }
@@ -86,13 +200,24 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
         return mRecorder;
     }
 
+    /**
+     * @return new SpeechRecord that reads the given audio source, e.g. a fake microphone in the tests
+     */
+    protected SpeechRecord newSpeechRecord(int audioSource, int sampleRate, int bufferSize) {
+        return new SpeechRecord(audioSource, sampleRate, AudioFormat.CHANNEL_IN_MONO, RESOLUTION, bufferSize, false, false, false);
+    }
+
     // TODO: remove
     protected void createBuffer(int framePeriod) {
-        mBuffer = new byte[framePeriod * RESOLUTION_IN_BYTES * CHANNELS];
+        if (mBufferSizer == null) {
+            mBuffer = new byte[framePeriod * RESOLUTION_IN_BYTES * CHANNELS];
+        } else {
+            mBuffer = new byte[getAdaptiveReadSize()];
+        }
     }
 
     protected int getBufferSize() {
-        int minBufferSizeInBytes = SpeechRecord.getMinBufferSize(mSampleRate, AudioFormat.CHANNEL_IN_MONO, RESOLUTION);
+        int minBufferSizeInBytes = getMinBufferSize();
         if (minBufferSizeInBytes == SpeechRecord.ERROR_BAD_VALUE) {
             throw new IllegalArgumentException("SpeechRecord.getMinBufferSize: parameters not supported by hardware");
         } else if (minBufferSizeInBytes == SpeechRecord.ERROR) {
@@ -100,10 +225,28 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
             minBufferSizeInBytes = mSampleRate * (120 / 1000) * RESOLUTION_IN_BYTES * CHANNELS;
         }
         int bufferSize = BUFFER_SIZE_MULTIPLIER * minBufferSizeInBytes;
+        if (mBufferSizer != null) {
+            bufferSize = Math.max(minBufferSizeInBytes, getNumOfSamplesIn(mBufferSizer.getBufferMillis()));
+        }
         Log.i("SpeechRecord buffer size: " + bufferSize + ", min size = " + minBufferSizeInBytes);
         return bufferSize;
     }
 
+    /**
+     * @return min SpeechRecord buffer size from the probed capabilities if available,
+     * otherwise from the platform
+     */
+    private int getMinBufferSize() {
+        CaptureCapabilities caps = CaptureCapabilities.getCached();
+        if (caps != null) {
+            int minBufferSizeInBytes = caps.getMinBufferSize(mSampleRate);
+            if (minBufferSizeInBytes > 0) {
+                return minBufferSizeInBytes;
+            }
+        }
+        return SpeechRecord.getMinBufferSize(mSampleRate, AudioFormat.CHANNEL_IN_MONO, RESOLUTION);
+    }
+
     /**
      * Returns the recorded bytes since the last call, and resets the recording.
      *
@@ -114,15 +257,77 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
         byte[] bytes = getCurrentRecording(len);
         setRecordedLength(0);
         setConsumedLength(0);
+        if (mRawPolicy == RawPolicy.WINDOW) {
+            mRecordingBufferIsFullWithData = false;
+        }
+        mRecordingStartPosition = mTotalRecordedLength;
+        mConsumedPosition = mRecordingStartPosition;
         return bytes;
     }
 
+    /**
+     * Maintains the given waveform envelope (starting from the audio that is recorded next),
+     * e.g. to be able to draw the waveform of a long recording without going through its samples.
+     */
+    public void setWaveformEnvelope(WaveformEnvelope waveformEnvelope) {
+        mWaveformEnvelope = waveformEnvelope;
+    }
+
+    public WaveformEnvelope getWaveformEnvelope() {
+        return mWaveformEnvelope;
+    }
+
+    public void setGapPolicy(GapPolicy gapPolicy) {
+        mGapPolicy = gapPolicy;
+    }
+
+    public GapPolicy getGapPolicy() {
+        return mGapPolicy;
+    }
+
+    /**
+     * @return the most recent gap in the consumed audio or in the frames, or null if there has been no gap
+     */
+    public AudioGap getLastGap() {
+        return mLastGap;
+    }
+
     public int getSampleRate() {
         return mSampleRate;
     }
 
+    public int getAudioSource() {
+        return mAudioSource;
+    }
+
+    public RawPolicy getRawPolicy() {
+        return mRawPolicy;
+    }
+
+    /**
+     * @return counters describing the reads from the microphone
+     */
+    public RecorderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return buffer sizer, or null if the buffer sizes are not auto-tuned
+     */
+    public AdaptiveBufferSizer getBufferSizer() {
+        return mBufferSizer;
+    }
+
     protected int getNumOfSamplesIn(int millis) {
-        return Math.abs(millis) * mSamplesInOneMilliSec;
+        return toNumOfBytes(mSampleRate, Math.abs(millis));
+    }
+
+    /**
+     * @return number of bytes in the whole samples of the given duration (e.g. there are 22.05 samples
+     * in a millisecond at 22050 Hz, i.e. the duration is not rounded to milliseconds first)
+     */
+    private static int toNumOfBytes(int sampleRate, int millis) {
+        return (int) ((long) sampleRate * millis / 1000) * RESOLUTION_IN_BYTES * CHANNELS;
     }
 
     protected boolean isRecordedSessionSameAsConsumedSession() {
@@ -188,6 +393,33 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
     protected int read(SpeechRecord recorder, byte[] buffer) {
         int len = buffer.length;
         int numOfBytes = recorder.read(buffer, 0, len);
+        int status = append(recorder, numOfBytes, len, buffer, null);
+        return mAlwaysListen ? 0 : status;
+    }
+
+    /**
+     * Reads data from the given recorder directly into the given (direct) buffer, from its
+     * position up to its limit, and appends it to the complete recording with a single bulk copy,
+     * i.e. no intermediate array is needed, e.g. when the buffer is a codec input buffer.
+     * The buffer should be cleared before the call, because older platforms write to
+     * the beginning of the buffer regardless of its position. The position of the buffer
+     * is undefined after the call.
+     *
+     * @return number of bytes read, or a negative status in case of error
+     */
+    protected int read(SpeechRecord recorder, ByteBuffer buffer) {
+        int len = buffer.remaining();
+        int numOfBytes = recorder.read(buffer, len);
+        int status = append(recorder, numOfBytes, len, null, buffer);
+        return status < 0 ? status : numOfBytes;
+    }
+
+    /**
+     * Appends the audio that was read into the given array (or the given buffer, if the array is
+     * null) to the complete recording.
+     */
+    private int append(SpeechRecord recorder, int numOfBytes, int len, byte[] array, ByteBuffer byteBuffer) {
+        mMetrics.onRead(numOfBytes, System.nanoTime(), 1000000L * getSpeechRecordBufferMillis());
         // handling mediaserver crashes here
         // it doesn't happen a lot but it happens and the way to handle it is to fully restart
         // the audio recorder
@@ -198,11 +430,29 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
             start();
         }
 
+        if (mIsStandby && !mAlwaysListen) {
+            // keeping the microphone warm, nobody is interested in this audio
+            return numOfBytes < 0 ? numOfBytes : 0;
+        }
+
         int status = getStatus(numOfBytes, len);
+        if (mRecording.length == 0) {
+            // nothing of the raw audio is kept (RawPolicy.NONE), only the position
+            if (status == -300) {
+                status = 0;
+            }
+            if (status == 0) {
+                mTotalRecordedLength += numOfBytes;
+                synchronized (mFrameLock) {
+                    mFrameLock.notifyAll();
+                }
+            }
+            return status;
+        }
         boolean reachedTheEndOfRecordingBuffer = false;
-        // if we need to keep on listening, when reaching the end of the recorded buffer,
-        // continue to write from the beginning. thus, we have a cyclic buffer
-        if (mAlwaysListen && status == -300) {
+        // if we need to keep on listening (or keep a window of the most recent audio), when reaching
+        // the end of the recorded buffer, continue to write from the beginning. thus, we have a cyclic buffer
+        if ((mAlwaysListen || mRawPolicy == RawPolicy.WINDOW) && status == -300) {
             reachedTheEndOfRecordingBuffer = true;
             status = 0;
             // for use when consuming the recorded buffer, the buffer is now in it's cyclic phase
@@ -211,31 +461,86 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
         }
 
         if (status == 0 && numOfBytes >= 0) {
+            mWriteEnd = mTotalRecordedLength + numOfBytes;
+            int recordedLength = mRecordedLength;
+            int srcPos = byteBuffer == null ? 0 : byteBuffer.position();
             if (!reachedTheEndOfRecordingBuffer) {
                 // arraycopy(Object src, int srcPos, Object dest, int destPos, int length)
                 // numOfBytes <= len, typically == len, but at the end of the recording can be < len.
-                System.arraycopy(buffer, 0, mRecording, mRecordedLength, numOfBytes);
+                copyToRecording(array, byteBuffer, srcPos, recordedLength, numOfBytes);
                 mRecordedLength += numOfBytes;
+                onAppended(recordedLength, numOfBytes);
             }
             else {
-                int numOfBytesBeforeCyclic = mRecording.length - mRecordedLength;
-                System.arraycopy(buffer, 0, mRecording, mRecordedLength, numOfBytesBeforeCyclic);
-                System.arraycopy(buffer, numOfBytesBeforeCyclic, mRecording, 0, numOfBytes - numOfBytesBeforeCyclic);
+                int numOfBytesBeforeCyclic = mRecording.length - recordedLength;
+                copyToRecording(array, byteBuffer, srcPos, recordedLength, numOfBytesBeforeCyclic);
+                copyToRecording(array, byteBuffer, srcPos + numOfBytesBeforeCyclic, 0, numOfBytes - numOfBytesBeforeCyclic);
 
                 mRecordedLength = numOfBytes - numOfBytesBeforeCyclic;
+                onAppended(recordedLength, numOfBytesBeforeCyclic);
+                onAppended(0, mRecordedLength);
+            }
+            mTotalRecordedLength += numOfBytes;
+            synchronized (mFrameLock) {
+                mFrameLock.notifyAll();
             }
 
             // increment the recorded session id in case that the consume pointer was crossed
             if (isConsumePointerCrossed(reachedTheEndOfRecordingBuffer, numOfBytes)) {
                 Log.i("recorder session changed. mRecordedLength was: " + (mRecordedLength - numOfBytes) + " and now it is: " + mRecordedLength + " while the mConsumedLength is: " + mConsumedLength);
+                mIsConsumerOverrun = true;
                 markNewRecordingSession();
             }
         }
+        return status;
+    }
 
-        return mAlwaysListen ? 0 : status;
+    private void copyToRecording(byte[] array, ByteBuffer byteBuffer, int srcPos, int destPos, int length) {
+        if (array == null) {
+            byteBuffer.position(srcPos);
+            byteBuffer.get(mRecording, destPos, length);
+        } else {
+            System.arraycopy(array, srcPos, mRecording, destPos, length);
+        }
+    }
+
+    /**
+     * Feeds the given part of the recording buffer, which has just been recorded, to the
+     * waveform envelope and to the subclasses.
+     */
+    private void onAppended(int offset, int numOfBytes) {
+        if (numOfBytes <= 0) {
+            return;
+        }
+        WaveformEnvelope waveformEnvelope = mWaveformEnvelope;
+        if (waveformEnvelope != null) {
+            waveformEnvelope.add(mRecording, offset, numOfBytes);
+        }
+        onAudioRecorded(mRecording, offset, numOfBytes);
     }
 
 
+    /**
+     * Called on the recorder thread after the given audio has been appended to the recording.
+     * Subclasses can override this to feed the audio to additional consumers (e.g. analyzers).
+     * Must not block. If the audio wraps around the end of the (cyclic) recording buffer then
+     * this is called twice.
+     *
+     * @param buffer     buffer that contains the audio (i.e. the recording buffer)
+     * @param offset     offset of the audio in the buffer
+     * @param numOfBytes number of bytes of audio
+     */
+    protected void onAudioRecorded(byte[] buffer, int offset, int numOfBytes) {
+        // Nothing to do by default
+    }
+
+    /**
+     * @return number of bytes recorded since the recorder was created
+     */
+    protected long getTotalRecordedLength() {
+        return mTotalRecordedLength;
+    }
+
     /**
      * @return recorder state
      */
@@ -245,13 +550,22 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
 
     protected void setState(State state) {
         mState = state;
+        // Wake up the frame readers that wait for audio that is not going to come
+        synchronized (mFrameLock) {
+            mFrameLock.notifyAll();
+        }
     }
 
 
     /**
-     * @return bytes that have been recorded since the beginning
+     * @return bytes that have been recorded since the beginning (or the most recent ones,
+     * if the recorder keeps a window of the recording)
      */
     public byte[] getCompleteRecording() {
+        if (mRawPolicy == RawPolicy.WINDOW && mRecordingBufferIsFullWithData) {
+            // the oldest audio follows the most recent one
+            return copyFromRecording(getLength(), mRecording.length);
+        }
         return getCurrentRecording(0);
     }
 
@@ -272,26 +586,357 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
      * @return bytes that have been recorded since this method was last called
      */
     public synchronized byte[] consumeRecording() {
+        AudioChunk chunk = consumeChunk();
+        if (chunk == null)
+            return null;
+        return chunk.getBytes();
+    }
+
+    /**
+     * Like {@link #consumeRecording()} but also returns the absolute position of the audio,
+     * and describes the audio that was lost (if any) since the previous call because the recorder
+     * overwrote it before it was consumed. The lost audio is handled according to the gap policy.
+     *
+     * @return audio that has been recorded since this method was last called, or null if there is none
+     * (empty if the recorder does not keep the raw audio)
+     */
+    public synchronized AudioChunk consumeChunk() {
+        if (mRecording.length == 0) {
+            // no raw audio is kept, i.e. there is nothing to consume, and nothing is lost either
+            mConsumedPosition = mTotalRecordedLength;
+            return new AudioChunk(new byte[0], toSamples(mConsumedPosition), null);
+        }
+        boolean isOverrun = mIsConsumerOverrun && !isRecordedSessionSameAsConsumedSession();
+        if (isOverrun && mGapPolicy == GapPolicy.FAIL) {
+            setLastGap(new AudioGap(toSamples(mConsumedPosition), toSamples(getOldestPosition() - mConsumedPosition), AudioGap.Reason.CONSUMER_OVERRUN));
+            handleError("Audio gap: " + mLastGap);
+            return null;
+        }
         byte[] bytes = getCurrentRecording(mConsumedLength);
         if (bytes == null)
             return null;
 
-        // this is to avoid race (set the consumed length to be the recorded length though
-        // the last recording was empty while recorded length moved on - thus we always miss
-        // a part of the recording)
-        mConsumedLength = mRecordedLength;
+        long position = toPosition(mCopiedLength) - bytes.length;
+        AudioGap gap = null;
+        if (isOverrun && position > mConsumedPosition) {
+            long numLostBytes = position - mConsumedPosition;
+            gap = new AudioGap(toSamples(mConsumedPosition), toSamples(numLostBytes), AudioGap.Reason.CONSUMER_OVERRUN);
+            setLastGap(gap);
+            if (mGapPolicy == GapPolicy.INSERT_SILENCE) {
+                // the consumer might have been away for a long time, i.e. the silence is limited
+                int numSilentBytes = (int) Math.min(numLostBytes, mRecording.length);
+                byte[] bytesWithSilence = new byte[numSilentBytes + bytes.length];
+                System.arraycopy(bytes, 0, bytesWithSilence, numSilentBytes, bytes.length);
+                bytes = bytesWithSilence;
+                position -= numSilentBytes;
+            }
+        }
+
+        // Continue exactly from where the copy ended (rather than from the current recorded length,
+        // which may have moved on during the copy, which would silently lose some audio)
+        mConsumedLength = mCopiedLength;
         mConsumedSessionId.set(mRecordedSessionId.get());
-        return bytes;
+        mIsConsumerOverrun = false;
+        mConsumedPosition = position + bytes.length;
+        return new AudioChunk(bytes, toSamples(position), gap);
+    }
+
+    /**
+     * @return absolute number of samples recorded (since the creation or reset of the recorder)
+     */
+    public long getPosition() {
+        return toSamples(mTotalRecordedLength);
+    }
+
+    /**
+     * Makes the next consumeRecording/consumeChunk start from the given absolute sample position,
+     * e.g. to include the audio that was recorded before the session started (pre-roll).
+     * The position is clipped to the audio that is still in the recording buffer.
+     *
+     * @param samplePosition absolute sample position (see {@link #getPosition()})
+     * @return the clipped sample position
+     */
+    public synchronized long setConsumedPosition(long samplePosition) {
+        long total = mTotalRecordedLength;
+        if (mRecording.length == 0) {
+            mConsumedPosition = total;
+            return toSamples(total);
+        }
+        long oldest = getOldestPosition();
+        if (total - oldest >= mRecording.length) {
+            // keep away from the part of the buffer that the recorder is about to overwrite
+            oldest += mBuffer.length;
+        }
+        long position = Math.min(total, Math.max(oldest, samplePosition * RESOLUTION_IN_BYTES * CHANNELS));
+        mConsumedLength = (int) ((position - mRecordingStartPosition) % mRecording.length);
+        mConsumedPosition = position;
+        mConsumedSessionId.set(mRecordedSessionId.get());
+        mIsConsumerOverrun = false;
+        return toSamples(position);
+    }
+
+    /**
+     * Replaces the audio in the given range of absolute sample positions with silence,
+     * as far as it is still in the recording buffer, e.g. to exclude an audio cue that the microphone picked up.
+     */
+    public synchronized void mute(long fromSample, long toSample) {
+        long from = Math.max(fromSample * RESOLUTION_IN_BYTES * CHANNELS, getOldestPosition());
+        long to = Math.min(toSample * RESOLUTION_IN_BYTES * CHANNELS, mTotalRecordedLength);
+        for (long pos = from; pos < to; ) {
+            int index = (int) ((pos - mRecordingStartPosition) % mRecording.length);
+            int len = (int) Math.min(to - pos, mRecording.length - index);
+            Arrays.fill(mRecording, index, index + len, (byte) 0);
+            pos += len;
+        }
+    }
+
+    /**
+     * Maps the given length of the recording (as returned by {@link #getLength()} a moment ago)
+     * to an absolute position, taking into account that the recorder may have moved on since.
+     */
+    protected long toPosition(int recordedLength) {
+        long total = mTotalRecordedLength;
+        if (mRecording.length == 0) {
+            return total;
+        }
+        long numBytesSince = (total - mRecordingStartPosition - recordedLength) % mRecording.length;
+        if (numBytesSince < 0) {
+            numBytesSince += mRecording.length;
+        }
+        return total - numBytesSince;
+    }
+
+    /**
+     * Records the position in mRecording up to which audio was copied by getCurrentRecording.
+     */
+    protected void setCopiedLength(int len) {
+        mCopiedLength = len;
+    }
+
+    /**
+     * @return true if the recorder has overwritten audio that the client has not consumed
+     */
+    protected boolean isConsumerOverrun() {
+        return mIsConsumerOverrun && !isRecordedSessionSameAsConsumedSession();
+    }
+
+    private void setLastGap(AudioGap gap) {
+        Log.e("Audio gap: " + gap);
+        mLastGap = gap;
+    }
+
+    private static long toSamples(long numBytes) {
+        return numBytes / (RESOLUTION_IN_BYTES * CHANNELS);
+    }
+
+    /**
+     * Returns a read-only little-endian view of the complete recording buffer, where index i
+     * refers to the i-th sample (i.e. bytes 2*i and 2*i+1 of the buffer). The view is backed by
+     * the recording buffer, i.e. no audio is copied, and the valid samples are the ones
+     * before {@link #getLength()} / 2 (or the whole buffer once a continuous recorder has wrapped).
+     * Use {@link AudioUtils#toFloats(short[], int, float[], int, int)} after a bulk get to obtain
+     * normalized float samples.
+     *
+     * @return sample view of the recording buffer
+     */
+    public ShortBuffer getRecordingAsShortBuffer() {
+        return ByteBuffer.wrap(mRecording).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    }
+
+    /**
+     * Copies exactly one frame of the given duration into the beginning of the given array,
+     * blocking until the frame has been recorded. Consecutive calls return consecutive frames,
+     * independently of the consumeRecording-methods. The first frame starts from the oldest audio
+     * that is still in the recording buffer.
+     *
+     * @param millis frame duration in milliseconds (e.g. 10, 20, 30)
+     * @param dst    array with room for at least one frame of samples
+     * @return true if the frame was copied, false if the recorder is not recording (anymore) and the frame is incomplete,
+     * or if the recorder does not keep the raw audio
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean nextFrame(int millis, short[] dst) throws InterruptedException {
+        int frameBytes = getFrameLength(millis, dst, 1);
+        synchronized (mFrameLock) {
+            while (true) {
+                while (getAvailableFrameLength() < frameBytes) {
+                    if (getState() != State.RECORDING || mRecording.length == 0) {
+                        return false;
+                    }
+                    mFrameLock.wait();
+                }
+                if (copyFrames(frameBytes, dst, 1)) {
+                    return true;
+                }
+                if (mGapPolicy == GapPolicy.FAIL) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies exactly one frame of the given duration into the beginning of the given array,
+     * if the frame has already been recorded. Does not block.
+     *
+     * @return true if the frame was copied, false if it is not yet available
+     */
+    public boolean pollFrame(int millis, short[] dst) {
+        return drainFrames(millis, dst, 1) == 1;
+    }
+
+    /**
+     * Copies all the complete frames that are available (but at most maxFrames) one after the other
+     * into the given array. Does not block. Incomplete frames remain available for the next call.
+     *
+     * @param millis    frame duration in milliseconds
+     * @param dst       array with room for maxFrames frames of samples
+     * @param maxFrames maximum number of frames to copy
+     * @return number of frames copied
+     */
+    public int drainFrames(int millis, short[] dst, int maxFrames) {
+        int frameBytes = getFrameLength(millis, dst, maxFrames);
+        synchronized (mFrameLock) {
+            while (true) {
+                int numFrames = (int) Math.min(maxFrames, getAvailableFrameLength() / frameBytes);
+                if (numFrames == 0) {
+                    return 0;
+                }
+                if (copyFrames(frameBytes, dst, numFrames)) {
+                    return numFrames;
+                }
+                if (mGapPolicy == GapPolicy.FAIL) {
+                    return 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of samples in a frame of the given duration
+     */
+    public int getFrameSize(int millis) {
+        return mSampleRate * millis / 1000;
+    }
+
+    private int getFrameLength(int millis, short[] dst, int numFrames) {
+        int frameSize = getFrameSize(millis);
+        if (frameSize <= 0 || dst.length < frameSize * numFrames) {
+            throw new IllegalArgumentException("Frame of " + millis + " ms does not fit into " + dst.length + " samples");
+        }
+        return frameSize * RESOLUTION_IN_BYTES * CHANNELS;
+    }
+
+    /**
+     * @return absolute position of the oldest byte that is still in the recording buffer
+     */
+    private long getOldestPosition() {
+        return Math.max(mRecordingStartPosition, mTotalRecordedLength - mRecording.length);
+    }
+
+    /**
+     * @return absolute position of the oldest byte that the recorder is not (about to be) overwriting
+     */
+    private long getOldestIntactPosition() {
+        return Math.max(mRecordingStartPosition, mWriteEnd - mRecording.length);
+    }
+
+    /**
+     * @return number of bytes between the frame position and the end of the recording (needs mFrameLock)
+     */
+    private long getAvailableFrameLength() {
+        if (mRecording.length == 0) {
+            // no raw audio is kept, i.e. there are no frames, and no gaps either
+            return 0;
+        }
+        long oldest = getOldestIntactPosition();
+        if (mFramePosition < 0) {
+            mFramePosition = oldest;
+        } else if (mFramePosition < oldest && mFramePosition >= mFrameSilenceEnd) {
+            setLastGap(new AudioGap(toSamples(mFramePosition), toSamples(oldest - mFramePosition), AudioGap.Reason.FRAME_READER_OVERRUN));
+            if (mGapPolicy == GapPolicy.FAIL) {
+                handleError("Audio gap: " + mLastGap);
+                return 0;
+            } else if (mGapPolicy == GapPolicy.INSERT_SILENCE) {
+                mFrameSilenceEnd = oldest;
+            } else {
+                mFramePosition = oldest;
+            }
+        }
+        return mTotalRecordedLength - mFramePosition;
+    }
+
+    /**
+     * Copies the frames directly from the recording buffer into the destination (needs mFrameLock).
+     * The recorder does not wait for the frame reader, i.e. it can overwrite the oldest frames
+     * during the copy. This is detected afterwards and handled according to the gap policy.
+     *
+     * @return true if the frames were copied, false if they were torn and should be read again
+     * (from the oldest intact position), or the gap policy is FAIL
+     */
+    private boolean copyFrames(int frameBytes, short[] dst, int numFrames) {
+        if (mFrameView == null) {
+            mFrameView = getRecordingAsShortBuffer();
+        }
+        int numSamples = numFrames * frameBytes / RESOLUTION_IN_BYTES;
+        int numSilentSamples = 0;
+        if (mFramePosition < mFrameSilenceEnd) {
+            numSilentSamples = (int) Math.min(numSamples, toSamples(mFrameSilenceEnd - mFramePosition));
+            Arrays.fill(dst, 0, numSilentSamples, (short) 0);
+        }
+        long position = mFramePosition + numSilentSamples * RESOLUTION_IN_BYTES;
+        int numSamplesToCopy = numSamples - numSilentSamples;
+        int index = (int) ((position - mRecordingStartPosition) % mRecording.length) / RESOLUTION_IN_BYTES;
+        int numSamplesToEnd = Math.min(numSamplesToCopy, mFrameView.capacity() - index);
+        mFrameView.position(index);
+        mFrameView.get(dst, numSilentSamples, numSamplesToEnd);
+        if (numSamplesToEnd < numSamplesToCopy) {
+            mFrameView.position(0);
+            mFrameView.get(dst, numSilentSamples + numSamplesToEnd, numSamplesToCopy - numSamplesToEnd);
+        }
+        long oldest = getOldestIntactPosition();
+        if (position < oldest) {
+            long tornEnd = Math.min(oldest, mFramePosition + numFrames * frameBytes);
+            setLastGap(new AudioGap(toSamples(position), toSamples(tornEnd - position), AudioGap.Reason.FRAME_READER_OVERRUN));
+            if (mGapPolicy == GapPolicy.FAIL) {
+                handleError("Audio gap: " + mLastGap);
+                return false;
+            } else if (mGapPolicy == GapPolicy.INSERT_SILENCE) {
+                Arrays.fill(dst, numSilentSamples, numSilentSamples + (int) toSamples(tornEnd - position), (short) 0);
+            } else {
+                mFramePosition = oldest;
+                return false;
+            }
+        }
+        mFramePosition += numFrames * frameBytes;
+        return true;
     }
 
     protected byte[] getCurrentRecording(int startPos) {
-        int len = getLength() - startPos;
-        byte[] bytes = new byte[len];
-        System.arraycopy(mRecording, startPos, bytes, 0, len);
+        int end = getLength();
+        setCopiedLength(end);
+        int len = end - startPos;
+        if (len < 0 || len == 0 && isConsumerOverrun()) {
+            // the (cyclic) recording has wrapped around since the start position
+            len += mRecording.length;
+        }
+        byte[] bytes = copyFromRecording(startPos, len);
         Log.i("Copied from: " + startPos + ": " + bytes.length + " bytes");
         return bytes;
     }
 
+    /**
+     * Copies the given number of bytes from the given position of the recording, continuing
+     * from the beginning of the recording if the end is reached.
+     */
+    private byte[] copyFromRecording(int startPos, int len) {
+        byte[] bytes = new byte[len];
+        int numBytesToEnd = Math.min(len, mRecording.length - startPos);
+        System.arraycopy(mRecording, startPos, bytes, 0, numBytesToEnd);
+        System.arraycopy(mRecording, 0, bytes, numBytesToEnd, len - numBytesToEnd);
+        return bytes;
+    }
+
     protected int getConsumedLength() {
         return mConsumedLength;
     }
@@ -366,19 +1011,166 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
         }
     }
 
+    /**
+     * <p>Returns the recorder to the state of a newly created recorder (READY), so that it can
+     * be reused for a new session without reallocating the recording buffer and the read buffer.
+     * The recorded audio, the consume pointers, the frame reader, the last gap, the waveform
+     * envelope and the metrics are cleared, and a new SpeechRecord is created. The gap policy
+     * and the buffer sizer are kept. If the SpeechRecord cannot be created then the state
+     * is set to ERROR.</p>
+     */
+    public synchronized void reset() {
+        release();
+        joinRecorderThread();
+        mIsStandby = false;
+        clearRecording();
+        try {
+            int bufferSize = getBufferSize();
+            createRecorder(mAudioSource, mSampleRate, bufferSize);
+            if (mBuffer == null || mBufferSizer != null && mBuffer.length != getAdaptiveReadSize()) {
+                createBuffer(bufferSize / (2 * RESOLUTION_IN_BYTES * CHANNELS));
+            }
+            setState(State.READY);
+        } catch (Exception e) {
+            if (e.getMessage() == null) {
+                handleError("Unknown error occurred while resetting recorder");
+            } else {
+                handleError(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * <p>Ends the session but keeps the microphone warm, so that the next {@link #start()}
+     * delivers audio without the latency of creating and starting the SpeechRecord.
+     * The state becomes READY, and the next start begins a new (empty) recording.</p>
+     * <p/>
+     * <p>If capturing then the SpeechRecord keeps recording and the audio is discarded until
+     * the next start (a continuous recorder keeps it in its cyclic buffer, i.e. it is available
+     * as pre-roll), so the first audio is available immediately, but the platform shows
+     * the microphone privacy indicator also between the sessions. Otherwise the SpeechRecord
+     * is stopped but remains initialized (no indicator), which saves its construction.</p>
+     * <p/>
+     * <p>Call {@link #release()} (or {@link #reset()}) when the microphone should cool down.</p>
+     *
+     * @param isCapturing true to keep capturing between the sessions
+     */
+    public synchronized void standby(boolean isCapturing) {
+        if (getSpeechRecordState() != SpeechRecord.STATE_INITIALIZED) {
+            handleError("standby() called on illegal state");
+            return;
+        }
+        mIsStandby = true;
+        if (!isCapturing || !isStandbyCapturingSupported()) {
+            if (mRecorder.getRecordingState() == SpeechRecord.RECORDSTATE_RECORDING) {
+                try {
+                    mRecorder.stop();
+                } catch (IllegalStateException e) {
+                    handleError("native stop() called in illegal state: " + e.getMessage());
+                    return;
+                }
+            }
+            joinRecorderThread();
+        }
+        setState(State.READY);
+        Log.i("Standby: capturing: " + isStandbyCapturing());
+    }
+
+    /**
+     * @return true if the recorder is in standby and the SpeechRecord keeps recording
+     */
+    public boolean isStandbyCapturing() {
+        return mIsStandby && mRecorder != null && mRecorder.getRecordingState() == SpeechRecord.RECORDSTATE_RECORDING;
+    }
+
+    /**
+     * @return true if the recorder loop can keep running (and discarding the audio) in standby
+     */
+    protected boolean isStandbyCapturingSupported() {
+        return true;
+    }
+
+    /**
+     * Clears the recorded audio and everything that refers to it, i.e. the consume pointers,
+     * the frame reader, the last gap, the waveform envelope and the metrics. Subclasses that keep
+     * additional state about the recording should override this (and call super).
+     */
+    protected synchronized void clearRecording() {
+        mRecordedLength = 0;
+        mRecordingBufferIsFullWithData = false;
+        mTotalRecordedLength = 0;
+        mRecordingStartPosition = 0;
+        mWriteEnd = 0;
+        mConsumedLength = 0;
+        mConsumedPosition = 0;
+        mCopiedLength = 0;
+        mConsumedSessionId.set(mRecordedSessionId.get());
+        mIsConsumerOverrun = false;
+        mLastGap = null;
+        mAvgEnergy = 0;
+        mWaveformEnvelope = null;
+        synchronized (mFrameLock) {
+            mFramePosition = -1;
+            mFrameSilenceEnd = -1;
+        }
+        mMetrics.reset();
+    }
+
+    private void joinRecorderThread() {
+        Thread recorderThread = mRecorderThread;
+        if (recorderThread != null && recorderThread != Thread.currentThread()) {
+            try {
+                // the recorder thread exits after its current read
+                recorderThread.join(RECORDER_THREAD_JOIN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mRecorderThread = null;
+    }
+
+    /**
+     * @return number of bytes allocated for the audio buffers of this recorder
+     */
+    public int getArenaSize() {
+        return mRecording.length + (mBuffer == null ? 0 : mBuffer.length);
+    }
+
     /**
      * <p>Starts the recording, and sets the state to RECORDING.</p>
      */
     public void start() {
+        if (mIsStandby) {
+            if (mAlwaysListen) {
+                // the audio recorded in standby is kept, the consumer starts a new session
+                markNewRecordingSession();
+            } else {
+                clearRecording();
+            }
+            mIsStandby = false;
+            if (getSpeechRecordState() == SpeechRecord.STATE_INITIALIZED &&
+                    mRecorder.getRecordingState() == SpeechRecord.RECORDSTATE_RECORDING) {
+                // the recorder loop is still running, and now starts to keep the audio
+                setState(State.RECORDING);
+                return;
+            }
+        }
         if (getSpeechRecordState() == SpeechRecord.STATE_INITIALIZED) {
+            mMetrics.reset();
             mRecorder.startRecording();
             if (mRecorder.getRecordingState() == SpeechRecord.RECORDSTATE_RECORDING) {
                 setState(State.RECORDING);
-                new Thread() {
+                mIsRecorderLoopRunning = true;
+                mRecorderThread = new Thread() {
                     public void run() {
-                        recorderLoop(mRecorder);
+                        try {
+                            recorderLoop(mRecorder);
+                        } finally {
+                            mIsRecorderLoopRunning = false;
+                        }
                     }
-                }.start();
+                };
+                mRecorderThread.start();
             } else {
                 handleError("startRecording() failed");
             }
@@ -388,6 +1180,15 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
     }
 
 
+    /**
+     * @return true if the recording has been stopped (or has failed) and the recorder loop has
+     * exited, i.e. all the audio that was read has been appended to the recording (and, in the
+     * subclasses, processed), and nothing is added to it anymore
+     */
+    public boolean isEndOfStream() {
+        return getState() != State.RECORDING && !mIsRecorderLoopRunning;
+    }
+
     /**
      * <p>Stops the recording, and sets the state to STOPPED.
      * If stopping fails then sets the state to ERROR.</p>
@@ -415,42 +1216,75 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
                 handleError("status = " + status);
                 break;
             }
+            adaptBuffer();
+        }
+    }
+
+    /**
+     * Lets the buffer sizer (if any) observe the last read, and resizes the read buffer if the sizer
+     * changed the read size. The new buffer is used starting from the next read. Subclasses that
+     * override {@link #recorderLoop(SpeechRecord)} call this after every read from the microphone.
+     */
+    protected void adaptBuffer() {
+        if (mBufferSizer == null) {
+            return;
+        }
+        long intervalMillis = mMetrics.getLastReadIntervalMillis();
+        if (mBufferSizer.onRead(intervalMillis, intervalMillis > getSpeechRecordBufferMillis())) {
+            mBuffer = new byte[getAdaptiveReadSize()];
         }
     }
 
+    /**
+     * @return number of bytes to read from the microphone at once, i.e. the read size proposed by
+     * the buffer sizer (at most the given size), or the given size if there is no buffer sizer
+     */
+    protected int getReadSize(int maxReadSize) {
+        if (mBufferSizer == null) {
+            return maxReadSize;
+        }
+        return Math.min(maxReadSize, getAdaptiveReadSize());
+    }
+
+    /**
+     * @return read size in bytes proposed by the buffer sizer, which cannot exceed the SpeechRecord buffer
+     */
+    private int getAdaptiveReadSize() {
+        int readSize = getNumOfSamplesIn(mBufferSizer.getReadMillis());
+        if (mSpeechRecordBufferSize > 0 && readSize > mSpeechRecordBufferSize) {
+            readSize = mSpeechRecordBufferSize;
+        }
+        return readSize;
+    }
 
+    private int getSpeechRecordBufferMillis() {
+        return (int) (1000L * mSpeechRecordBufferSize / mSamplesInOneSec);
+    }
+
+
+    /**
+     * Returns the sum of squares of the samples in the given byte range of the recording,
+     * reading the samples through the little-endian sample view.
+     */
     private long getRms(int end, int span) {
         int begin = end - span;
         if (begin < 0) {
             begin = 0;
         }
-        // make sure begin is even
-        if (0 != (begin % 2)) {
-            begin++;
-        }
+        // byte positions to sample positions, rounding the beginning up to the next whole sample
+        int beginSample = (begin + 1) / RESOLUTION_IN_BYTES;
+        int endSample = end / RESOLUTION_IN_BYTES;
 
+        ShortBuffer samples = mRecordingShorts;
         long sum = 0;
-        for (int i = begin; i < end; i += 2) {
-            short curSample = getShort(mRecording[i], mRecording[i + 1]);
+        for (int i = beginSample; i < endSample; i++) {
+            int curSample = samples.get(i);
             sum += curSample * curSample;
         }
         return sum;
     }
 
 
-    /*
-     * Converts two bytes to a short (assuming little endian).
-     * TODO: We don't need the whole short, just take the 2nd byte (the more significant one)
-     * TODO: Most Android devices are little endian?
-     */
-    private static short getShort(byte argB1, byte argB2) {
-        //if (ByteOrder.nativeOrder().equals(ByteOrder.BIG_ENDIAN)) {
-        //    return (short) ((argB1 << 8) | argB2);
-        //}
-        return (short) (argB1 | (argB2 << 8));
-    }
-
-
     protected void handleError(String msg) {
         release();
         setState(State.ERROR);
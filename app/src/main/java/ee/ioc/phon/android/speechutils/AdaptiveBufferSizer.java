@@ -0,0 +1,156 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Auto-tunes the size of the reads from the microphone, and the size of the SpeechRecord buffer.
+ * <p/>
+ * Starts with short (low-latency) reads and observes the intervals between consecutive reads.
+ * If the recorder thread falls behind (reads arrive late, or so late that the SpeechRecord buffer
+ * has overrun) then the read size is doubled. If the reads have been on time for a number of
+ * windows then the read size is halved. The read size always stays within the given limits.
+ * <p/>
+ * The SpeechRecord buffer cannot be resized once the recorder has been created, so its size is
+ * only derived from the read size, and is applied in the next session. The tuned values can be
+ * stored per device model (see {@link #save(SharedPreferences)}) so that the next session starts
+ * from the values that worked last time.
+ */
+public class AdaptiveBufferSizer {
+
+    public static final int DEFAULT_MIN_READ_MILLIS = 10;
+    public static final int DEFAULT_MAX_READ_MILLIS = 160;
+    private static final int DEFAULT_START_READ_MILLIS = 20;
+
+    // The SpeechRecord buffer holds this many reads
+    private static final int BUFFER_READS = 4;
+
+    // Number of reads in a measurement window
+    private static final int WINDOW_SIZE = 50;
+    // Read is late if it arrives later than this many read periods (in percent)
+    private static final int LATE_PERCENT = 150;
+    // Grow if more than this many reads (in percent) of the window were late
+    private static final int MAX_LATE_PERCENT_IN_WINDOW = 10;
+    // Shrink after this many consecutive windows without late reads
+    private static final int NUM_CALM_WINDOWS_BEFORE_SHRINK = 3;
+
+    private static final String PREF_PREFIX = "speechutils/bufferSizer/";
+
+    private final int mMinReadMillis;
+    private final int mMaxReadMillis;
+
+    private volatile int mReadMillis;
+    private int mNumReadsInWindow = 0;
+    private int mNumLateReadsInWindow = 0;
+    private int mNumCalmWindows = 0;
+
+    public AdaptiveBufferSizer(int minReadMillis, int maxReadMillis) {
+        if (minReadMillis <= 0 || maxReadMillis < minReadMillis) {
+            throw new IllegalArgumentException("Illegal read size limits: " + minReadMillis + ", " + maxReadMillis);
+        }
+        mMinReadMillis = minReadMillis;
+        mMaxReadMillis = maxReadMillis;
+        mReadMillis = clip(DEFAULT_START_READ_MILLIS);
+    }
+
+    public AdaptiveBufferSizer() {
+        this(DEFAULT_MIN_READ_MILLIS, DEFAULT_MAX_READ_MILLIS);
+    }
+
+    /**
+     * @return duration of a single read from the microphone
+     */
+    public int getReadMillis() {
+        return mReadMillis;
+    }
+
+    /**
+     * @return duration of the SpeechRecord buffer that matches the current read size
+     */
+    public int getBufferMillis() {
+        return BUFFER_READS * mReadMillis;
+    }
+
+    /**
+     * Called by the recorder after each read.
+     *
+     * @param intervalMillis time since the previous read
+     * @param isOverrun      true if the interval was so long that the SpeechRecord buffer overran
+     * @return true iff the read size was changed
+     */
+    synchronized boolean onRead(long intervalMillis, boolean isOverrun) {
+        if (isOverrun) {
+            return grow("overrun after " + intervalMillis + " ms");
+        }
+        mNumReadsInWindow++;
+        if (intervalMillis * 100 > LATE_PERCENT * mReadMillis) {
+            mNumLateReadsInWindow++;
+        }
+        if (mNumReadsInWindow < WINDOW_SIZE) {
+            return false;
+        }
+        int latePercent = 100 * mNumLateReadsInWindow / mNumReadsInWindow;
+        if (latePercent > MAX_LATE_PERCENT_IN_WINDOW) {
+            return grow(latePercent + "% late reads");
+        }
+        boolean isCalm = mNumLateReadsInWindow == 0;
+        resetWindow();
+        if (!isCalm) {
+            // the calm windows must be consecutive
+            mNumCalmWindows = 0;
+        } else if (++mNumCalmWindows >= NUM_CALM_WINDOWS_BEFORE_SHRINK) {
+            mNumCalmWindows = 0;
+            return setReadMillis(mReadMillis / 2, "no late reads");
+        }
+        return false;
+    }
+
+    /**
+     * Restores the read size that was stored for this device model.
+     */
+    public void load(SharedPreferences prefs) {
+        int readMillis = prefs.getInt(getPrefKey(), 0);
+        if (readMillis > 0) {
+            mReadMillis = clip(readMillis);
+            Log.i("BufferSizer: loaded read size " + mReadMillis + " ms for " + Build.MODEL);
+        }
+    }
+
+    /**
+     * Stores the current read size for this device model.
+     */
+    public void save(SharedPreferences prefs) {
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putInt(getPrefKey(), mReadMillis);
+        editor.apply();
+    }
+
+    private boolean grow(String reason) {
+        mNumCalmWindows = 0;
+        resetWindow();
+        return setReadMillis(2 * mReadMillis, reason);
+    }
+
+    private boolean setReadMillis(int readMillis, String reason) {
+        int oldReadMillis = mReadMillis;
+        mReadMillis = clip(readMillis);
+        if (oldReadMillis == mReadMillis) {
+            return false;
+        }
+        Log.i("BufferSizer: read size: " + oldReadMillis + " -> " + mReadMillis + " ms (" + reason + ")");
+        return true;
+    }
+
+    private void resetWindow() {
+        mNumReadsInWindow = 0;
+        mNumLateReadsInWindow = 0;
+    }
+
+    private int clip(int readMillis) {
+        return Math.max(mMinReadMillis, Math.min(mMaxReadMillis, readMillis));
+    }
+
+    private static String getPrefKey() {
+        return PREF_PREFIX + Build.MANUFACTURER + "/" + Build.MODEL;
+    }
+}
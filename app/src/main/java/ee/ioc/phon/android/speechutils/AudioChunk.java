@@ -0,0 +1,39 @@
+package ee.ioc.phon.android.speechutils;
+
+/**
+ * A piece of consumed audio together with its absolute position in the recording and the gap
+ * (if any) that precedes it. With {@link AbstractAudioRecorder.GapPolicy#INSERT_SILENCE} the gap
+ * has been filled with silence at the beginning of the bytes, i.e. the chunk starts at the first
+ * lost sample, unless the gap is longer than the recording buffer, in which case only the end of
+ * the gap (as much as the recording buffer) has been filled.
+ */
+public class AudioChunk {
+
+    private final byte[] mBytes;
+    private final long mPosition;
+    private final AudioGap mGap;
+
+    public AudioChunk(byte[] bytes, long position, AudioGap gap) {
+        mBytes = bytes;
+        mPosition = position;
+        mGap = gap;
+    }
+
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return absolute position (in samples) of the first sample of the chunk
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return gap between the previously consumed chunk and this chunk, or null if there is no gap
+     */
+    public AudioGap getGap() {
+        return mGap;
+    }
+}
@@ -14,6 +14,7 @@ public class AudioCue {
     private final int mStartSound;
     private final int mStopSound;
     private final int mErrorSound;
+    private int mStartSoundMillis = 0;
 
     public AudioCue(Context context) {
         mContext = context;
@@ -30,11 +31,20 @@ public class AudioCue {
     }
 
     public void playStartSoundAndSleep() {
-        if (playSound(mStartSound)) {
+        mStartSoundMillis = Math.max(0, playSound(mStartSound));
+        if (mStartSoundMillis > 0) {
             SystemClock.sleep(DELAY_AFTER_START_BEEP);
         }
     }
 
+    /**
+     * @return duration of the start sound in milliseconds (without the delay after it),
+     * or 0 if it was not played
+     */
+    public int getStartSoundMillis() {
+        return mStartSoundMillis;
+    }
+
 
     public void playStopSound() {
         playSound(mStopSound);
@@ -46,11 +56,15 @@ public class AudioCue {
     }
 
 
-    private boolean playSound(int sound) {
+    /**
+     * @return duration of the sound in milliseconds (at least 1, also if the duration is not known),
+     * or -1 if the sound cannot be played
+     */
+    private int playSound(int sound) {
         MediaPlayer mp = MediaPlayer.create(mContext, sound);
         // create can return null, e.g. on Android Wear
         if (mp == null) {
-            return false;
+            return -1;
         }
         mp.setAudioStreamType(AudioManager.STREAM_MUSIC);
         mp.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
@@ -59,8 +73,9 @@ public class AudioCue {
                 mp.release();
             }
         });
+        int duration = mp.getDuration();
         mp.start();
-        return true;
+        return Math.max(duration, 1);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,50 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ee.ioc.phon.android.speechutils.codec.AudioEncoder;
+import ee.ioc.phon.android.speechutils.codec.MuLawAudioEncoder;
+import ee.ioc.phon.android.speechutils.codec.PcmAudioEncoder;
+
+/**
+ * Maps the encoder types (see AbstractRecognitionService#getEncoderType, compared ignoring case)
+ * to the factories of their encoders. Registered by default: the MediaCodec types of
+ * {@link MediaFormatFactory.Type} that can be streamed ("audio/x-flac", "audio/ogg",
+ * "audio/AMR-WB"), PCM passthrough ("audio/x-raw") and mu-law ("audio/x-mulaw").
+ * Apps can register additional encoders, or replace the default ones.
+ */
+public final class AudioEncoderRegistry {
+
+    private static final Map<String, AudioEncoder.Factory> FACTORIES = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        for (MediaFormatFactory.Type type : MediaFormatFactory.Type.values()) {
+            if (type.getContentType() != null) {
+                FACTORIES.put(type.getContentType(), new MediaCodecAudioEncoder.Factory(type));
+            }
+        }
+        FACTORIES.put(PcmAudioEncoder.ENCODER_TYPE, new PcmAudioEncoder.Factory());
+        FACTORIES.put(MuLawAudioEncoder.ENCODER_TYPE, new MuLawAudioEncoder.Factory());
+    }
+
+    private AudioEncoderRegistry() {
+    }
+
+    public static synchronized void register(String encoderType, AudioEncoder.Factory factory) {
+        FACTORIES.put(encoderType, factory);
+    }
+
+    /**
+     * @return factory of the encoders of the given type, or null if the type is not registered
+     */
+    public static synchronized AudioEncoder.Factory get(String encoderType) {
+        return encoderType == null ? null : FACTORIES.get(encoderType);
+    }
+
+    public static synchronized List<String> getEncoderTypes() {
+        return new ArrayList<>(FACTORIES.keySet());
+    }
+}
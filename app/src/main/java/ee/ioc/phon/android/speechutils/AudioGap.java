@@ -0,0 +1,45 @@
+package ee.ioc.phon.android.speechutils;
+
+/**
+ * Describes audio that was lost between two consecutive pieces of consumed audio.
+ * Positions and lengths are in samples, counted from the creation of the recorder.
+ */
+public class AudioGap {
+
+    public enum Reason {
+        // the recorder overwrote audio in the cyclic recording buffer before it was consumed
+        CONSUMER_OVERRUN,
+        // the frame reader was overtaken by the recorder
+        FRAME_READER_OVERRUN
+    }
+
+    private final long mPosition;
+    private final long mNumLostSamples;
+    private final Reason mReason;
+
+    public AudioGap(long position, long numLostSamples, Reason reason) {
+        mPosition = position;
+        mNumLostSamples = numLostSamples;
+        mReason = reason;
+    }
+
+    /**
+     * @return absolute position (in samples) of the first lost sample
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    public long getNumLostSamples() {
+        return mNumLostSamples;
+    }
+
+    public Reason getReason() {
+        return mReason;
+    }
+
+    @Override
+    public String toString() {
+        return mReason + ": lost " + mNumLostSamples + " samples at " + mPosition;
+    }
+}
@@ -0,0 +1,112 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps the recorders of the finished sessions, so that the next session with the same
+ * audio source, sample rate and format can reuse the recorder's buffers (which can take
+ * megabytes) instead of allocating new ones.
+ * <p/>
+ * A recycled recorder is released, i.e. it does not hold the microphone while it is idle.
+ * It is reset (see {@link AbstractAudioRecorder#reset()}) when it is acquired again.
+ * The total size of the buffers of the idle recorders is bounded; if a recycled recorder
+ * does not fit then the least recently recycled recorders are dropped.
+ */
+public class AudioRecorderPool {
+
+    public static final int DEFAULT_MAX_IDLE_BYTES = 4 * 1024 * 1024;
+
+    private static class Entry {
+        private final String mKey;
+        private final AbstractAudioRecorder mRecorder;
+        private final int mSize;
+
+        private Entry(String key, AbstractAudioRecorder recorder) {
+            mKey = key;
+            mRecorder = recorder;
+            mSize = recorder.getArenaSize();
+        }
+    }
+
+    private final int mMaxIdleBytes;
+
+    // Idle recorders, the least recently recycled first
+    private final LinkedList<Entry> mIdle = new LinkedList<>();
+    private int mIdleBytes = 0;
+
+    public AudioRecorderPool(int maxIdleBytes) {
+        mMaxIdleBytes = maxIdleBytes;
+    }
+
+    public AudioRecorderPool() {
+        this(DEFAULT_MAX_IDLE_BYTES);
+    }
+
+    /**
+     * @param audioSource audio source
+     * @param sampleRate  sample rate
+     * @param format      format of the recording (e.g. the encoder MIME type, or null for raw audio)
+     * @return key that identifies the recorders that can be used interchangeably
+     */
+    public static String getKey(int audioSource, int sampleRate, String format) {
+        return audioSource + "/" + sampleRate + "/" + format;
+    }
+
+    /**
+     * Takes the most recently recycled recorder with the given key out of the pool, and resets it.
+     *
+     * @return recorder in the READY state, or null if there is no idle recorder with the given key
+     * (or it could not be reset)
+     */
+    public synchronized AbstractAudioRecorder acquire(String key) {
+        Iterator<Entry> iterator = mIdle.descendingIterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.mKey.equals(key)) {
+                iterator.remove();
+                mIdleBytes -= entry.mSize;
+                entry.mRecorder.reset();
+                if (entry.mRecorder.getState() == AudioRecorder.State.READY) {
+                    Log.i("RecorderPool: reused: " + key);
+                    return entry.mRecorder;
+                }
+                Log.e("RecorderPool: reset failed: " + key);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases the given recorder and keeps it in the pool (unless it alone exceeds the
+     * maximum idle size). The caller must not use the recorder afterwards.
+     */
+    public synchronized void recycle(String key, AbstractAudioRecorder recorder) {
+        recorder.release();
+        Entry entry = new Entry(key, recorder);
+        if (entry.mSize > mMaxIdleBytes) {
+            return;
+        }
+        mIdle.addLast(entry);
+        mIdleBytes += entry.mSize;
+        while (mIdleBytes > mMaxIdleBytes) {
+            mIdleBytes -= mIdle.removeFirst().mSize;
+        }
+    }
+
+    /**
+     * @return total size of the buffers of the idle recorders in bytes
+     */
+    public synchronized int getIdleBytes() {
+        return mIdleBytes;
+    }
+
+    /**
+     * Drops all the idle recorders.
+     */
+    public synchronized void clear() {
+        mIdle.clear();
+        mIdleBytes = 0;
+    }
+}
@@ -0,0 +1,297 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.content.SharedPreferences;
+import android.media.AudioFormat;
+import android.media.MediaRecorder;
+import android.media.audiofx.AcousticEchoCanceler;
+import android.media.audiofx.AutomaticGainControl;
+import android.media.audiofx.NoiseSuppressor;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Audio capture capabilities of the device: the supported sample rates and their minimum
+ * SpeechRecord buffer sizes, the audio sources that can be opened, and the availability of the
+ * audio effects.
+ * <p/>
+ * Probing opens (but does not start) a SpeechRecord for every audio source, and is therefore
+ * slow, and requires the RECORD_AUDIO permission. It is done once, and the result is stored
+ * in the preferences, keyed by the build fingerprint and the SDK version, i.e. the device is
+ * probed again after a system update. Once loaded, the capabilities are kept in memory
+ * (see {@link #getCached()}) and the recorders use them instead of querying the platform.
+ */
+public class CaptureCapabilities {
+
+    private static final int[] SAMPLE_RATES = {8000, 11025, 16000, 22050, 44100, 48000};
+
+    // In the order of preference
+    private static final int[] AUDIO_SOURCES = {
+            MediaRecorder.AudioSource.VOICE_RECOGNITION,
+            MediaRecorder.AudioSource.MIC,
+            MediaRecorder.AudioSource.VOICE_COMMUNICATION,
+            MediaRecorder.AudioSource.CAMCORDER,
+            MediaRecorder.AudioSource.DEFAULT
+    };
+
+    // Sample rate used when probing the audio sources
+    private static final int PROBE_SAMPLE_RATE = 16000;
+
+    private static final String PREF_PREFIX = "speechutils/captureCapabilities/";
+
+    private static final String KEY_MIN_BUFFER_SIZES = "minBufferSizes";
+    private static final String KEY_AUDIO_SOURCES = "audioSources";
+    private static final String KEY_NOISE_SUPPRESSOR = "noiseSuppressor";
+    private static final String KEY_AUTOMATIC_GAIN_CONTROL = "automaticGainControl";
+    private static final String KEY_ACOUSTIC_ECHO_CANCELER = "acousticEchoCanceler";
+
+    private static volatile CaptureCapabilities sCached;
+    // True while getAsync is loading or probing
+    private static final AtomicBoolean sIsLoading = new AtomicBoolean(false);
+
+    // Sample rate -> min buffer size in bytes (only supported sample rates)
+    private final Map<Integer, Integer> mMinBufferSizes;
+    private final List<Integer> mAudioSources;
+    private final boolean mIsNoiseSuppressorAvailable;
+    private final boolean mIsAutomaticGainControlAvailable;
+    private final boolean mIsAcousticEchoCancelerAvailable;
+
+    private CaptureCapabilities(Map<Integer, Integer> minBufferSizes, List<Integer> audioSources,
+                                boolean noise, boolean gain, boolean echo) {
+        mMinBufferSizes = Collections.unmodifiableMap(minBufferSizes);
+        mAudioSources = Collections.unmodifiableList(audioSources);
+        mIsNoiseSuppressorAvailable = noise;
+        mIsAutomaticGainControlAvailable = gain;
+        mIsAcousticEchoCancelerAvailable = echo;
+    }
+
+    /**
+     * @return capabilities that were loaded or probed in this process, or null if there are none
+     */
+    public static CaptureCapabilities getCached() {
+        return sCached;
+    }
+
+    /**
+     * Returns the capabilities of this device. They are loaded from the given preferences,
+     * or probed (and stored) if the preferences do not contain them for the current
+     * build of the device. Should not be called on the main thread, as probing can take
+     * hundreds of milliseconds. Concurrent calls wait for the same probe.
+     */
+    public static synchronized CaptureCapabilities get(SharedPreferences prefs) {
+        CaptureCapabilities caps = sCached;
+        if (caps == null) {
+            caps = load(prefs);
+            if (caps == null) {
+                caps = probe();
+                // If no audio source could be opened (e.g. the permission is missing) then probe again next time
+                if (!caps.getAudioSources().isEmpty()) {
+                    caps.save(prefs);
+                }
+            }
+            sCached = caps;
+        }
+        return caps;
+    }
+
+    /**
+     * Like {@link #get(SharedPreferences)} but loads or probes the capabilities on a background
+     * thread, i.e. can be called on the main thread. Does nothing if the capabilities are cached
+     * already, or are being loaded.
+     */
+    public static void getAsync(final SharedPreferences prefs) {
+        if (sCached != null || !sIsLoading.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    get(prefs);
+                } finally {
+                    sIsLoading.set(false);
+                }
+            }
+        }, "CaptureCapabilities").start();
+    }
+
+    /**
+     * Probes the device.
+     */
+    public static CaptureCapabilities probe() {
+        long startTime = System.currentTimeMillis();
+        Map<Integer, Integer> minBufferSizes = new HashMap<>();
+        for (int sampleRate : SAMPLE_RATES) {
+            int minBufferSize = SpeechRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+            if (minBufferSize > 0) {
+                minBufferSizes.put(sampleRate, minBufferSize);
+            }
+        }
+        List<Integer> audioSources = new ArrayList<>();
+        Integer probeBufferSize = minBufferSizes.get(PROBE_SAMPLE_RATE);
+        if (probeBufferSize != null) {
+            for (int audioSource : AUDIO_SOURCES) {
+                if (isWorking(audioSource, probeBufferSize)) {
+                    audioSources.add(audioSource);
+                }
+            }
+        }
+        boolean noise = false;
+        boolean gain = false;
+        boolean echo = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            noise = NoiseSuppressor.isAvailable();
+            gain = AutomaticGainControl.isAvailable();
+            echo = AcousticEchoCanceler.isAvailable();
+        }
+        CaptureCapabilities caps = new CaptureCapabilities(minBufferSizes, audioSources, noise, gain, echo);
+        Log.i("CaptureCapabilities: probed in " + (System.currentTimeMillis() - startTime) + " ms: " + caps);
+        return caps;
+    }
+
+    /**
+     * @return capabilities stored for the current build of the device, or null if there are none
+     */
+    public static CaptureCapabilities load(SharedPreferences prefs) {
+        String json = prefs.getString(getPrefKey(), null);
+        if (json == null) {
+            return null;
+        }
+        try {
+            JSONObject obj = new JSONObject(json);
+            Map<Integer, Integer> minBufferSizes = new HashMap<>();
+            JSONObject sizes = obj.getJSONObject(KEY_MIN_BUFFER_SIZES);
+            for (int sampleRate : SAMPLE_RATES) {
+                String key = String.valueOf(sampleRate);
+                if (sizes.has(key)) {
+                    minBufferSizes.put(sampleRate, sizes.getInt(key));
+                }
+            }
+            List<Integer> audioSources = new ArrayList<>();
+            JSONArray sources = obj.getJSONArray(KEY_AUDIO_SOURCES);
+            for (int i = 0; i < sources.length(); i++) {
+                audioSources.add(sources.getInt(i));
+            }
+            return new CaptureCapabilities(minBufferSizes, audioSources,
+                    obj.getBoolean(KEY_NOISE_SUPPRESSOR),
+                    obj.getBoolean(KEY_AUTOMATIC_GAIN_CONTROL),
+                    obj.getBoolean(KEY_ACOUSTIC_ECHO_CANCELER));
+        } catch (JSONException e) {
+            Log.e("CaptureCapabilities: ignoring stored value: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the capabilities for the current build of the device.
+     */
+    public void save(SharedPreferences prefs) {
+        try {
+            SharedPreferences.Editor editor = prefs.edit();
+            editor.putString(getPrefKey(), toJson().toString());
+            editor.apply();
+        } catch (JSONException e) {
+            Log.e("CaptureCapabilities: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return min buffer size in bytes for 16-bit mono audio, or 0 if the sample rate is not
+     * supported (or was not probed)
+     */
+    public int getMinBufferSize(int sampleRate) {
+        Integer size = mMinBufferSizes.get(sampleRate);
+        return size == null ? 0 : size;
+    }
+
+    public boolean isSampleRateSupported(int sampleRate) {
+        return mMinBufferSizes.containsKey(sampleRate);
+    }
+
+    /**
+     * @return audio sources that could be opened, in the order of preference
+     */
+    public List<Integer> getAudioSources() {
+        return mAudioSources;
+    }
+
+    /**
+     * @return the given audio source if it is known to work, otherwise the most preferred working
+     * audio source, or the given audio source if none are known to work
+     */
+    public int getWorkingAudioSource(int audioSource) {
+        if (mAudioSources.isEmpty() || mAudioSources.contains(audioSource)) {
+            return audioSource;
+        }
+        return mAudioSources.get(0);
+    }
+
+    public boolean isNoiseSuppressorAvailable() {
+        return mIsNoiseSuppressorAvailable;
+    }
+
+    public boolean isAutomaticGainControlAvailable() {
+        return mIsAutomaticGainControlAvailable;
+    }
+
+    public boolean isAcousticEchoCancelerAvailable() {
+        return mIsAcousticEchoCancelerAvailable;
+    }
+
+    @Override
+    public String toString() {
+        return "minBufferSizes: " + mMinBufferSizes
+                + ", audioSources: " + mAudioSources
+                + ", NS/AGC/AEC: " + mIsNoiseSuppressorAvailable + "/" + mIsAutomaticGainControlAvailable + "/" + mIsAcousticEchoCancelerAvailable;
+    }
+
+    private JSONObject toJson() throws JSONException {
+        JSONObject sizes = new JSONObject();
+        for (Map.Entry<Integer, Integer> entry : mMinBufferSizes.entrySet()) {
+            sizes.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        JSONArray sources = new JSONArray();
+        for (int audioSource : mAudioSources) {
+            sources.put(audioSource);
+        }
+        JSONObject obj = new JSONObject();
+        obj.put(KEY_MIN_BUFFER_SIZES, sizes);
+        obj.put(KEY_AUDIO_SOURCES, sources);
+        obj.put(KEY_NOISE_SUPPRESSOR, mIsNoiseSuppressorAvailable);
+        obj.put(KEY_AUTOMATIC_GAIN_CONTROL, mIsAutomaticGainControlAvailable);
+        obj.put(KEY_ACOUSTIC_ECHO_CANCELER, mIsAcousticEchoCancelerAvailable);
+        return obj;
+    }
+
+    /**
+     * Opens the given audio source without starting the recording.
+     */
+    private static boolean isWorking(int audioSource, int bufferSize) {
+        SpeechRecord recorder = null;
+        try {
+            recorder = new SpeechRecord(audioSource, PROBE_SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+            return recorder.getState() == SpeechRecord.STATE_INITIALIZED;
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.i("CaptureCapabilities: audio source " + audioSource + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (recorder != null) {
+                recorder.release();
+            }
+        }
+    }
+
+    private static String getPrefKey() {
+        return PREF_PREFIX + Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT;
+    }
+}
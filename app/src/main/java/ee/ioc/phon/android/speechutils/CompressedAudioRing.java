@@ -0,0 +1,261 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.util.Arrays;
+
+import ee.ioc.phon.android.speechutils.codec.ImaAdpcm;
+import ee.ioc.phon.android.speechutils.codec.MuLaw;
+
+/**
+ * Cyclic buffer that stores 16-bit mono audio in compressed blocks, e.g. to keep a long history
+ * of audio in the background for hotword hand-off. IMA ADPCM keeps about 4 times, and mu-law
+ * 2 times, more audio than raw PCM in the same amount of memory.
+ * <p/>
+ * Audio is encoded block by block as it is written, and decoded block by block as it is read.
+ * Positions are counted in samples from the creation (or reset) of the ring. All the memory
+ * is allocated in the constructor, i.e. writing and reading do not allocate.
+ * <p/>
+ * The reader decodes outside of the lock that the writer needs, i.e. the writer (typically the
+ * recorder thread) only waits for the copying of a compressed block. Concurrent reads are serialized.
+ */
+public class CompressedAudioRing {
+
+    public enum Format {
+        IMA_ADPCM, MU_LAW
+    }
+
+    // 505 samples fit into a 256-byte ADPCM block (as in WAV files)
+    private static final int ADPCM_SAMPLES_PER_BLOCK = 505;
+    private static final int MU_LAW_SAMPLES_PER_BLOCK = 512;
+
+    private final Format mFormat;
+    private final int mSampleRate;
+    private final int mSamplesPerBlock;
+    private final int mBlockSize;
+    private final int mNumBlocks;
+    private final byte[] mBlocks;
+
+    // Samples of the block that is currently being filled
+    private final short[] mPending;
+    private int mNumPending = 0;
+    // Number of complete (encoded) blocks
+    private long mNumBlocksWritten = 0;
+    private int mStepIndex = 0;
+    // Number of resets, i.e. positions are comparable only within the same count
+    private int mNumResets = 0;
+
+    // Read state (guarded by mReadLock): compressed copy of the block that is being decoded,
+    // copy of the pending samples, and the most recently decoded block (-1 if none)
+    private final Object mReadLock = new Object();
+    private final byte[] mReadBlock;
+    private final short[] mReadPending;
+    private final short[] mDecoded;
+    private long mDecodedBlock = -1;
+
+    /**
+     * @param format         compression format
+     * @param sampleRate     sample rate of the audio (used to convert between time and samples)
+     * @param lengthInMillis how much audio the ring should hold
+     */
+    public CompressedAudioRing(Format format, int sampleRate, int lengthInMillis) {
+        mFormat = format;
+        mSampleRate = sampleRate;
+        if (format == Format.IMA_ADPCM) {
+            mSamplesPerBlock = ADPCM_SAMPLES_PER_BLOCK;
+            mBlockSize = ImaAdpcm.getBlockSize(mSamplesPerBlock);
+        } else {
+            mSamplesPerBlock = MU_LAW_SAMPLES_PER_BLOCK;
+            mBlockSize = mSamplesPerBlock;
+        }
+        long numSamples = (long) sampleRate * lengthInMillis / 1000;
+        mNumBlocks = (int) Math.max(1, (numSamples + mSamplesPerBlock - 1) / mSamplesPerBlock);
+        mBlocks = new byte[mNumBlocks * mBlockSize];
+        mPending = new short[mSamplesPerBlock];
+        mReadBlock = new byte[mBlockSize];
+        mReadPending = new short[mSamplesPerBlock];
+        mDecoded = new short[mSamplesPerBlock];
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return memory used by the compressed blocks
+     */
+    public int getSizeInBytes() {
+        return mBlocks.length;
+    }
+
+    /**
+     * @return length of the history that the ring can hold
+     */
+    public int getLengthInMillis() {
+        return (int) (1000L * mNumBlocks * mSamplesPerBlock / mSampleRate);
+    }
+
+    /**
+     * @return total number of samples written, i.e. the position that follows the newest sample
+     */
+    public synchronized long getLength() {
+        return mNumBlocksWritten * mSamplesPerBlock + mNumPending;
+    }
+
+    /**
+     * @return number of times the ring has been reset, e.g. to check that a position obtained
+     * earlier still refers to the same audio
+     */
+    public synchronized int getNumResets() {
+        return mNumResets;
+    }
+
+    /**
+     * @return position of the oldest sample that is still in the ring
+     */
+    public synchronized long getOldestPosition() {
+        return Math.max(0, mNumBlocksWritten - mNumBlocks) * mSamplesPerBlock;
+    }
+
+    public void reset() {
+        synchronized (mReadLock) {
+            synchronized (this) {
+                mNumPending = 0;
+                mNumBlocksWritten = 0;
+                mStepIndex = 0;
+                mNumResets++;
+            }
+            mDecodedBlock = -1;
+        }
+    }
+
+    /**
+     * Appends the given samples.
+     */
+    public synchronized void write(short[] src, int srcPos, int numSamples) {
+        for (int i = 0; i < numSamples; i++) {
+            mPending[mNumPending++] = src[srcPos + i];
+            if (mNumPending == mSamplesPerBlock) {
+                flushPending();
+            }
+        }
+    }
+
+    /**
+     * Appends the given 16-bit little-endian PCM bytes.
+     */
+    public synchronized void write(byte[] pcm, int offset, int numBytes) {
+        for (int i = offset; i < offset + numBytes - 1; i += 2) {
+            mPending[mNumPending++] = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+            if (mNumPending == mSamplesPerBlock) {
+                flushPending();
+            }
+        }
+    }
+
+    /**
+     * Decodes the samples starting from the given position into the given array. Samples that
+     * are older than the oldest sample in the ring are returned as silence.
+     *
+     * @return number of samples that were copied, which is less than requested if the range
+     * extends past the newest sample
+     */
+    public int read(long position, short[] dst, int dstPos, int numSamples) {
+        synchronized (mReadLock) {
+            long end = Math.min(position + numSamples, getLength());
+            int numRead = getNumSilent(position, end);
+            Arrays.fill(dst, dstPos, dstPos + numRead, (short) 0);
+            for (long pos = position + numRead; pos < end; ) {
+                long block = pos / mSamplesPerBlock;
+                int offset = (int) (pos - block * mSamplesPerBlock);
+                int len = (int) Math.min(mSamplesPerBlock - offset, end - pos);
+                short[] samples = getBlock(block, offset, len);
+                if (samples == null) {
+                    Arrays.fill(dst, dstPos + numRead, dstPos + numRead + len, (short) 0);
+                } else {
+                    System.arraycopy(samples, offset, dst, dstPos + numRead, len);
+                }
+                numRead += len;
+                pos += len;
+            }
+            return numRead;
+        }
+    }
+
+    /**
+     * Like {@link #read(long, short[], int, int)} but writes 16-bit little-endian PCM.
+     *
+     * @return number of samples (not bytes) that were copied
+     */
+    public int read(long position, byte[] dst, int offset, int numSamples) {
+        synchronized (mReadLock) {
+            long end = Math.min(position + numSamples, getLength());
+            int numRead = getNumSilent(position, end);
+            Arrays.fill(dst, offset, offset + 2 * numRead, (byte) 0);
+            for (long pos = position + numRead; pos < end; ) {
+                long block = pos / mSamplesPerBlock;
+                int from = (int) (pos - block * mSamplesPerBlock);
+                int len = (int) Math.min(mSamplesPerBlock - from, end - pos);
+                short[] samples = getBlock(block, from, len);
+                int out = offset + 2 * numRead;
+                if (samples == null) {
+                    Arrays.fill(dst, out, out + 2 * len, (byte) 0);
+                } else {
+                    for (int i = from; i < from + len; i++) {
+                        dst[out++] = (byte) samples[i];
+                        dst[out++] = (byte) (samples[i] >> 8);
+                    }
+                }
+                numRead += len;
+                pos += len;
+            }
+            return numRead;
+        }
+    }
+
+    /**
+     * @return number of samples at the beginning of the range that are no longer in the ring
+     */
+    private int getNumSilent(long position, long end) {
+        return (int) Math.max(0, Math.min(end, getOldestPosition()) - position);
+    }
+
+    /**
+     * Copies the given block under the lock, and decodes it outside of the lock (needs mReadLock).
+     * The block can be overwritten by the writer while the reader is still working on the range.
+     *
+     * @return decoded samples of the given block (or a copy of the given range of the pending samples
+     * if the block is incomplete), or null if the block is no longer in the ring
+     */
+    private short[] getBlock(long block, int from, int len) {
+        synchronized (this) {
+            if (block < mNumBlocksWritten - mNumBlocks) {
+                return null;
+            }
+            if (block == mNumBlocksWritten) {
+                System.arraycopy(mPending, from, mReadPending, from, len);
+                return mReadPending;
+            }
+            if (block == mDecodedBlock) {
+                return mDecoded;
+            }
+            System.arraycopy(mBlocks, (int) (block % mNumBlocks) * mBlockSize, mReadBlock, 0, mBlockSize);
+        }
+        if (mFormat == Format.IMA_ADPCM) {
+            ImaAdpcm.decodeBlock(mReadBlock, 0, mDecoded, 0, mSamplesPerBlock);
+        } else {
+            MuLaw.decode(mReadBlock, 0, mDecoded, 0, mSamplesPerBlock);
+        }
+        mDecodedBlock = block;
+        return mDecoded;
+    }
+
+    private void flushPending() {
+        int blockPos = (int) (mNumBlocksWritten % mNumBlocks) * mBlockSize;
+        if (mFormat == Format.IMA_ADPCM) {
+            mStepIndex = ImaAdpcm.encodeBlock(mPending, 0, mSamplesPerBlock, mBlocks, blockPos, mStepIndex);
+        } else {
+            MuLaw.encode(mPending, 0, mBlocks, blockPos, mSamplesPerBlock);
+        }
+        mNumBlocksWritten++;
+        mNumPending = 0;
+    }
+}
@@ -1,7 +1,16 @@
 package ee.ioc.phon.android.speechutils;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import ee.ioc.phon.android.speechutils.codec.WavWriter;
 import ee.ioc.phon.android.speechutils.utils.AudioUtils;
 
 /**
@@ -38,43 +47,80 @@ import ee.ioc.phon.android.speechutils.utils.AudioUtils;
  * time units). Once this time gap increases above X, the do not share the same session anymore
  * and the user can choose what to do with this state (start over, start from a number of millis
  * back etc...)
+ * The audio that was lost in this way is reported as an AudioGap (see consumeChunk), and
+ * depending on the GapPolicy it can also be replaced by silence, or it can stop the recorder.
  */
 public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
 
     private static final int DEFAULT_BUFFER_LENGTH_IN_MILLIS = 2000;
     private static final String LOG_FILTER = "continuous-recorder: ";
+    // When resuming from the oldest audio after an overrun, keep away from the part of the buffer
+    // that the recorder is about to overwrite
+    private static final int OVERRUN_MARGIN_IN_MILLIS = 100;
+
+    // Length of the frames of the energy history
+    private static final int ENERGY_FRAME_IN_MILLIS = 10;
+
+    // Time after which the idle snapshot thread exits
+    private static final long SNAPSHOT_THREAD_KEEP_ALIVE_MILLIS = 10000;
+
+    // Copies the snapshots and writes them to disk, one after the other, off the calling thread.
+    // The thread is a daemon (i.e. does not keep the process alive), and exits when idle.
+    private static final ThreadPoolExecutor SNAPSHOT_EXECUTOR = new ThreadPoolExecutor(1, 1,
+            SNAPSHOT_THREAD_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ContinuousRawAudioRecorder-snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        SNAPSHOT_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
 
     private SessionStartPointer mSessionStartPointer = SessionStartPointer.beginningOfBuffer();
     private final AtomicBoolean mRecordingToFile = new AtomicBoolean(false);
+    private final int mRecordingBufferLengthMillis;
+    // Length of the history (the recording buffer or the lookback ring, whichever is longer)
+    private volatile int mHistoryMillis;
+
+    // Optional compressed history that extends the raw recording buffer into the past
+    // (replaced while the recorder thread is writing into it, hence volatile)
+    private volatile CompressedAudioRing mLookbackRing;
+    // Absolute position (in bytes) of the recording that corresponds to the start of the lookback ring
+    private volatile long mLookbackStartPosition;
+
+    // Energy of the recent frames, used to align session starts to silence
+    // (replaced together with the lookback ring)
+    private volatile EnergyHistory mEnergyHistory;
 
     public static class SessionStartPointer {
 
-        private int mSessionStartPointerMillis;
-        private static SessionStartPointer mBeginningOfBufferPosition = new SessionStartPointer(Integer.MIN_VALUE);
-        private static SessionStartPointer mNowPosition = new SessionStartPointer(0);
+        private final int mSessionStartPointerMillis;
+        // If positive then the start is moved back (within this window) to the nearest silence
+        private int mSilenceSearchWindowMillis = 0;
+        // The pointers are shared by all the recorders, i.e. they do not depend on the buffer length
+        private static final SessionStartPointer mBeginningOfBufferPosition = new SessionStartPointer(Integer.MIN_VALUE);
+        private static final SessionStartPointer mNowPosition = new SessionStartPointer(0);
 
         private SessionStartPointer(int sessionStartPointerMillis) {
-            setSessionStartPointerMillis(sessionStartPointerMillis);
-        }
-
-        private void setSessionStartPointerMillis(int sessionStartPointerMillis) {
             mSessionStartPointerMillis = sessionStartPointerMillis;
         }
 
-        int getSessionStartPointerMillis() {
-            // in case that no one set the buffer length, return start pointer as now
-            if (this == mBeginningOfBufferPosition && mSessionStartPointerMillis == Integer.MIN_VALUE)
-                return mNowPosition.getSessionStartPointerMillis();
-
-            // in case that the requested start pointer is bigger than the buffer, return the buffer size
-            if (this != mBeginningOfBufferPosition && mSessionStartPointerMillis < mBeginningOfBufferPosition.getSessionStartPointerMillis())
-                return mBeginningOfBufferPosition.getSessionStartPointerMillis();
-
-            return mSessionStartPointerMillis;
+        /**
+         * @param historyMillis length of the history of the recorder
+         * @return start pointer, where the beginning of the buffer (and a start pointer that is
+         * further back than the beginning) is the beginning of the history of the recorder
+         */
+        int getSessionStartPointerMillis(int historyMillis) {
+            return Math.max(mSessionStartPointerMillis, -Math.abs(historyMillis));
         }
 
-        static void setRecordingBufferLengthMillis(int recordingBufferLengthMillis) {
-            mBeginningOfBufferPosition.setSessionStartPointerMillis(-Math.abs(recordingBufferLengthMillis));
+        int getSilenceSearchWindowMillis() {
+            return mSilenceSearchWindowMillis;
         }
 
         public static SessionStartPointer beginningOfBuffer() {
@@ -93,6 +139,17 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
             return new SessionStartPointer(-Math.abs(secondsBackToStartTheSessionFrom * 1000));
         }
 
+        /**
+         * Starts the session some millis back, but then moves the start further back (at most
+         * searchWindowMillis) to the nearest frame of silence, so that the session does not start
+         * in the middle of a sound.
+         */
+        public static SessionStartPointer someMillisBackAtSilence(int millisBackToStartTheSessionFrom, int searchWindowMillis) {
+            SessionStartPointer sessionStartPointer = someMillisBack(millisBackToStartTheSessionFrom);
+            sessionStartPointer.mSilenceSearchWindowMillis = Math.abs(searchWindowMillis);
+            return sessionStartPointer;
+        }
+
         public static SessionStartPointer someMillisForward(int millisForwardToStartTheSessionFrom) {
             return new SessionStartPointer(Math.abs(millisForwardToStartTheSessionFrom));
         }
@@ -111,10 +168,14 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
     }
 
     public ContinuousRawAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis) {
-        super(audioSource, sampleRate, recordingBufferLengthMillis, true);
+        this(audioSource, sampleRate, recordingBufferLengthMillis, null);
+    }
 
-        // this is very important. We introduce the buffer length to the SessionStartPointer object
-        SessionStartPointer.setRecordingBufferLengthMillis(recordingBufferLengthMillis);
+    public ContinuousRawAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis, AdaptiveBufferSizer bufferSizer) {
+        super(audioSource, sampleRate, recordingBufferLengthMillis, true, bufferSizer);
+        mRecordingBufferLengthMillis = recordingBufferLengthMillis;
+        mHistoryMillis = recordingBufferLengthMillis;
+        mEnergyHistory = new EnergyHistory(sampleRate, ENERGY_FRAME_IN_MILLIS, recordingBufferLengthMillis, 0);
 
         try {
             int bufferSize = getBufferSize();
@@ -152,7 +213,73 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
         return this;
     }
 
+    /**
+     * Keeps a longer history of the audio in the given compressed ring, in addition to the (shorter)
+     * raw recording buffer. Audio that is older than the raw buffer is then transparently decoded
+     * from the ring when a session starts further back in the past (e.g. someSecondsBack(30)),
+     * or when dumping the buffer. The ring should be set before the recording is started.
+     */
+    public ContinuousRawAudioRecorder setLookbackRing(CompressedAudioRing lookbackRing) {
+        mLookbackStartPosition = getTotalRecordedLength();
+        mLookbackRing = lookbackRing;
+        int lookbackMillis = lookbackRing == null ? 0 : lookbackRing.getLengthInMillis();
+        int historyMillis = Math.max(mRecordingBufferLengthMillis, lookbackMillis);
+        mHistoryMillis = historyMillis;
+        mEnergyHistory = new EnergyHistory(getSampleRate(), ENERGY_FRAME_IN_MILLIS, historyMillis, mLookbackStartPosition / RESOLUTION_IN_BYTES);
+        return this;
+    }
+
+    /**
+     * Also clears the lookback ring and the energy history.
+     */
+    @Override
+    protected synchronized void clearRecording() {
+        super.clearRecording();
+        if (mLookbackRing != null) {
+            mLookbackRing.reset();
+        }
+        setLookbackRing(mLookbackRing);
+    }
+
+    @Override
+    protected void onAudioRecorded(byte[] buffer, int offset, int numOfBytes) {
+        mEnergyHistory.add(buffer, offset, numOfBytes);
+        CompressedAudioRing lookbackRing = mLookbackRing;
+        if (lookbackRing != null) {
+            lookbackRing.write(buffer, offset, numOfBytes);
+        }
+    }
+
+    /**
+     * @return number of bytes of history, including the lookback ring
+     */
+    private int getHistoryLength() {
+        CompressedAudioRing lookbackRing = mLookbackRing;
+        if (lookbackRing == null) {
+            return mRecording.length;
+        }
+        return Math.max(mRecording.length, getNumOfSamplesIn(lookbackRing.getLengthInMillis()));
+    }
+
+    /**
+     * @return number of bytes that can be safely copied from the raw recording buffer
+     */
+    private int getRawHistoryLength(int currentLength) {
+        if (!mRecordingBufferIsFullWithData) {
+            return currentLength;
+        }
+        return Math.max(mRecording.length / 2, mRecording.length - getNumOfSamplesIn(OVERRUN_MARGIN_IN_MILLIS));
+    }
+
     private int calculateNumOfSamplesToGoBack(int startPos) {
+        // if the consumer was overrun and the lost audio is going to be replaced by silence,
+        // continue from the oldest audio in the buffer (so that the silence can be followed
+        // by the audio that immediately follows it)
+        if (isConsumerOverrun() && getGapPolicy() == GapPolicy.INSERT_SILENCE) {
+            Log.i(LOG_FILTER + "Consumer was overrun. Grabbing the data from the oldest position");
+            return Math.max(mRecording.length / 2, mRecording.length - getNumOfSamplesIn(OVERRUN_MARGIN_IN_MILLIS));
+        }
+
         // if the consumed session is not the same as the recorded session
         // get the data from the beginning of the buffer/desired session start pointer
         if (!isRecordedSessionSameAsConsumedSession()) {
@@ -160,18 +287,20 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
 
             // there are cases in which due to delay in the recorder wrt the real world, we will need
             // to wait for the exact moment. The session start point should be based on trial and error
-            if (mSessionStartPointer.getSessionStartPointerMillis() > 0) {
+            int historyMillis = mHistoryMillis;
+            int sessionStartPointerMillis = mSessionStartPointer.getSessionStartPointerMillis(historyMillis);
+            if (sessionStartPointerMillis > 0) {
                 try {
-                    Thread.sleep(mSessionStartPointer.getSessionStartPointerMillis());
+                    Thread.sleep(sessionStartPointerMillis);
                 }
                 catch (InterruptedException e) {}
 
-                return getNumOfSamplesIn(SessionStartPointer.now().getSessionStartPointerMillis());
+                return getNumOfSamplesIn(SessionStartPointer.now().getSessionStartPointerMillis(historyMillis));
             }
 
-            int numOfSamplesToGoBack = getNumOfSamplesIn(mSessionStartPointer.getSessionStartPointerMillis());
-            if (numOfSamplesToGoBack > mRecording.length)
-                return getNumOfSamplesIn(SessionStartPointer.beginningOfBuffer().getSessionStartPointerMillis());
+            int numOfSamplesToGoBack = getNumOfSamplesIn(sessionStartPointerMillis);
+            if (numOfSamplesToGoBack > getHistoryLength())
+                return getNumOfSamplesIn(SessionStartPointer.beginningOfBuffer().getSessionStartPointerMillis(historyMillis));
 
             return numOfSamplesToGoBack;
         }
@@ -192,6 +321,8 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
 
     @Override
     protected byte[] getCurrentRecording(int startPos) {
+        boolean isNewSession = !isRecordedSessionSameAsConsumedSession()
+                && !(isConsumerOverrun() && getGapPolicy() == GapPolicy.INSERT_SILENCE);
 
         int numOfSamplesToGoBack = calculateNumOfSamplesToGoBack(startPos);
         if (numOfSamplesToGoBack <= 0) {
@@ -199,48 +330,182 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
             return null;
         }
 
-        return getCurrentRecordingFrom(numOfSamplesToGoBack);
+        int currentLength = getLength();
+        setCopiedLength(currentLength);
+        if (isNewSession && mSessionStartPointer.getSilenceSearchWindowMillis() > 0) {
+            numOfSamplesToGoBack = alignToSilence(numOfSamplesToGoBack, toPosition(currentLength));
+        }
+        return getCurrentRecordingFrom(numOfSamplesToGoBack, currentLength);
+    }
+
+    /**
+     * Moves the session start back to the nearest silence (within the search window of the
+     * session start pointer), using the energy history.
+     *
+     * @param numOfSamplesToGoBack number of bytes to go back from the end position
+     * @param endPosition          absolute position (in bytes) that corresponds to the current length
+     * @return number of bytes to go back so that the session starts at a silence
+     */
+    private int alignToSilence(int numOfSamplesToGoBack, long endPosition) {
+        long startSample = (endPosition - numOfSamplesToGoBack) / RESOLUTION_IN_BYTES;
+        int windowSamples = getNumOfSamplesIn(mSessionStartPointer.getSilenceSearchWindowMillis()) / RESOLUTION_IN_BYTES;
+        long silenceSample = mEnergyHistory.findSilenceBefore(startSample, windowSamples);
+        if (silenceSample < 0) {
+            Log.i(LOG_FILTER + "No energy history available, cannot align the session start to silence");
+            return numOfSamplesToGoBack;
+        }
+        long alignedNumOfSamplesToGoBack = endPosition - silenceSample * RESOLUTION_IN_BYTES;
+        Log.i(LOG_FILTER + "Session start aligned to silence: " + numOfSamplesToGoBack + " -> " + alignedNumOfSamplesToGoBack + " bytes back");
+        return (int) Math.min(alignedNumOfSamplesToGoBack, getHistoryLength());
     }
 
-    private byte[] getCurrentRecordingFrom(int numOfSamplesToGoBack) {
+    /**
+     * Copies the given number of bytes that precede the given length of the recording,
+     * decoding the part that is older than the raw recording buffer from the lookback ring.
+     * Does not change the consumer state.
+     */
+    private byte[] getCurrentRecordingFrom(int numOfSamplesToGoBack, int currentLength) {
         byte[] buffer = new byte[numOfSamplesToGoBack];
-        int currentLength = getLength();
+
+        // the part that is older than the raw recording buffer is decoded from the lookback ring
+        CompressedAudioRing lookbackRing = mLookbackRing;
+        int numOfRawSamples = getNumOfRawSamples(numOfSamplesToGoBack, currentLength, lookbackRing);
+        int numOfLookbackSamples = numOfSamplesToGoBack - numOfRawSamples;
+        if (numOfLookbackSamples > 0) {
+            long lookbackStart = toPosition(currentLength) - numOfSamplesToGoBack - mLookbackStartPosition;
+            readLookback(lookbackRing, lookbackStart, buffer, numOfLookbackSamples);
+        }
+
+        copyFromRecording(currentLength, numOfRawSamples, buffer, numOfLookbackSamples);
+        return buffer;
+    }
+
+    /**
+     * @return how many of the given number of bytes that precede the given length of the recording
+     * are in the raw recording buffer, the rest is in the given lookback ring (if any)
+     */
+    private int getNumOfRawSamples(int numOfSamplesToGoBack, int currentLength, CompressedAudioRing lookbackRing) {
+        if (lookbackRing == null) {
+            return numOfSamplesToGoBack;
+        }
+        return Math.min(numOfSamplesToGoBack, getRawHistoryLength(currentLength));
+    }
+
+    /**
+     * Decodes the given number of bytes from the given position (in bytes) of the lookback ring
+     * into the beginning of the buffer.
+     */
+    private void readLookback(CompressedAudioRing lookbackRing, long lookbackStart, byte[] buffer, int numOfLookbackSamples) {
+        Log.i(LOG_FILTER + "Decoding " + numOfLookbackSamples + " bytes from the lookback ring position: " + lookbackStart);
+        lookbackRing.read(lookbackStart / RESOLUTION_IN_BYTES, buffer, 0, numOfLookbackSamples / RESOLUTION_IN_BYTES);
+    }
+
+    /**
+     * Copies the given number of bytes that precede the given length of the recording into the buffer.
+     */
+    private void copyFromRecording(int currentLength, int numOfSamplesToGoBack, byte[] buffer, int offset) {
         int potentialStartSample = currentLength - numOfSamplesToGoBack;
 
         if (potentialStartSample >= 0) {
             Log.i(LOG_FILTER + "Start sample in the recording is a positive one. Copying from position: " + potentialStartSample + ", " + numOfSamplesToGoBack + " bytes");
-            System.arraycopy(mRecording, potentialStartSample, buffer, 0, numOfSamplesToGoBack);
+            System.arraycopy(mRecording, potentialStartSample, buffer, offset, numOfSamplesToGoBack);
         }
         else {
             if (!mRecordingBufferIsFullWithData) {
                 Log.i(LOG_FILTER + "Start sample in the recording is a negative one. The buffer did not pass one cycle yet. Copying from position: 0, " + currentLength + " bytes");
-                System.arraycopy(mRecording, 0, buffer, 0, currentLength);
+                System.arraycopy(mRecording, 0, buffer, offset, currentLength);
             }
             else {
                 // the potential start sample is out of the boundaries of the array to the negative side
                 potentialStartSample = Math.abs(potentialStartSample);
                 Log.i(LOG_FILTER + "Start sample in the recording is a negative one. The buffer passed at least one cycle. Copying from position: " + (mRecording.length - potentialStartSample) + ", " + potentialStartSample + " bytes and from position: 0, " + currentLength + " bytes");
-                System.arraycopy(mRecording, mRecording.length - potentialStartSample, buffer, 0, potentialStartSample);
-                System.arraycopy(mRecording, 0, buffer, potentialStartSample, currentLength);
+                System.arraycopy(mRecording, mRecording.length - potentialStartSample, buffer, offset, potentialStartSample);
+                System.arraycopy(mRecording, 0, buffer, offset + potentialStartSample, currentLength);
             }
         }
-
-        return buffer;
     }
 
     public byte[] pcmToWav(byte[] pcm) {
         return AudioUtils.getRecordingAsWav(pcm, getSampleRate(), RESOLUTION_IN_BYTES, CHANNELS);
     }
 
-    private byte[] createWavHeader(int pcmDataLength) {
-        return AudioUtils.getWavHeader(pcmDataLength, getSampleRate(), RESOLUTION_IN_BYTES, CHANNELS);
+    private void savePcmAsWavToFile(String wavFileFullPath, byte[] pcm) {
+        AudioUtils.savePcmAsWavToFile(wavFileFullPath, pcm, 0, pcm.length, getSampleRate(), RESOLUTION_IN_BYTES, CHANNELS);
     }
 
+    /**
+     * Saves the complete buffer (including the lookback ring) into the given WAV file.
+     * Does not affect the consumption of the recording.
+     */
     public void dumpBufferToWavFile(String wavFileFullPath) {
-        SessionStartPointer sessionStartPointer = mSessionStartPointer;
-        setSessionStartPointer(SessionStartPointer.beginningOfBuffer());
-        AudioUtils.saveWavToFile(wavFileFullPath, pcmToWav(consumeRecording()), false);
-        setSessionStartPointer(sessionStartPointer);
+        savePcmAsWavToFile(wavFileFullPath, getSnapshot(getHistoryLength()));
+    }
+
+    /**
+     * Saves the given span of the most recent audio into the given WAV file. Returns immediately,
+     * i.e. can be called e.g. from the UI thread: the raw audio is copied on the calling thread,
+     * and the part that is older than the raw recording buffer is decoded from the lookback ring
+     * (i.e. the snapshot ends with the audio that has been recorded at the time of the call), and
+     * written on a background thread. If the lookback ring is reset (e.g. by a new recording)
+     * before it is decoded then that part is saved as silence. Does not affect the consumption
+     * of the recording.
+     *
+     * @param spanMillis      length of the most recent audio to save (clipped to the available audio)
+     * @param wavFileFullPath WAV file to (over)write
+     * @return future that completes when the file has been written
+     */
+    public Future<?> snapshotAsync(int spanMillis, final String wavFileFullPath) {
+        final byte[] pcm;
+        final CompressedAudioRing lookbackRing;
+        final long lookbackStart;
+        final int numOfLookbackSamples;
+        final int numResets;
+        synchronized (this) {
+            int currentLength = getLength();
+            lookbackRing = mLookbackRing;
+            pcm = new byte[getSnapshotLength(getNumOfSamplesIn(spanMillis), currentLength, lookbackRing)];
+            int numOfRawSamples = getNumOfRawSamples(pcm.length, currentLength, lookbackRing);
+            numOfLookbackSamples = pcm.length - numOfRawSamples;
+            lookbackStart = toPosition(currentLength) - pcm.length - mLookbackStartPosition;
+            numResets = lookbackRing == null ? 0 : lookbackRing.getNumResets();
+            copyFromRecording(currentLength, numOfRawSamples, pcm, numOfLookbackSamples);
+        }
+        return SNAPSHOT_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (numOfLookbackSamples > 0) {
+                    readLookback(lookbackRing, lookbackStart, pcm, numOfLookbackSamples);
+                    if (lookbackRing.getNumResets() != numResets) {
+                        Log.e(LOG_FILTER + "Lookback ring was reset during the snapshot, saving silence instead");
+                        Arrays.fill(pcm, 0, numOfLookbackSamples, (byte) 0);
+                    }
+                }
+                savePcmAsWavToFile(wavFileFullPath, pcm);
+            }
+        });
+    }
+
+    /**
+     * @return copy of the given number of bytes of the most recent audio (or less if less is available)
+     */
+    private byte[] getSnapshot(int numOfBytes) {
+        int currentLength = getLength();
+        return getCurrentRecordingFrom(getSnapshotLength(numOfBytes, currentLength, mLookbackRing), currentLength);
+    }
+
+    /**
+     * @return the given number of bytes, or less if less of the most recent audio is available
+     */
+    private int getSnapshotLength(int numOfBytes, int currentLength, CompressedAudioRing lookbackRing) {
+        int available;
+        if (lookbackRing == null) {
+            available = getRawHistoryLength(currentLength);
+        } else {
+            available = (int) Math.min(getHistoryLength(), getTotalRecordedLength() - mLookbackStartPosition);
+        }
+        int numOfBytesToCopy = Math.min(numOfBytes, available);
+        Log.i(LOG_FILTER + "Snapshot of " + numOfBytesToCopy + " bytes");
+        return numOfBytesToCopy;
     }
 
     public void startRecording(final String wavFileFullPath) {
@@ -254,35 +519,43 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
                 if (!mRecordingToFile.get())
                     return;
 
-                int pcmDataLength = 0;
-                byte[] pcmData;
-                AtomicBoolean firstBuffer = new AtomicBoolean(true);
-
-                while(mRecordingToFile.get()) {
-
-                    // No need to endlessly poll the recording. It will work without the sleep well but
-                    // every 50ms is also good (keeps the CPU happier than without the sleep)
-                    try {
-                        Thread.sleep(50L);
+                // The header is written with the first audio, and updated with the final size at the end
+                // (also if the recording exceeds 4 GB, in which case the file becomes RF64)
+                FileOutputStream out = null;
+                try {
+                    out = new FileOutputStream(wavFileFullPath);
+                    WavWriter writer = new WavWriter(out.getChannel(), getSampleRate(), CHANNELS, 8 * RESOLUTION_IN_BYTES);
+                    byte[] pcmData;
+                    while (mRecordingToFile.get()) {
+
+                        // No need to endlessly poll the recording. It will work without the sleep well but
+                        // every 50ms is also good (keeps the CPU happier than without the sleep)
+                        try {
+                            Thread.sleep(50L);
+                        } catch (InterruptedException e) {
+                            mRecordingToFile.set(false);
+                            break;
+                        }
+
+                        pcmData = consumeRecording();
+                        if (pcmData == null || pcmData.length == 0)
+                            continue;
+
+                        writer.write(pcmData, 0, pcmData.length);
                     }
-                    catch (InterruptedException e) {
-                        mRecordingToFile.set(false);
-                        return;
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e("Could not save a recording to " + wavFileFullPath + " due to: " + e.getMessage());
+                    mRecordingToFile.set(false);
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            Log.e("Could not close " + wavFileFullPath + ": " + e.getMessage());
+                        }
                     }
-
-                    pcmData = consumeRecording();
-                    if (pcmData == null || pcmData.length == 0)
-                        continue;
-
-                    pcmDataLength += pcmData.length;
-                    if (firstBuffer.compareAndSet(true, false))
-                        AudioUtils.saveWavToFile(wavFileFullPath, pcmToWav(pcmData), false);
-                    else
-                        AudioUtils.saveWavToFile(wavFileFullPath, pcmData, true);
                 }
-
-                //now rewrite the wav header according to the new size
-                AudioUtils.saveWavHeaderToFile(wavFileFullPath, createWavHeader(pcmDataLength));
             }
         }).start();
     }
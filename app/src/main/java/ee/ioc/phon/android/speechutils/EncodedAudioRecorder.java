@@ -16,39 +16,94 @@
 
 package ee.ioc.phon.android.speechutils;
 
-import android.annotation.TargetApi;
-import android.media.MediaCodec;
-import android.media.MediaFormat;
-import android.os.Build;
-
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.List;
 
-import ee.ioc.phon.android.speechutils.utils.AudioUtils;
+import ee.ioc.phon.android.speechutils.codec.AudioEncoder;
+import ee.ioc.phon.android.speechutils.codec.FlacAudioEncoder;
 
 /**
  * Based on https://android.googlesource.com/platform/cts/+/jb-mr2-release/tests/tests/media/src/android/media/cts/EncoderTest.java
- * Requires Android v4.1 / API 16 / JELLY_BEAN
- * TODO: support other formats than FLAC
+ * Encodes the audio with the {@link AudioEncoder} created by the given factory, e.g. with MediaCodec
+ * ({@link MediaCodecAudioEncoder}, requires Android v4.1 / API 16 / JELLY_BEAN), or with one of
+ * the pure Java encoders. The MediaCodec types can be FLAC (streamed as it is), Opus (wrapped
+ * into Ogg) or AMR-WB (in the AMR storage format). If the FLAC encoder cannot be configured
+ * (e.g. the device has no FLAC codec) then the audio is encoded with {@link FlacAudioEncoder}.
  */
 public class EncodedAudioRecorder extends AbstractAudioRecorder {
 
-    // Stop encoding if output buffer has not been available that many times.
-    private static final int MAX_NUM_RETRIES_DEQUEUE_OUTPUT_BUFFER = 500;
+    // Max number of times in a row that the encoder can refuse input
+    private static final int MAX_NUM_RETRIES_FEED = 500;
 
-    // Time period to dequeue a buffer
-    private static final long DEQUEUE_TIMEOUT = 10000;
+    private AudioEncoder.Factory mEncoderFactory;
+    private final String mContentType;
 
-    // TODO: Use queue of byte[]
-    private final byte[] mRecordingEnc;
-    private int mRecordedEncLength = 0;
-    private int mConsumedEncLength = 0;
+    // Encoded audio that has not been consumed yet
+    private final EncodedChunkQueue mChunks = new EncodedChunkQueue();
 
     private int mNumBytesSubmitted = 0;
     private int mNumBytesDequeued = 0;
 
+    private final EncoderMetrics mEncoderMetrics = new EncoderMetrics();
+
+    // Length of the capture ring (0 if capture and encoding run on the same thread)
+    private int mCaptureRingMillis = 0;
+    // Capture ring of the current (or last) recording (null if not pipelined), and the absolute position
+    // of the recording (in bytes) that corresponds to the beginning of the ring
+    private PcmRing mCaptureRing;
+    private long mCaptureRingStart;
+    // Absolute position (in bytes) of the input that the encoder read last
+    private long mInputPosition;
+
     public EncodedAudioRecorder(int audioSource, int sampleRate) {
-        super(audioSource, sampleRate);
+        this(audioSource, sampleRate, null);
+    }
+
+    /**
+     * The buffer sizer observes the reads from the microphone, and tunes the SpeechRecord buffer.
+     * It also tunes the size of the reads, unless the encoder takes the audio straight into its
+     * input buffers (MediaCodec), in which case the size of the reads is determined by the input buffers.
+     */
+    public EncodedAudioRecorder(int audioSource, int sampleRate, AdaptiveBufferSizer bufferSizer) {
+        this(audioSource, sampleRate, bufferSizer, MediaFormatFactory.Type.FLAC);
+    }
+
+    /**
+     * Records with the MediaCodec encoder of the given type (see {@link MediaCodecAudioEncoder}).
+     *
+     * @param type encoder type, must have a content type (i.e. AAC is not supported)
+     */
+    public EncodedAudioRecorder(int audioSource, int sampleRate, AdaptiveBufferSizer bufferSizer, MediaFormatFactory.Type type) {
+        this(audioSource, sampleRate, bufferSizer, new MediaCodecAudioEncoder.Factory(type));
+    }
+
+    /**
+     * Records with the encoders created by the given factory (e.g. from {@link AudioEncoderRegistry}).
+     */
+    public EncodedAudioRecorder(int audioSource, int sampleRate, AdaptiveBufferSizer bufferSizer, AudioEncoder.Factory factory) {
+        this(audioSource, sampleRate, bufferSizer, factory, RawPolicy.FULL, DEFAULT_BUFFER_LENGTH_IN_MILLIS);
+    }
+
+    /**
+     * Records with the encoders created by the given factory, and keeps the raw audio according to
+     * the given policy. By default the raw audio is kept as well (for 35 seconds, after which
+     * the recording stops), which costs an extra copy of every buffer and the memory of
+     * the recording buffer. Sessions that only consume the encoded audio can keep no raw audio
+     * (NONE), or only a window of the most recent audio (WINDOW), e.g. a second or two for
+     * the volume ({@link #getRmsdb()}) and the pause detection ({@link #isPausing()}).
+     * In both cases the length of the recording is not limited by the recording buffer.
+     *
+     * @param rawWindowMillis length of the raw recording buffer (ignored if the policy is NONE)
+     * @throws IllegalArgumentException if the stream of the factory has no content type
+     */
+    public EncodedAudioRecorder(int audioSource, int sampleRate, AdaptiveBufferSizer bufferSizer, AudioEncoder.Factory factory,
+                                RawPolicy rawPolicy, int rawWindowMillis) {
+        super(audioSource, sampleRate, rawPolicy, rawWindowMillis, bufferSizer);
+        mEncoderFactory = factory;
+        mContentType = factory.getContentType(sampleRate);
+        if (mContentType == null) {
+            throw new IllegalArgumentException("Unsupported encoder type: " + factory);
+        }
         try {
             int bufferSize = getBufferSize();
             createRecorder(audioSource, sampleRate, bufferSize);
@@ -62,8 +117,6 @@ public class EncodedAudioRecorder extends AbstractAudioRecorder {
                 handleError(e.getMessage());
             }
         }
-        // TODO: replace 35 with the max length of the recording
-        mRecordingEnc = new byte[RESOLUTION_IN_BYTES * CHANNELS * sampleRate * 35]; // 35 sec raw
     }
 
     public EncodedAudioRecorder(int sampleRate) {
@@ -75,205 +128,395 @@ public class EncodedAudioRecorder extends AbstractAudioRecorder {
     }
 
     /**
-     * TODO: the MIME should be configurable as the server might not support all formats
-     * (returning "Your GStreamer installation is missing a plug-in.")
+     * @return the query of the WebSocket URL, which declares the content type of the encoder
      * TODO: according to the server docs, for encoded data we do not need to specify the content type
      * such as "audio/x-flac", but it did not work without (nor with "audio/flac").
      */
     public String getWsArgs() {
-        return "?content-type=audio/x-flac";
+        return "?content-type=" + mContentType;
+    }
+
+    /**
+     * Maps the presentation timestamp of an encoded chunk to the absolute sample position of the
+     * recording (see {@link #getPosition()}), e.g. to find the raw audio of the chunk, or to resume
+     * an upload from the given chunk. (Exact, since the timestamps are rounded down to microseconds.)
+     *
+     * @param presentationTimeUs presentation timestamp of an encoded chunk
+     * @return absolute position of the first sample encoded in the chunk
+     */
+    public long getSamplePosition(long presentationTimeUs) {
+        return (presentationTimeUs * getSampleRate() + 999999) / 1000000;
+    }
+
+    @Override
+    protected synchronized void clearRecording() {
+        super.clearRecording();
+        mChunks.clear();
+    }
+
+    /**
+     * The encoder would keep encoding the discarded audio, so the SpeechRecord is stopped in standby.
+     */
+    @Override
+    protected boolean isStandbyCapturingSupported() {
+        return false;
     }
 
+    @Override
+    public int getArenaSize() {
+        return super.getArenaSize() + mChunks.getCapacity() + (mCaptureRingMillis > 0 ? getCaptureRingCapacity() : 0);
+    }
+
+    /**
+     * @return number of bytes in the capture ring, at least two reads from the microphone
+     */
+    private int getCaptureRingCapacity() {
+        return Math.max(getNumOfSamplesIn(mCaptureRingMillis), getBufferSize() / 2 * 2);
+    }
+
+    /**
+     * Runs the encoder on its own thread, which takes the audio from a ring of the given length
+     * that the recorder thread fills. Otherwise (0, the default) the recorder thread reads the
+     * microphone only when the encoder takes input, i.e. a stalled encoder stalls the reading,
+     * and the audio that the SpeechRecord buffer cannot hold meanwhile is lost. With the ring
+     * the microphone is read without waiting for the encoder, and the encoder catches up with
+     * the backlog (also after the recording has been stopped). If the encoder falls behind by more
+     * than the ring then the audio that does not fit is replaced by silence in the encoded audio
+     * (the raw recording keeps it), so that the timestamps stay aligned with the recording.
+     * See {@link EncoderMetrics} for the backlog and the dropped audio.
+     * Must be called before the recording is started.
+     */
+    public EncodedAudioRecorder setCaptureRingMillis(int captureRingMillis) {
+        mCaptureRingMillis = captureRingMillis;
+        return this;
+    }
+
+    public int getCaptureRingMillis() {
+        return mCaptureRingMillis;
+    }
+
+    /**
+     * Selects how MediaCodec is driven: asynchronously, i.e. with callbacks on a dedicated
+     * handler thread (the default on API 21+), or with the synchronous polling loop, e.g. to
+     * compare the two with {@link #getEncoderMetrics()}. Must be called before the recording is
+     * started. Ignored below API 21, and if the encoder factory is not a MediaCodec one.
+     */
+    public EncodedAudioRecorder setAsync(boolean isAsync) {
+        if (mEncoderFactory instanceof MediaCodecAudioEncoder.Factory) {
+            MediaFormatFactory.Type type = ((MediaCodecAudioEncoder.Factory) mEncoderFactory).getType();
+            mEncoderFactory = new MediaCodecAudioEncoder.Factory(type, isAsync);
+        }
+        return this;
+    }
+
+    public boolean isAsync() {
+        return mEncoderFactory instanceof MediaCodecAudioEncoder.Factory
+                && ((MediaCodecAudioEncoder.Factory) mEncoderFactory).isAsync();
+    }
+
+    /**
+     * @return counters describing the encoding of the current (or last) recording
+     */
+    public EncoderMetrics getEncoderMetrics() {
+        return mEncoderMetrics;
+    }
+
+    /**
+     * The consumed encoded audio is not kept, i.e. this is the same as {@link #consumeRecordingEnc()}.
+     */
     public synchronized byte[] consumeRecordingEncAndTruncate() {
-        int len = getConsumedEncLength();
-        byte[] bytes = getCurrentRecordingEnc(len);
-        setRecordedEncLength(0);
-        setConsumedEncLength(0);
-        return bytes;
+        return consumeRecordingEnc();
     }
 
     /**
      * @return bytes that have been recorded and encoded since this method was last called
      */
     public synchronized byte[] consumeRecordingEnc() {
-        byte[] bytes = getCurrentRecordingEnc(getConsumedEncLength());
-        setConsumedEncLength(getRecordedEncLength());
+        byte[] bytes = mChunks.drainBytes();
+        Log.i("Consumed encoded: " + bytes.length + " bytes");
         return bytes;
     }
 
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    /**
+     * Takes the oldest unconsumed encoded chunk, e.g. to stream the chunks one by one together
+     * with their timestamps. The chunk should be returned with {@link #recycle(EncodedChunk)} after use.
+     *
+     * @return oldest unconsumed chunk, or null if there is none
+     */
+    public EncodedChunk pollEncodedChunk() {
+        return mChunks.poll();
+    }
+
+    /**
+     * Returns the given chunk (obtained with {@link #pollEncodedChunk()}) for reuse.
+     */
+    public void recycle(EncodedChunk chunk) {
+        mChunks.recycle(chunk);
+    }
+
     @Override
     protected void recorderLoop(SpeechRecord speechRecord) {
         mNumBytesSubmitted = 0;
         mNumBytesDequeued = 0;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-            MediaFormat format = MediaFormatFactory.createMediaFormat(MediaFormatFactory.Type.FLAC, getSampleRate());
-            List<String> componentNames = AudioUtils.getEncoderNamesForType(format.getString(MediaFormat.KEY_MIME));
-            for (String componentName : componentNames) {
-                Log.i("component/format: " + componentName + "/" + format);
-                MediaCodec codec = AudioUtils.createCodec(componentName, format);
-                if (codec != null) {
-                    recorderEncoderLoop(codec, speechRecord);
-                    if (Log.DEBUG) {
-                        AudioUtils.showMetrics(format, mNumBytesSubmitted, mNumBytesDequeued);
+        mEncoderMetrics.reset();
+        if (mCaptureRingMillis > 0) {
+            captureLoop(speechRecord);
+        } else {
+            mCaptureRing = null;
+            encoderLoop(speechRecord);
+        }
+    }
+
+    /**
+     * Reads the microphone into the capture ring, while the encoder thread encodes the audio from
+     * the ring. The audio that does not fit into the ring is replaced by silence as soon as there
+     * is room for it. Waits for the encoder to finish after the recording has stopped.
+     * If the encoder thread exits while recording (i.e. the encoder failed) then the capture
+     * stops with an error, rather than dropping the audio into the ring that nobody reads.
+     */
+    private void captureLoop(final SpeechRecord speechRecord) {
+        ByteBuffer pcm = ByteBuffer.allocateDirect(getBufferSize() / 2);
+        int capacity = getCaptureRingCapacity();
+        PcmRing ring = mCaptureRing;
+        if (ring == null || ring.getCapacity() != capacity) {
+            ring = new PcmRing(capacity);
+        } else {
+            ring.reset();
+        }
+        mCaptureRingStart = getTotalRecordedLength();
+        mCaptureRing = ring;
+        Thread encoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encoderLoop(speechRecord);
+            }
+        }, "EncodedAudioRecorder");
+        encoderThread.start();
+        int numPendingSilence = 0;
+        try {
+            while (speechRecord.getRecordingState() == SpeechRecord.RECORDSTATE_RECORDING) {
+                if (!encoderThread.isAlive()) {
+                    if (getState() != State.ERROR) {
+                        handleError("enc: encoder thread exited");
                     }
-                    break; // TODO: we use the first one that is suitable
+                    break;
                 }
+                pcm.clear();
+                pcm.limit(getReadSize(pcm.capacity()));
+                int size = read(speechRecord, pcm);
+                if (size < 0) {
+                    handleError("status = " + size);
+                    break;
+                }
+                adaptBuffer();
+                if (size == 0) {
+                    continue;
+                }
+                pcm.clear();
+                pcm.limit(size);
+                // the silence that replaces the dropped audio must come first
+                numPendingSilence -= ring.writeSilence(numPendingSilence);
+                int numDroppedBytes = numPendingSilence > 0 ? size : size - ring.write(pcm);
+                numPendingSilence += numDroppedBytes;
+                mEncoderMetrics.onCapture(numDroppedBytes, ring.available());
             }
+        } finally {
+            ring.close();
+        }
+        try {
+            encoderThread.join();
+        } catch (InterruptedException e) {
+            Log.e("enc: interrupted");
+            Thread.currentThread().interrupt();
+        }
+        if (numPendingSilence > 0) {
+            Log.e("enc: capture ring: dropped at the end: " + numPendingSilence + " bytes");
         }
     }
 
-
-    private int getConsumedEncLength() {
-        return mConsumedEncLength;
+    /**
+     * Encodes the audio with an encoder of the factory.
+     */
+    private void encoderLoop(SpeechRecord speechRecord) {
+        AudioEncoder encoder;
+        try {
+            encoder = createEncoder();
+        } catch (IOException e) {
+            handleError("enc: " + e.getMessage());
+            return;
+        }
+        recorderAudioEncoderLoop(encoder, speechRecord);
+        Log.i("Encoder metrics (async: " + isAsync() + "): " + mEncoderMetrics + ", submitted/dequeued: " + mNumBytesSubmitted + "/" + mNumBytesDequeued);
     }
 
-    private void setConsumedEncLength(int len) {
-        mConsumedEncLength = len;
+    /**
+     * @return configured encoder of the factory, or the Java FLAC encoder if the FLAC encoder
+     * of the factory cannot be configured
+     */
+    private AudioEncoder createEncoder() throws IOException {
+        AudioEncoder encoder = mEncoderFactory.create();
+        try {
+            encoder.configure(getSampleRate());
+            return encoder;
+        } catch (IOException e) {
+            encoder.release();
+            if (encoder instanceof FlacAudioEncoder || !FlacAudioEncoder.ENCODER_TYPE.equals(mContentType)) {
+                throw e;
+            }
+            Log.i("No FLAC encoder available (" + e.getMessage() + "), falling back to the Java encoder");
+            encoder = new FlacAudioEncoder();
+            encoder.configure(getSampleRate());
+            return encoder;
+        }
     }
 
-    private void setRecordedEncLength(int len) {
-        mRecordedEncLength = len;
-    }
+    /**
+     * Reads bytes from the given recorder and encodes them with the given (configured) encoder,
+     * draining the encoder after every piece of input. If the encoder has input buffers then the
+     * audio is read straight into them, otherwise it is read into a buffer and fed to the encoder.
+     * The encoder is released at the end.
+     */
+    private void recorderAudioEncoderLoop(AudioEncoder encoder, SpeechRecord speechRecord) {
+        // the codec output is appended to the chunks straight from the codec buffer
+        AudioEncoder.PacketSink sink = new AudioEncoder.BufferSink() {
+            @Override
+            public void onPacket(byte[] data, int offset, int length, long presentationTimeUs, int flags) {
+                mChunks.add(data, offset, length, presentationTimeUs, flags);
+                onOutput(length, presentationTimeUs, flags);
+            }
 
-    private int getRecordedEncLength() {
-        return mRecordedEncLength;
-    }
+            @Override
+            public void onPacket(ByteBuffer data, int length, long presentationTimeUs, int flags) {
+                mChunks.add(data, length, presentationTimeUs, flags);
+                onOutput(length, presentationTimeUs, flags);
+            }
 
-    private void addEncoded(byte[] buffer) {
-        int len = buffer.length;
-        if (mRecordingEnc.length >= mRecordedEncLength + len) {
-            System.arraycopy(buffer, 0, mRecordingEnc, mRecordedEncLength, len);
-            mRecordedEncLength += len;
-        } else {
-            handleError("RecorderEnc buffer overflow: " + mRecordedEncLength);
+            private void onOutput(int length, long presentationTimeUs, int flags) {
+                boolean isConfig = (flags & AudioEncoder.FLAG_CODEC_CONFIG) != 0;
+                mEncoderMetrics.onOutput(length, isConfig ? -1 : presentationTimeUs, System.nanoTime());
+                mNumBytesDequeued += length;
+            }
+        };
+        try {
+            encoder.drain(sink);
+            if (encoder instanceof AudioEncoder.BufferInput) {
+                AudioEncoder.BufferInput bufferInput = (AudioEncoder.BufferInput) encoder;
+                int size;
+                while ((size = queueInput(encoder, bufferInput, speechRecord, sink)) >= 0) {
+                    mNumBytesSubmitted += size;
+                }
+            } else {
+                ByteBuffer pcm = ByteBuffer.allocateDirect(getBufferSize() / 2);
+                byte[] array = new byte[pcm.capacity()];
+                int size;
+                while ((size = feedInput(encoder, pcm, array, speechRecord, sink)) >= 0) {
+                    mNumBytesSubmitted += size;
+                }
+            }
+            encoder.flush(sink);
+        } catch (IOException e) {
+            handleError("enc: " + e.getMessage());
+        } finally {
+            encoder.release();
         }
     }
 
-    private byte[] getCurrentRecordingEnc(int startPos) {
-        int len = getRecordedEncLength() - startPos;
-        byte[] bytes = new byte[len];
-        System.arraycopy(mRecordingEnc, startPos, bytes, 0, len);
-        Log.i("Copied from: " + startPos + ": " + bytes.length + " bytes");
-        return bytes;
+    /**
+     * Reads the next input straight into an input buffer of the encoder, and queues it.
+     *
+     * @return number of bytes queued, or -1 if the input has ended
+     */
+    private int queueInput(AudioEncoder encoder, AudioEncoder.BufferInput bufferInput, SpeechRecord speechRecord,
+                           AudioEncoder.PacketSink sink) throws IOException {
+        ByteBuffer buffer;
+        int numRetries = 0;
+        while ((buffer = bufferInput.dequeueInputBuffer()) == null) {
+            mEncoderMetrics.onEmptyPoll();
+            encoder.drain(sink);
+            if (++numRetries > MAX_NUM_RETRIES_FEED) {
+                throw new IOException("encoder does not take input");
+            }
+        }
+        int size = readInput(speechRecord, buffer);
+        if (size < 0) {
+            // the buffer is used for the end of the stream
+            return -1;
+        }
+        long ptsUs = getPresentationTimeUs(mInputPosition);
+        bufferInput.queueInputBuffer(size, ptsUs);
+        mEncoderMetrics.onInput(size, ptsUs, System.nanoTime());
+        encoder.drain(sink);
+        return size;
     }
 
     /**
-     * Copy audio from the recorder into the encoder.
+     * Reads the next input into the given buffer, and feeds it to the encoder (via the given array).
+     *
+     * @return number of bytes fed, or -1 if the input has ended
      */
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
-    private int queueInputBuffer(MediaCodec codec, ByteBuffer[] inputBuffers, int index, SpeechRecord speechRecord) {
-        if (speechRecord == null || speechRecord.getRecordingState() != SpeechRecord.RECORDSTATE_RECORDING) {
+    private int feedInput(AudioEncoder encoder, ByteBuffer pcm, byte[] array, SpeechRecord speechRecord,
+                          AudioEncoder.PacketSink sink) throws IOException {
+        pcm.clear();
+        pcm.limit(getReadSize(pcm.capacity()));
+        int size = readInput(speechRecord, pcm);
+        if (size < 0) {
             return -1;
         }
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-            ByteBuffer inputBuffer = inputBuffers[index];
-            inputBuffer.clear();
-            int size = inputBuffer.limit();
-            byte[] buffer = new byte[size];
-            int status = read(speechRecord, buffer);
-            if (status < 0) {
-                handleError("status = " + status);
-                return -1;
+        pcm.clear();
+        pcm.get(array, 0, size);
+        long position = mInputPosition;
+        mEncoderMetrics.onInput(size, getPresentationTimeUs(position), System.nanoTime());
+        int numRetries = 0;
+        for (int pos = 0; pos < size; ) {
+            int numBytes = encoder.feed(array, pos, size - pos, getPresentationTimeUs(position + pos));
+            encoder.drain(sink);
+            if (numBytes == 0 && ++numRetries > MAX_NUM_RETRIES_FEED) {
+                throw new IOException("encoder does not take input");
             }
-            inputBuffer.put(buffer);
-            codec.queueInputBuffer(index, 0, size, 0, 0);
-            return size;
+            pos += numBytes;
         }
-        return -1;
+        return size;
     }
 
     /**
-     * Save the encoded (output) buffer into the complete encoded recording.
-     * TODO: copy directly (without the intermediate byte array)
+     * Reads the next input of the encoder into the given buffer: from the capture ring if capture
+     * and encoding are pipelined (waiting for the audio if needed), otherwise directly from
+     * the recorder (and appends it to the recording buffer). Sets the absolute position of the input.
+     *
+     * @return number of bytes read, or -1 if the input has ended
      */
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
-    private void dequeueOutputBuffer(MediaCodec codec, ByteBuffer[] outputBuffers, int index, MediaCodec.BufferInfo info) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-            ByteBuffer buffer = outputBuffers[index];
-            Log.i("size/remaining: " + info.size + "/" + buffer.remaining());
-            if (info.size <= buffer.remaining()) {
-                final byte[] bufferCopied = new byte[info.size];
-                buffer.get(bufferCopied); // TODO: catch BufferUnderflow
-                // TODO: do we need to clear?
-                // on N5: always size == remaining(), clearing is not needed
-                // on SGS2: remaining decreases until it becomes less than size, which results in BufferUnderflow
-                // (but SGS2 records only zeros anyway)
-                //buffer.clear();
-                codec.releaseOutputBuffer(index, false);
-                addEncoded(bufferCopied);
-                if (Log.DEBUG) {
-                    AudioUtils.showSomeBytes("out", bufferCopied);
+    private int readInput(SpeechRecord speechRecord, ByteBuffer buffer) {
+        PcmRing ring = mCaptureRing;
+        if (ring != null) {
+            try {
+                if (ring.await() == 0) {
+                    return -1;
                 }
-            } else {
-                Log.e("size > remaining");
-                codec.releaseOutputBuffer(index, false);
+            } catch (InterruptedException e) {
+                Log.e("enc: interrupted");
+                return -1;
             }
+            mInputPosition = mCaptureRingStart + ring.getReadPosition();
+            return ring.read(buffer);
+        }
+        if (speechRecord == null || speechRecord.getRecordingState() != SpeechRecord.RECORDSTATE_RECORDING) {
+            return -1;
+        }
+        int size = read(speechRecord, buffer);
+        if (size < 0) {
+            handleError("status = " + size);
+            return -1;
         }
+        adaptBuffer();
+        mInputPosition = getTotalRecordedLength() - size;
+        return size;
     }
 
     /**
-     * Reads bytes from the given recorder and encodes them with the given encoder.
-     * Uses the (deprecated) Synchronous Processing using Buffer Arrays.
-     * <p/>
-     * Encoders (or codecs that generate compressed data) will create and return the codec specific
-     * data before any valid output buffer in output buffers marked with the codec-config flag.
-     * Buffers containing codec-specific-data have no meaningful timestamps.
+     * @return presentation timestamp of the audio that starts at the given absolute position (in bytes)
+     * of the recording
      */
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
-    private void recorderEncoderLoop(MediaCodec codec, SpeechRecord speechRecord) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-            codec.start();
-            // Getting some buffers (e.g. 4 of each) to communicate with the codec
-            ByteBuffer[] codecInputBuffers = codec.getInputBuffers();
-            ByteBuffer[] codecOutputBuffers = codec.getOutputBuffers();
-            Log.i("input buffers " + codecInputBuffers.length + "; output buffers: " + codecOutputBuffers.length);
-            boolean doneSubmittingInput = false;
-            int numRetriesDequeueOutputBuffer = 0;
-            int index;
-            while (true) {
-                if (!doneSubmittingInput) {
-                    index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT);
-                    if (index >= 0) {
-                        int size = queueInputBuffer(codec, codecInputBuffers, index, speechRecord);
-                        if (size == -1) {
-                            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                            Log.i("enc: in: EOS");
-                            doneSubmittingInput = true;
-                        } else {
-                            Log.i("enc: in: " + size);
-                            mNumBytesSubmitted += size;
-                        }
-                    } else {
-                        Log.i("enc: in: timeout, will try again");
-                    }
-                }
-                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT);
-                Log.i("enc: out: flags/index: " + info.flags + "/" + index);
-                if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    Log.i("enc: out: INFO_TRY_AGAIN_LATER: " + numRetriesDequeueOutputBuffer);
-                    if (++numRetriesDequeueOutputBuffer > MAX_NUM_RETRIES_DEQUEUE_OUTPUT_BUFFER) {
-                        break;
-                    }
-                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    MediaFormat format = codec.getOutputFormat();
-                    Log.i("enc: out: INFO_OUTPUT_FORMAT_CHANGED: " + format.toString());
-                } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    codecOutputBuffers = codec.getOutputBuffers();
-                    Log.i("enc: out: INFO_OUTPUT_BUFFERS_CHANGED");
-                } else {
-                    dequeueOutputBuffer(codec, codecOutputBuffers, index, info);
-                    mNumBytesDequeued += info.size;
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        Log.i("enc: out: EOS");
-                        break;
-                    }
-                }
-            }
-            codec.stop();
-            codec.release();
-        }
+    private long getPresentationTimeUs(long numBytes) {
+        return 1000000L * numBytes / (RESOLUTION_IN_BYTES * CHANNELS) / getSampleRate();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,57 @@
+package ee.ioc.phon.android.speechutils;
+
+/**
+ * A piece of encoded audio as produced by the encoder in one output buffer, i.e. it is aligned
+ * with the codec frames, together with its presentation timestamp and codec flags.
+ * Chunks are recycled by {@link EncodedChunkQueue}, i.e. the data array can be larger
+ * than the chunk, and a chunk must not be used after it has been recycled.
+ */
+public class EncodedChunk {
+
+    private byte[] mData;
+    private int mLength;
+    private long mPresentationTimeUs;
+    private int mFlags;
+
+    EncodedChunk(int capacity) {
+        mData = new byte[capacity];
+    }
+
+    /**
+     * @return array whose first {@link #getLength()} bytes are the encoded audio
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return time of the first encoded sample, counted from the start of the recording
+     * (i.e. the creation or reset of the recorder), in microseconds. The recorder maps it to the
+     * sample position of the raw recording, see {@link EncodedAudioRecorder#getSamplePosition(long)}.
+     * For container output (e.g. Ogg pages) it is the time of the packet that started the page.
+     */
+    public long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    /**
+     * @return MediaCodec buffer flags (e.g. BUFFER_FLAG_CODEC_CONFIG)
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    int getCapacity() {
+        return mData.length;
+    }
+
+    void set(int length, long presentationTimeUs, int flags) {
+        mLength = length;
+        mPresentationTimeUs = presentationTimeUs;
+        mFlags = flags;
+    }
+}
@@ -0,0 +1,140 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Queue of encoded chunks between the encoder and the consumer. The encoder adds a chunk per
+ * codec output buffer, and the consumer takes them out one by one (or all at once as bytes).
+ * The consumed chunks are recycled, i.e. after the first few chunks the encoder does not allocate.
+ * The memory is proportional to the amount of unconsumed audio (plus a bounded number of
+ * recycled chunks), i.e. the recording can run indefinitely as long as it is consumed.
+ */
+public class EncodedChunkQueue {
+
+    // Initial capacity of a chunk, grows if the codec produces larger buffers
+    private static final int MIN_CHUNK_CAPACITY = 4096;
+    // Number of recycled chunks to keep
+    private static final int MAX_FREE_CHUNKS = 16;
+
+    private final ArrayDeque<EncodedChunk> mChunks = new ArrayDeque<>();
+    private final ArrayDeque<EncodedChunk> mFree = new ArrayDeque<>();
+    private int mNumBytes = 0;
+
+    /**
+     * Appends a chunk with the given number of bytes from the position of the given buffer.
+     */
+    public synchronized void add(ByteBuffer src, int length, long presentationTimeUs, int flags) {
+        EncodedChunk chunk = obtain(length);
+        src.get(chunk.getData(), 0, length);
+        chunk.set(length, presentationTimeUs, flags);
+        mChunks.addLast(chunk);
+        mNumBytes += length;
+    }
+
+    /**
+     * Appends a chunk with the given bytes of the given array.
+     */
+    public synchronized void add(byte[] src, int offset, int length, long presentationTimeUs, int flags) {
+        EncodedChunk chunk = obtain(length);
+        System.arraycopy(src, offset, chunk.getData(), 0, length);
+        chunk.set(length, presentationTimeUs, flags);
+        mChunks.addLast(chunk);
+        mNumBytes += length;
+    }
+
+    /**
+     * Takes the oldest chunk out of the queue. The caller should {@link #recycle} it after use.
+     *
+     * @return oldest chunk, or null if the queue is empty
+     */
+    public synchronized EncodedChunk poll() {
+        EncodedChunk chunk = mChunks.pollFirst();
+        if (chunk != null) {
+            mNumBytes -= chunk.getLength();
+        }
+        return chunk;
+    }
+
+    /**
+     * Returns the given chunk (obtained with {@link #poll()}) for reuse.
+     */
+    public synchronized void recycle(EncodedChunk chunk) {
+        if (mFree.size() < MAX_FREE_CHUNKS) {
+            mFree.addLast(chunk);
+        }
+    }
+
+    /**
+     * Takes all the chunks out of the queue, and recycles them.
+     *
+     * @return concatenated bytes of the chunks
+     */
+    public synchronized byte[] drainBytes() {
+        byte[] bytes = new byte[mNumBytes];
+        int pos = 0;
+        EncodedChunk chunk;
+        while ((chunk = poll()) != null) {
+            System.arraycopy(chunk.getData(), 0, bytes, pos, chunk.getLength());
+            pos += chunk.getLength();
+            recycle(chunk);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return number of bytes in the queue
+     */
+    public synchronized int getNumBytes() {
+        return mNumBytes;
+    }
+
+    /**
+     * @return number of chunks in the queue
+     */
+    public synchronized int size() {
+        return mChunks.size();
+    }
+
+    /**
+     * @return number of bytes allocated for the queued and the recycled chunks
+     */
+    public synchronized int getCapacity() {
+        return getCapacity(mChunks) + getCapacity(mFree);
+    }
+
+    /**
+     * Recycles all the chunks in the queue.
+     */
+    public synchronized void clear() {
+        EncodedChunk chunk;
+        while ((chunk = poll()) != null) {
+            recycle(chunk);
+        }
+    }
+
+    private EncodedChunk obtain(int length) {
+        Iterator<EncodedChunk> iterator = mFree.iterator();
+        while (iterator.hasNext()) {
+            EncodedChunk chunk = iterator.next();
+            if (chunk.getCapacity() >= length) {
+                iterator.remove();
+                return chunk;
+            }
+        }
+        if (!mFree.isEmpty()) {
+            // drop a chunk that is too small, it is going to be replaced by a larger one
+            mFree.removeFirst();
+        }
+        return new EncodedChunk(Math.max(length, MIN_CHUNK_CAPACITY));
+    }
+
+    private static int getCapacity(ArrayDeque<EncodedChunk> chunks) {
+        int capacity = 0;
+        for (EncodedChunk chunk : chunks) {
+            capacity += chunk.getCapacity();
+        }
+        return capacity;
+    }
+}
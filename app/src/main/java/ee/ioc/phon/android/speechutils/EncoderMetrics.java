@@ -0,0 +1,192 @@
+package ee.ioc.phon.android.speechutils;
+
+/**
+ * Counters that describe how the encoder keeps up with the recorder, e.g. to compare the
+ * different ways of driving MediaCodec. Updated by the encoder threads, and can be queried
+ * from any thread.
+ * <p/>
+ * The encode latency of an output buffer is the time between queuing the input buffer that
+ * contains the first sample of the output (identified by the presentation timestamp)
+ * and receiving the output.
+ * <p/>
+ * If capture and encoding are pipelined (see {@link EncodedAudioRecorder#setCaptureRingMillis(int)})
+ * then the backlog is the audio in the capture ring that the encoder has not taken yet (i.e. the
+ * back-pressure), and the dropped audio is the audio that did not fit into the ring (and was
+ * replaced by silence).
+ */
+public class EncoderMetrics {
+
+    // Number of input buffers whose queuing time is remembered
+    private static final int MAX_PENDING = 64;
+
+    private final long[] mPendingPtsUs = new long[MAX_PENDING];
+    private final long[] mPendingNanos = new long[MAX_PENDING];
+    private int mFirstPending = 0;
+    private int mNumPending = 0;
+
+    private long mNumInputBuffers;
+    private long mNumInputBytes;
+    private long mNumOutputBuffers;
+    private long mNumOutputBytes;
+    private long mNumEmptyPolls;
+    private long mNumLatencies;
+    private long mSumLatencyNanos;
+    private long mMaxLatencyNanos;
+    private long mNumDrops;
+    private long mNumDroppedBytes;
+    private int mBacklogBytes;
+    private int mMaxBacklogBytes;
+
+    /**
+     * @param numBytes number of bytes queued
+     * @param ptsUs    presentation timestamp of the input buffer
+     * @param nowNanos time (System.nanoTime) at which the buffer was queued
+     */
+    synchronized void onInput(int numBytes, long ptsUs, long nowNanos) {
+        mNumInputBuffers++;
+        mNumInputBytes += numBytes;
+        if (mNumPending == MAX_PENDING) {
+            // forget the oldest
+            mFirstPending = (mFirstPending + 1) % MAX_PENDING;
+            mNumPending--;
+        }
+        int i = (mFirstPending + mNumPending) % MAX_PENDING;
+        mPendingPtsUs[i] = ptsUs;
+        mPendingNanos[i] = nowNanos;
+        mNumPending++;
+    }
+
+    /**
+     * @param numBytes number of bytes dequeued
+     * @param ptsUs    presentation timestamp of the output buffer, or -1 if it has none (e.g. codec config)
+     * @param nowNanos time (System.nanoTime) at which the output was received
+     */
+    synchronized void onOutput(int numBytes, long ptsUs, long nowNanos) {
+        mNumOutputBuffers++;
+        mNumOutputBytes += numBytes;
+        if (ptsUs < 0) {
+            return;
+        }
+        // The input that contains the first sample of the output is the last one that starts at or before it
+        long queuedNanos = -1;
+        while (mNumPending > 0 && mPendingPtsUs[mFirstPending] <= ptsUs) {
+            queuedNanos = mPendingNanos[mFirstPending];
+            mFirstPending = (mFirstPending + 1) % MAX_PENDING;
+            mNumPending--;
+        }
+        if (queuedNanos >= 0) {
+            long latency = nowNanos - queuedNanos;
+            mNumLatencies++;
+            mSumLatencyNanos += latency;
+            if (latency > mMaxLatencyNanos) {
+                mMaxLatencyNanos = latency;
+            }
+        }
+    }
+
+    /**
+     * @param numDroppedBytes number of captured bytes that did not fit into the capture ring
+     * @param backlogBytes    number of bytes in the capture ring after the write
+     */
+    synchronized void onCapture(int numDroppedBytes, int backlogBytes) {
+        if (numDroppedBytes > 0) {
+            mNumDrops++;
+            mNumDroppedBytes += numDroppedBytes;
+        }
+        mBacklogBytes = backlogBytes;
+        if (backlogBytes > mMaxBacklogBytes) {
+            mMaxBacklogBytes = backlogBytes;
+        }
+    }
+
+    /**
+     * Called when the encoder had no input buffer available (e.g. the output had to be drained first,
+     * or the codec was polled in vain).
+     */
+    synchronized void onEmptyPoll() {
+        mNumEmptyPolls++;
+    }
+
+    public synchronized long getNumInputBuffers() {
+        return mNumInputBuffers;
+    }
+
+    public synchronized long getNumInputBytes() {
+        return mNumInputBytes;
+    }
+
+    public synchronized long getNumOutputBuffers() {
+        return mNumOutputBuffers;
+    }
+
+    public synchronized long getNumOutputBytes() {
+        return mNumOutputBytes;
+    }
+
+    /**
+     * @return number of times the encoder had no input buffer available
+     */
+    public synchronized long getNumEmptyPolls() {
+        return mNumEmptyPolls;
+    }
+
+    public synchronized long getAvgLatencyMillis() {
+        if (mNumLatencies == 0) {
+            return 0;
+        }
+        return mSumLatencyNanos / mNumLatencies / 1000000;
+    }
+
+    public synchronized long getMaxLatencyMillis() {
+        return mMaxLatencyNanos / 1000000;
+    }
+
+    /**
+     * @return number of captures that did not (completely) fit into the capture ring
+     */
+    public synchronized long getNumDrops() {
+        return mNumDrops;
+    }
+
+    public synchronized long getNumDroppedBytes() {
+        return mNumDroppedBytes;
+    }
+
+    /**
+     * @return number of bytes that were waiting in the capture ring after the last capture
+     */
+    public synchronized int getBacklogBytes() {
+        return mBacklogBytes;
+    }
+
+    public synchronized int getMaxBacklogBytes() {
+        return mMaxBacklogBytes;
+    }
+
+    public synchronized void reset() {
+        mFirstPending = 0;
+        mNumPending = 0;
+        mNumInputBuffers = 0;
+        mNumInputBytes = 0;
+        mNumOutputBuffers = 0;
+        mNumOutputBytes = 0;
+        mNumEmptyPolls = 0;
+        mNumLatencies = 0;
+        mSumLatencyNanos = 0;
+        mMaxLatencyNanos = 0;
+        mNumDrops = 0;
+        mNumDroppedBytes = 0;
+        mBacklogBytes = 0;
+        mMaxBacklogBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "in: " + mNumInputBuffers + "/" + mNumInputBytes
+                + ", out: " + mNumOutputBuffers + "/" + mNumOutputBytes
+                + ", empty polls: " + mNumEmptyPolls
+                + ", latency avg/max (ms): " + getAvgLatencyMillis() + "/" + getMaxLatencyMillis()
+                + ", drops: " + mNumDrops + "/" + mNumDroppedBytes
+                + ", backlog/max: " + mBacklogBytes + "/" + mMaxBacklogBytes;
+    }
+}
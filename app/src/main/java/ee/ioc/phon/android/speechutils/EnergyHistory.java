@@ -0,0 +1,94 @@
+package ee.ioc.phon.android.speechutils;
+
+/**
+ * Keeps the energy (mean square of the samples) of each short frame of the recent audio
+ * in a cyclic array, so that questions like "where was the last pause" can be answered in time
+ * proportional to the number of frames rather than the number of samples.
+ * <p/>
+ * Positions are absolute sample positions of the recording. All the memory is allocated
+ * in the constructor.
+ */
+public class EnergyHistory {
+
+    // A frame is quiet if its energy is at most this many times the energy of the quietest frame
+    // in the search window...
+    private static final int QUIET_FACTOR = 4;
+    // ...or if its energy is below this absolute floor (about -50 dBFS)
+    private static final int QUIET_FLOOR = 10000;
+
+    private final int mFrameSize;
+    private final int[] mEnergies;
+    private final long mStartPosition;
+
+    private long mNumFrames = 0;
+    private long mSumOfSquares = 0;
+    private int mNumSamplesInFrame = 0;
+
+    /**
+     * @param sampleRate     sample rate
+     * @param frameMillis    frame length (e.g. 10 ms)
+     * @param lengthMillis   length of the history
+     * @param startPosition  absolute position of the first sample that is going to be added
+     */
+    public EnergyHistory(int sampleRate, int frameMillis, int lengthMillis, long startPosition) {
+        mFrameSize = sampleRate * frameMillis / 1000;
+        mEnergies = new int[Math.max(1, lengthMillis / frameMillis)];
+        mStartPosition = startPosition;
+    }
+
+    /**
+     * Adds the given 16-bit little-endian PCM.
+     */
+    public synchronized void add(byte[] pcm, int offset, int numBytes) {
+        for (int i = offset; i < offset + numBytes - 1; i += 2) {
+            int sample = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+            mSumOfSquares += sample * sample;
+            if (++mNumSamplesInFrame == mFrameSize) {
+                mEnergies[(int) (mNumFrames % mEnergies.length)] = (int) (mSumOfSquares / mFrameSize);
+                mNumFrames++;
+                mSumOfSquares = 0;
+                mNumSamplesInFrame = 0;
+            }
+        }
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * Searches backwards from the given position (at most the given number of samples) for the
+     * nearest quiet frame, and returns the position of its beginning. A frame is quiet if its energy
+     * is close to the energy of the quietest frame of the window (or below an absolute floor), i.e.
+     * the quietest frame is returned only if there are no other quiet frames closer to the position.
+     *
+     * @param position      absolute sample position to start the search from
+     * @param windowSamples maximum number of samples to search back
+     * @return absolute sample position of the beginning of a quiet frame, or -1 if no frames are
+     * available in the window
+     */
+    public synchronized long findSilenceBefore(long position, int windowSamples) {
+        long oldestFrame = Math.max(0, mNumFrames - mEnergies.length);
+        long lastFrame = Math.min(mNumFrames - 1, (position - mStartPosition) / mFrameSize);
+        long firstFrame = Math.max(oldestFrame, (position - windowSamples - mStartPosition) / mFrameSize);
+        if (lastFrame < firstFrame) {
+            return -1;
+        }
+        int minEnergy = Integer.MAX_VALUE;
+        for (long frame = firstFrame; frame <= lastFrame; frame++) {
+            minEnergy = Math.min(minEnergy, getEnergy(frame));
+        }
+        long threshold = Math.max(QUIET_FLOOR, (long) QUIET_FACTOR * minEnergy);
+        for (long frame = lastFrame; frame >= firstFrame; frame--) {
+            if (getEnergy(frame) <= threshold) {
+                return mStartPosition + frame * mFrameSize;
+            }
+        }
+        // not reached, because the quietest frame is below the threshold
+        return -1;
+    }
+
+    private int getEnergy(long frame) {
+        return mEnergies[(int) (frame % mEnergies.length)];
+    }
+}
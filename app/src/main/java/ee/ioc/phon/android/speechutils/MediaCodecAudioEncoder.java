@@ -0,0 +1,526 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ee.ioc.phon.android.speechutils.codec.AmrWbWriter;
+import ee.ioc.phon.android.speechutils.codec.AudioEncoder;
+import ee.ioc.phon.android.speechutils.codec.ContainerWriter;
+import ee.ioc.phon.android.speechutils.codec.OggOpusWriter;
+
+/**
+ * AudioEncoder backed by the first MediaCodec encoder that supports the given type (taken from
+ * {@link MediaCodecPool}). The codec output is wrapped into the container that the type requires
+ * (e.g. Opus into Ogg), i.e. the packets are Ogg pages in that case.
+ * <p/>
+ * The codec is driven either synchronously (polling its buffers with a timeout), or on API 21+
+ * asynchronously: the codec reports its available buffers via callbacks on a dedicated handler
+ * thread, and the encoder waits for them without polling. In both cases the output is written
+ * to the sink on the thread that calls the encoder, i.e. the container is not shared between threads.
+ * <p/>
+ * The PCM can be written straight into the codec input buffers (see {@link AudioEncoder.BufferInput}),
+ * e.g. by reading the microphone into them.
+ * Requires Android v4.1 / API 16 / JELLY_BEAN.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class MediaCodecAudioEncoder implements AudioEncoder, AudioEncoder.BufferInput {
+
+    // Time period to dequeue a buffer
+    private static final long DEQUEUE_TIMEOUT = 10000;
+
+    // Stop waiting for the end of the output if no output buffer has been available that many times
+    private static final int MAX_NUM_RETRIES_DEQUEUE_OUTPUT_BUFFER = 500;
+
+    // Max number of input and output buffers of a codec (in async mode)
+    private static final int MAX_NUM_BUFFERS = 64;
+    // Marks an error in the events of the callbacks (in async mode)
+    private static final int EVENT_ERROR = Integer.MIN_VALUE;
+
+    // Max duration of an Ogg page, i.e. the latency added by the container
+    static final int OGG_MAX_PAGE_MILLIS = 200;
+
+    public static class Factory implements AudioEncoder.Factory {
+        private final MediaFormatFactory.Type mType;
+        private final boolean mIsAsync;
+
+        /**
+         * The codec is driven asynchronously on API 21+.
+         */
+        public Factory(MediaFormatFactory.Type type) {
+            this(type, Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+        }
+
+        /**
+         * @param isAsync true to drive the codec with callbacks (ignored below API 21)
+         */
+        public Factory(MediaFormatFactory.Type type, boolean isAsync) {
+            mType = type;
+            mIsAsync = isAsync;
+        }
+
+        /**
+         * @return true if the codec is driven with callbacks (on API 21+)
+         */
+        public boolean isAsync() {
+            return mIsAsync && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        }
+
+        public MediaFormatFactory.Type getType() {
+            return mType;
+        }
+
+        @Override
+        public AudioEncoder create() {
+            return new MediaCodecAudioEncoder(mType, mIsAsync);
+        }
+
+        /**
+         * @return content type of the type, or null if the type cannot be streamed (e.g. AAC)
+         */
+        @Override
+        public String getContentType(int sampleRate) {
+            return mType.getContentType();
+        }
+    }
+
+    private final MediaFormatFactory.Type mType;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private final SinkOutputStream mSinkOutputStream = new SinkOutputStream();
+
+    private boolean mIsAsync;
+    private MediaCodec mCodec;
+    private int mSampleRate;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private ContainerWriter mContainerWriter;
+    private byte[] mPacket = new byte[0];
+    private boolean mIsInputDone;
+    private boolean mIsOutputDone;
+    // Index of the input buffer that has been dequeued but not queued yet (-1 if none)
+    private int mInputIndex = -1;
+    // Timestamp of the end of the queued input
+    private long mEndPresentationTimeUs;
+
+    // Async mode: the callbacks post the indices of the available input buffers, and the inverted
+    // indices of the available output buffers (whose info is kept per index) to the events,
+    // which the encoder moves into the queues of available buffers
+    private HandlerThread mHandlerThread;
+    private BlockingQueue<Integer> mEvents;
+    private MediaCodec.BufferInfo[] mOutputInfos;
+    private final ArrayDeque<Integer> mInputIndices = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mOutputIndices = new ArrayDeque<>();
+    private volatile String mError;
+
+    public MediaCodecAudioEncoder(MediaFormatFactory.Type type) {
+        this(type, Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+    }
+
+    public MediaCodecAudioEncoder(MediaFormatFactory.Type type, boolean isAsync) {
+        mType = type;
+        mIsAsync = isAsync && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * @return container for the given encoder type, or null if the codec output can be streamed as it is
+     */
+    static ContainerWriter createContainerWriter(MediaFormatFactory.Type type, OutputStream out, int sampleRate) {
+        switch (type) {
+            case OPUS:
+                return new OggOpusWriter(out, sampleRate, new Random().nextInt())
+                        .setMaxPageMillis(OGG_MAX_PAGE_MILLIS);
+            case AMR:
+                return new AmrWbWriter(out);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return true if the codec is driven with callbacks
+     */
+    public boolean isAsync() {
+        return mIsAsync;
+    }
+
+    @Override
+    public void configure(int sampleRate) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            throw new IOException("MediaCodec requires API 16");
+        }
+        release();
+        mSampleRate = sampleRate;
+        mCodec = MediaCodecPool.acquire(mType, sampleRate);
+        if (mCodec == null) {
+            throw new IOException("No encoder available: " + mType);
+        }
+        if (mIsAsync && !setCallback()) {
+            mIsAsync = false;
+        }
+        mCodec.start();
+        if (!mIsAsync) {
+            mInputBuffers = mCodec.getInputBuffers();
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+        mContainerWriter = createContainerWriter(mType, mSinkOutputStream, sampleRate);
+        mIsInputDone = false;
+        mIsOutputDone = false;
+        mInputIndex = -1;
+        mEndPresentationTimeUs = 0;
+    }
+
+    @Override
+    public String getContentType() {
+        return mType.getContentType();
+    }
+
+    /**
+     * Copies the PCM into an input buffer, if one becomes available within the dequeue timeout.
+     */
+    @Override
+    public int feed(byte[] pcm, int offset, int length, long presentationTimeUs) throws IOException {
+        ByteBuffer buffer = dequeueInputBuffer();
+        if (buffer == null) {
+            return 0;
+        }
+        int size = Math.min(length, buffer.remaining());
+        buffer.put(pcm, offset, size);
+        queueInputBuffer(size, presentationTimeUs);
+        return size;
+    }
+
+    /**
+     * Returns the input buffer that has been dequeued but not queued (if any), or waits (for up to
+     * the dequeue timeout) for the next one. In async mode does not wait if there is output to be drained.
+     */
+    @Override
+    public ByteBuffer dequeueInputBuffer() throws IOException {
+        if (mInputIndex < 0) {
+            if (mIsAsync) {
+                if (mInputIndices.isEmpty()) {
+                    pollEvents(mOutputIndices.isEmpty() ? DEQUEUE_TIMEOUT : 0);
+                }
+                if (mInputIndices.isEmpty()) {
+                    return null;
+                }
+                mInputIndex = mInputIndices.poll();
+            } else {
+                int index = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT);
+                if (index < 0) {
+                    return null;
+                }
+                mInputIndex = index;
+            }
+        }
+        ByteBuffer buffer = getInputBuffer(mInputIndex);
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void queueInputBuffer(int length, long presentationTimeUs) {
+        mCodec.queueInputBuffer(mInputIndex, 0, length, presentationTimeUs, 0);
+        mInputIndex = -1;
+        mEndPresentationTimeUs = presentationTimeUs + 1000000L * length / 2 / mSampleRate;
+    }
+
+    @Override
+    public void drain(PacketSink sink) throws IOException {
+        if (mIsAsync) {
+            pollEvents(0);
+            while (!mOutputIndices.isEmpty()) {
+                int index = mOutputIndices.poll();
+                writeOutputBuffer(sink, getOutputBuffer(index), index, mOutputInfos[index]);
+            }
+        } else {
+            while (!mIsOutputDone && dequeueOutputBuffer(sink, 0)) {
+                // keep draining
+            }
+        }
+    }
+
+    /**
+     * Queues the end of the stream (into the input buffer that was dequeued last, if it was not
+     * queued), and waits for the rest of the output.
+     */
+    @Override
+    public void flush(PacketSink sink) throws IOException {
+        int numRetries = 0;
+        while (!mIsInputDone) {
+            if (dequeueInputBuffer() == null) {
+                drain(sink);
+                if (++numRetries > MAX_NUM_RETRIES_DEQUEUE_OUTPUT_BUFFER) {
+                    throw new IOException("enc: in: EOS timeout");
+                }
+            } else {
+                mCodec.queueInputBuffer(mInputIndex, 0, 0, mEndPresentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputIndex = -1;
+                mIsInputDone = true;
+            }
+        }
+        numRetries = 0;
+        while (!mIsOutputDone) {
+            if (!awaitOutput(sink) && ++numRetries > MAX_NUM_RETRIES_DEQUEUE_OUTPUT_BUFFER) {
+                Log.e("enc: out: EOS timeout");
+                break;
+            }
+        }
+        if (mContainerWriter != null) {
+            mSinkOutputStream.setSink(sink);
+            mContainerWriter.close();
+            mContainerWriter = null;
+        }
+    }
+
+    /**
+     * Stops the codec, and returns it to {@link MediaCodecPool} (which also removes the callback).
+     */
+    @Override
+    public void release() {
+        if (mCodec != null) {
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException e) {
+                Log.e("enc: stop: " + e.getMessage());
+            }
+            MediaCodecPool.recycle(mType, mSampleRate, mCodec);
+            mCodec = null;
+        }
+        quitHandlerThread();
+        mInputIndices.clear();
+        mOutputIndices.clear();
+    }
+
+    /**
+     * Lets the codec report its buffers via callbacks on a new handler thread.
+     *
+     * @return false if the callback could not be set
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean setCallback() {
+        if (mOutputInfos == null) {
+            mEvents = new ArrayBlockingQueue<>(2 * MAX_NUM_BUFFERS + 1);
+            mOutputInfos = new MediaCodec.BufferInfo[MAX_NUM_BUFFERS];
+            for (int i = 0; i < mOutputInfos.length; i++) {
+                mOutputInfos[i] = new MediaCodec.BufferInfo();
+            }
+        }
+        mEvents.clear();
+        mError = null;
+        mHandlerThread = new HandlerThread("MediaCodecAudioEncoder", Process.THREAD_PRIORITY_AUDIO);
+        mHandlerThread.start();
+        try {
+            mCodec.setCallback(new MediaCodec.Callback() {
+                @Override
+                public void onInputBufferAvailable(MediaCodec codec, int index) {
+                    mEvents.offer(index);
+                }
+
+                @Override
+                public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                    if (index < mOutputInfos.length) {
+                        // the index is not reported again until the buffer is released, i.e. the info can be kept
+                        mOutputInfos[index].set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                        mEvents.offer(~index);
+                    } else {
+                        onError(codec, null);
+                    }
+                }
+
+                @Override
+                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                    mError = e == null ? "too many buffers" : e.getMessage();
+                    mEvents.offer(EVENT_ERROR);
+                }
+
+                @Override
+                public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                    Log.i("enc: out: format changed: " + format.toString());
+                }
+            }, new Handler(mHandlerThread.getLooper()));
+            return true;
+        } catch (IllegalStateException e) {
+            Log.e("enc: callback: " + e.getMessage());
+            quitHandlerThread();
+            return false;
+        }
+    }
+
+    /**
+     * Moves the buffers reported by the callbacks into the queues of available buffers (async mode).
+     *
+     * @param timeoutUs time to wait for the first buffer if there is none yet
+     * @return true if a buffer was reported
+     */
+    private boolean pollEvents(long timeoutUs) throws IOException {
+        Integer event;
+        try {
+            event = timeoutUs > 0 ? mEvents.poll(timeoutUs, TimeUnit.MICROSECONDS) : mEvents.poll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("enc: interrupted");
+        }
+        boolean isReported = event != null;
+        while (event != null) {
+            if (event == EVENT_ERROR) {
+                throw new IOException("enc: error: " + mError);
+            } else if (event >= 0) {
+                mInputIndices.add(event);
+            } else {
+                mOutputIndices.add(~event);
+            }
+            event = mEvents.poll();
+        }
+        return isReported;
+    }
+
+    /**
+     * Waits (for up to the dequeue timeout) for output, and writes it to the sink.
+     *
+     * @return true if there was output (or a format or buffers change)
+     */
+    private boolean awaitOutput(PacketSink sink) throws IOException {
+        if (mIsAsync) {
+            if (mOutputIndices.isEmpty() && !pollEvents(DEQUEUE_TIMEOUT)) {
+                return false;
+            }
+            drain(sink);
+            return true;
+        }
+        return dequeueOutputBuffer(sink, DEQUEUE_TIMEOUT);
+    }
+
+    /**
+     * @return true if an output buffer (or a format or buffers change) was dequeued
+     */
+    private boolean dequeueOutputBuffer(PacketSink sink, long timeoutUs) throws IOException {
+        MediaCodec.BufferInfo info = mInfo;
+        int index = mCodec.dequeueOutputBuffer(info, timeoutUs);
+        if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            return false;
+        }
+        if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            mOutputBuffers = mCodec.getOutputBuffers();
+            return true;
+        }
+        if (index < 0) {
+            // e.g. INFO_OUTPUT_FORMAT_CHANGED
+            return true;
+        }
+        writeOutputBuffer(sink, mOutputBuffers[index], index, info);
+        return true;
+    }
+
+    /**
+     * Writes the given output buffer to the sink (via the container, if the type requires one),
+     * and releases it.
+     */
+    private void writeOutputBuffer(PacketSink sink, ByteBuffer buffer, int index, MediaCodec.BufferInfo info) throws IOException {
+        int size = info.size;
+        // on SGS2: remaining decreases until it becomes less than size, which results in BufferUnderflow
+        // (but SGS2 records only zeros anyway)
+        if (info.offset + size > buffer.limit()) {
+            Log.e("size > remaining");
+            size = 0;
+        }
+        boolean isConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        int flags = isConfig ? FLAG_CODEC_CONFIG : 0;
+        buffer.position(info.offset);
+        if (size > 0 && mContainerWriter == null && sink instanceof BufferSink) {
+            // the sink copies the packet straight from the codec buffer
+            try {
+                ((BufferSink) sink).onPacket(buffer, size, info.presentationTimeUs, flags);
+            } finally {
+                mCodec.releaseOutputBuffer(index, false);
+            }
+        } else {
+            if (mPacket.length < size) {
+                mPacket = new byte[size];
+            }
+            buffer.get(mPacket, 0, size);
+            mCodec.releaseOutputBuffer(index, false);
+            if (size > 0) {
+                if (mContainerWriter == null) {
+                    sink.onPacket(mPacket, 0, size, info.presentationTimeUs, flags);
+                } else {
+                    mSinkOutputStream.set(sink, info.presentationTimeUs, flags);
+                    if (isConfig) {
+                        mContainerWriter.writeConfig(mPacket, 0, size);
+                    } else {
+                        mContainerWriter.writePacket(mPacket, 0, size);
+                    }
+                }
+            }
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mIsOutputDone = true;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ByteBuffer getInputBuffer(int index) {
+        return mIsAsync ? mCodec.getInputBuffer(index) : mInputBuffers[index];
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void quitHandlerThread() {
+        if (mHandlerThread != null) {
+            mHandlerThread.quitSafely();
+            mHandlerThread = null;
+        }
+    }
+
+    /**
+     * Passes the bytes written by the container to the sink, with the timestamp and flags of the
+     * codec output that is being written. (A page can be completed by a later packet than the
+     * one it starts with, i.e. the timestamps of the pages are approximate.)
+     */
+    private static class SinkOutputStream extends OutputStream {
+        private final byte[] mByte = new byte[1];
+        private PacketSink mSink;
+        private long mPresentationTimeUs;
+        private int mFlags;
+
+        private void set(PacketSink sink, long presentationTimeUs, int flags) {
+            mSink = sink;
+            mPresentationTimeUs = presentationTimeUs;
+            mFlags = flags;
+        }
+
+        private void setSink(PacketSink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mByte[0] = (byte) b;
+            write(mByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                mSink.onPacket(b, off, len, mPresentationTimeUs, mFlags);
+            }
+        }
+    }
+}
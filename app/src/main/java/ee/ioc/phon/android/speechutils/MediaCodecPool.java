@@ -0,0 +1,191 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import ee.ioc.phon.android.speechutils.utils.AudioUtils;
+
+/**
+ * Process-wide pool of configured MediaCodec encoders. Instantiating a codec costs tens of
+ * milliseconds on many devices, so the (stopped) encoder of a finished session is configured
+ * again, and kept for the next session with the same type and sample rate. The pool can also
+ * be filled in advance (see {@link #warmUp(MediaFormatFactory.Type, int)}), e.g. in the background
+ * when the recognition service is created.
+ * <p/>
+ * The pooled codecs are in the Configured state, i.e. the session can still set a callback
+ * (API 21+) before starting the codec. The pool is switched off by default (max idle size 0),
+ * in which case the codecs are released after use, as before.
+ * Requires Android v4.1 / API 16 / JELLY_BEAN.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public final class MediaCodecPool {
+
+    // Key -> idle codecs, the most recently recycled last
+    private static final Map<String, LinkedList<MediaCodec>> IDLE = new HashMap<>();
+
+    private static int sMaxIdlePerKey = 0;
+
+    private MediaCodecPool() {
+    }
+
+    /**
+     * Sets the max number of idle codecs per type and sample rate. Zero switches pooling off
+     * (and releases the idle codecs).
+     */
+    public static synchronized void setMaxIdle(int maxIdlePerKey) {
+        sMaxIdlePerKey = maxIdlePerKey;
+        if (maxIdlePerKey <= 0) {
+            clear();
+        }
+    }
+
+    public static synchronized int getMaxIdle() {
+        return sMaxIdlePerKey;
+    }
+
+    /**
+     * Takes an idle codec for the given type and sample rate out of the pool, or creates one
+     * with the first suitable encoder of the device.
+     *
+     * @return configured codec (not started), or null if the device has no suitable encoder
+     */
+    public static MediaCodec acquire(MediaFormatFactory.Type type, int sampleRate) {
+        String key = getKey(type, sampleRate);
+        synchronized (MediaCodecPool.class) {
+            LinkedList<MediaCodec> codecs = IDLE.get(key);
+            if (codecs != null && !codecs.isEmpty()) {
+                Log.i("CodecPool: reused: " + key);
+                return codecs.removeLast();
+            }
+        }
+        return create(type, sampleRate);
+    }
+
+    /**
+     * Returns the given codec (obtained with {@link #acquire(MediaFormatFactory.Type, int)}) after use.
+     * The codec must have been stopped (if it was started). It is configured again and its callback
+     * (if any) is removed, i.e. the next user can drive it synchronously, or it is released if that
+     * fails or the pool is full. The caller must not use the codec afterwards.
+     */
+    public static void recycle(MediaFormatFactory.Type type, int sampleRate, MediaCodec codec) {
+        String key = getKey(type, sampleRate);
+        synchronized (MediaCodecPool.class) {
+            LinkedList<MediaCodec> codecs = IDLE.get(key);
+            if (getSize(codecs) < sMaxIdlePerKey) {
+                try {
+                    codec.configure(MediaFormatFactory.createMediaFormat(type, sampleRate), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                    removeCallback(codec);
+                    if (codecs == null) {
+                        codecs = new LinkedList<>();
+                        IDLE.put(key, codecs);
+                    }
+                    codecs.addLast(codec);
+                    return;
+                } catch (IllegalStateException e) {
+                    Log.e("CodecPool: configure: " + e.getMessage());
+                }
+            }
+        }
+        codec.release();
+    }
+
+    /**
+     * Creates a codec for the given type and sample rate and keeps it in the pool, unless the
+     * pool already has an idle one (or is switched off). Slow, i.e. should not be called on the main thread.
+     */
+    public static void warmUp(MediaFormatFactory.Type type, int sampleRate) {
+        synchronized (MediaCodecPool.class) {
+            LinkedList<MediaCodec> codecs = IDLE.get(getKey(type, sampleRate));
+            if (sMaxIdlePerKey <= 0 || (codecs != null && !codecs.isEmpty())) {
+                return;
+            }
+        }
+        MediaCodec codec = create(type, sampleRate);
+        if (codec != null) {
+            synchronized (MediaCodecPool.class) {
+                // The pool might have been switched off in the meantime
+                String key = getKey(type, sampleRate);
+                LinkedList<MediaCodec> codecs = IDLE.get(key);
+                if (getSize(codecs) < sMaxIdlePerKey) {
+                    if (codecs == null) {
+                        codecs = new LinkedList<>();
+                        IDLE.put(key, codecs);
+                    }
+                    Log.i("CodecPool: warmed up: " + key);
+                    codecs.addLast(codec);
+                    return;
+                }
+            }
+            codec.release();
+        }
+    }
+
+    /**
+     * @return number of idle codecs
+     */
+    public static synchronized int getNumIdle() {
+        int numIdle = 0;
+        for (List<MediaCodec> codecs : IDLE.values()) {
+            numIdle += codecs.size();
+        }
+        return numIdle;
+    }
+
+    /**
+     * Releases all the idle codecs.
+     */
+    public static synchronized void clear() {
+        List<MediaCodec> codecs = new ArrayList<>();
+        for (List<MediaCodec> idle : IDLE.values()) {
+            codecs.addAll(idle);
+        }
+        IDLE.clear();
+        for (MediaCodec codec : codecs) {
+            codec.release();
+        }
+    }
+
+    private static MediaCodec create(MediaFormatFactory.Type type, int sampleRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return null;
+        }
+        MediaFormat format = MediaFormatFactory.createMediaFormat(type, sampleRate);
+        for (String componentName : AudioUtils.getEncoderNamesForType(format.getString(MediaFormat.KEY_MIME))) {
+            Log.i("component/format: " + componentName + "/" + format);
+            MediaCodec codec = AudioUtils.createCodec(componentName, format);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Switches the (configured) codec back to the synchronous mode. A codec that has been driven
+     * asynchronously would otherwise keep its callback, and refuse the synchronous calls of the next
+     * user. (The callback can only be changed in the Configured state. Resetting the codec would
+     * also remove it, but that re-creates the component, which is what the pool avoids.)
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void removeCallback(MediaCodec codec) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            codec.setCallback(null);
+        }
+    }
+
+    private static int getSize(List<MediaCodec> codecs) {
+        return codecs == null ? 0 : codecs.size();
+    }
+
+    private static String getKey(MediaFormatFactory.Type type, int sampleRate) {
+        return type + "/" + sampleRate;
+    }
+}
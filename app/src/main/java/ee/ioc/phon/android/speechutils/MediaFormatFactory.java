@@ -6,9 +6,35 @@ import android.os.Build;
 
 public class MediaFormatFactory {
 
-    // TODO: add mimes
+    /**
+     * Encoder types. The content type is the format in which the encoded audio is sent to the
+     * server (i.e. the packets of AMR and Opus are wrapped into a container), or null if the
+     * type cannot be streamed.
+     */
     public enum Type {
-        AAC, AMR, FLAC
+        AAC(null), AMR("audio/AMR-WB"), FLAC("audio/x-flac"), OPUS("audio/ogg");
+
+        private final String mContentType;
+
+        Type(String contentType) {
+            mContentType = contentType;
+        }
+
+        public String getContentType() {
+            return mContentType;
+        }
+
+        /**
+         * @return type whose content type is the given encoder type (ignoring case), or null if there is none
+         */
+        public static Type fromContentType(String contentType) {
+            for (Type type : values()) {
+                if (type.mContentType != null && type.mContentType.equalsIgnoreCase(contentType)) {
+                    return type;
+                }
+            }
+            return null;
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
@@ -29,6 +55,11 @@ public class MediaFormatFactory {
                 format.setInteger(MediaFormat.KEY_BIT_RATE, 64000);
                 //TODO: use another bit rate, does not seem to have effect always
                 //format.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
+            } else if (type == Type.OPUS) {
+                //format.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_AUDIO_OPUS); // API=21, encoder API=29
+                format.setString(MediaFormat.KEY_MIME, "audio/opus");
+                // Wideband speech, about 10x less than FLAC
+                format.setInteger(MediaFormat.KEY_BIT_RATE, 24000);
             } else {
                 format.setString(MediaFormat.KEY_MIME, "audio/amr-wb");
                 format.setInteger(MediaFormat.KEY_BIT_RATE, 23050);
@@ -0,0 +1,180 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring buffer of bytes (e.g. PCM) between exactly one producer thread (e.g. the capture
+ * thread) and exactly one consumer thread (e.g. the encoder thread). The producer never blocks:
+ * if the ring is full then the part of the audio that does not fit is not written, and the
+ * producer decides what to do about it. The consumer can wait for audio without polling.
+ * <p/>
+ * Positions are counted in bytes from the creation (or reset) of the ring. Each position is only
+ * advanced by one of the threads, and published via a volatile field after the bytes have been
+ * copied, i.e. no locks are needed. All the memory is allocated in the constructor.
+ */
+public class PcmRing {
+
+    // Max time that the consumer sleeps before checking the ring again (should the wake up get lost)
+    private static final long MAX_PARK_NANOS = 100000000L;
+
+    private final byte[] mBuffer;
+
+    // Written by the producer only
+    private volatile long mWritePosition = 0;
+    private volatile boolean mIsClosed = false;
+
+    // Written by the consumer only
+    private volatile long mReadPosition = 0;
+    private volatile Thread mWaitingConsumer;
+
+    /**
+     * @param capacity size of the ring in bytes
+     */
+    public PcmRing(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return number of bytes that have been written but not read
+     */
+    public int available() {
+        return (int) (mWritePosition - mReadPosition);
+    }
+
+    /**
+     * @return number of bytes that can be written without overwriting the unread bytes
+     */
+    public int free() {
+        return mBuffer.length - available();
+    }
+
+    /**
+     * @return number of bytes written since the creation of the ring
+     */
+    public long getWritePosition() {
+        return mWritePosition;
+    }
+
+    /**
+     * @return number of bytes read since the creation of the ring
+     */
+    public long getReadPosition() {
+        return mReadPosition;
+    }
+
+    /**
+     * Writes as many of the remaining bytes of the given buffer as fit into the ring.
+     * Called by the producer. Does not block.
+     *
+     * @return number of bytes written
+     */
+    public int write(ByteBuffer src) {
+        int length = Math.min(src.remaining(), free());
+        long position = mWritePosition;
+        int index = (int) (position % mBuffer.length);
+        int numBytesToEnd = Math.min(length, mBuffer.length - index);
+        src.get(mBuffer, index, numBytesToEnd);
+        src.get(mBuffer, 0, length - numBytesToEnd);
+        publish(position + length);
+        return length;
+    }
+
+    /**
+     * Writes as many zeros (i.e. silence) as fit into the ring, but at most the given number.
+     * Called by the producer. Does not block.
+     *
+     * @return number of bytes written
+     */
+    public int writeSilence(int numBytes) {
+        int length = Math.min(numBytes, free());
+        long position = mWritePosition;
+        int index = (int) (position % mBuffer.length);
+        int numBytesToEnd = Math.min(length, mBuffer.length - index);
+        Arrays.fill(mBuffer, index, index + numBytesToEnd, (byte) 0);
+        Arrays.fill(mBuffer, 0, length - numBytesToEnd, (byte) 0);
+        publish(position + length);
+        return length;
+    }
+
+    /**
+     * Marks the end of the audio. Called by the producer after its last write.
+     */
+    public void close() {
+        mIsClosed = true;
+        wakeUpConsumer();
+    }
+
+    public boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * Copies the available bytes (but at most as many as the buffer has room for) into the given buffer.
+     * Called by the consumer. Does not block.
+     *
+     * @return number of bytes read
+     */
+    public int read(ByteBuffer dst) {
+        int length = Math.min(dst.remaining(), available());
+        long position = mReadPosition;
+        int index = (int) (position % mBuffer.length);
+        int numBytesToEnd = Math.min(length, mBuffer.length - index);
+        dst.put(mBuffer, index, numBytesToEnd);
+        dst.put(mBuffer, 0, length - numBytesToEnd);
+        mReadPosition = position + length;
+        return length;
+    }
+
+    /**
+     * Waits until there are bytes to read, or the ring has been closed and all the bytes have been read.
+     * Called by the consumer.
+     *
+     * @return number of bytes available, or 0 if the ring has been closed and there is nothing left to read
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int await() throws InterruptedException {
+        while (true) {
+            // the closing is checked first, because the producer closes after its last write
+            boolean isClosed = mIsClosed;
+            int available = available();
+            if (available > 0 || isClosed) {
+                return available;
+            }
+            mWaitingConsumer = Thread.currentThread();
+            if (available() == 0 && !mIsClosed) {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+            mWaitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Empties the ring and starts the positions from zero. Must not be called while the threads use the ring.
+     */
+    public void reset() {
+        mReadPosition = 0;
+        mWritePosition = 0;
+        mIsClosed = false;
+    }
+
+    private void publish(long writePosition) {
+        mWritePosition = writePosition;
+        wakeUpConsumer();
+    }
+
+    private void wakeUpConsumer() {
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
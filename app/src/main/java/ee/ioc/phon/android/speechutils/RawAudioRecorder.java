@@ -50,7 +50,17 @@ public class RawAudioRecorder extends AbstractAudioRecorder {
      * @param sampleRate  Sample rate (e.g. 16000)
      */
     public RawAudioRecorder(int audioSource, int sampleRate) {
-        super(audioSource, sampleRate);
+        this(audioSource, sampleRate, null);
+    }
+
+
+    /**
+     * @param audioSource Identifier of the audio source (e.g. microphone)
+     * @param sampleRate  Sample rate (e.g. 16000)
+     * @param bufferSizer Auto-tunes the read and buffer sizes, or null to use fixed sizes
+     */
+    public RawAudioRecorder(int audioSource, int sampleRate, AdaptiveBufferSizer bufferSizer) {
+        super(audioSource, sampleRate, bufferSizer);
         try {
             int bufferSize = getBufferSize();
             int framePeriod = bufferSize / (2 * RESOLUTION_IN_BYTES * CHANNELS);
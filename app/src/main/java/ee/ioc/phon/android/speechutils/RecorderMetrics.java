@@ -0,0 +1,92 @@
+package ee.ioc.phon.android.speechutils;
+
+/**
+ * Counters that describe how the recorder thread keeps up with the microphone.
+ * Updated by the recorder thread after every read, and can be queried from any thread.
+ * <p/>
+ * A read interval (the time between two consecutive returns from SpeechRecord.read) that is
+ * longer than the duration of the SpeechRecord buffer means that the buffer was full for a while,
+ * i.e. audio was dropped by the platform. Such reads are counted as (suspected) overruns.
+ */
+public class RecorderMetrics {
+
+    private long mNumReads;
+    private long mNumBytesRead;
+    private long mNumOverruns;
+    private long mLastReadNanos;
+    private long mLastReadIntervalNanos;
+    private long mMaxReadIntervalNanos;
+    private long mSumReadIntervalNanos;
+
+    /**
+     * @param numBytes       number of bytes returned by the read
+     * @param nowNanos       time (System.nanoTime) at which the read returned
+     * @param overrunNanos   read intervals longer than this are counted as overruns
+     * @return interval since the previous read in nanoseconds, or 0 if this was the first read
+     */
+    synchronized long onRead(int numBytes, long nowNanos, long overrunNanos) {
+        long interval = 0;
+        if (mLastReadNanos > 0) {
+            interval = nowNanos - mLastReadNanos;
+            mSumReadIntervalNanos += interval;
+            if (interval > mMaxReadIntervalNanos) {
+                mMaxReadIntervalNanos = interval;
+            }
+            if (interval > overrunNanos) {
+                mNumOverruns++;
+            }
+        }
+        mLastReadNanos = nowNanos;
+        mLastReadIntervalNanos = interval;
+        mNumReads++;
+        if (numBytes > 0) {
+            mNumBytesRead += numBytes;
+        }
+        return interval;
+    }
+
+    public synchronized long getNumReads() {
+        return mNumReads;
+    }
+
+    public synchronized long getNumBytesRead() {
+        return mNumBytesRead;
+    }
+
+    public synchronized long getNumOverruns() {
+        return mNumOverruns;
+    }
+
+    public synchronized long getLastReadIntervalMillis() {
+        return mLastReadIntervalNanos / 1000000;
+    }
+
+    public synchronized long getMaxReadIntervalMillis() {
+        return mMaxReadIntervalNanos / 1000000;
+    }
+
+    public synchronized long getAvgReadIntervalMillis() {
+        if (mNumReads < 2) {
+            return 0;
+        }
+        return mSumReadIntervalNanos / (mNumReads - 1) / 1000000;
+    }
+
+    public synchronized void reset() {
+        mNumReads = 0;
+        mNumBytesRead = 0;
+        mNumOverruns = 0;
+        mLastReadNanos = 0;
+        mLastReadIntervalNanos = 0;
+        mMaxReadIntervalNanos = 0;
+        mSumReadIntervalNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "reads: " + mNumReads
+                + ", bytes: " + mNumBytesRead
+                + ", overruns: " + mNumOverruns
+                + ", interval avg/max (ms): " + getAvgReadIntervalMillis() + "/" + getMaxReadIntervalMillis();
+    }
+}
@@ -65,8 +65,12 @@ public class SpeechRecord extends AudioRecord {
             Log.i("Trying to enhance audio because running on SDK " + Build.VERSION.SDK_INT);
 
             int audioSessionId = getAudioSessionId();
+            // Skips the effects that are known to be unavailable on this device
+            CaptureCapabilities caps = CaptureCapabilities.getCached();
 
-            if (noise) {
+            if (noise && caps != null && !caps.isNoiseSuppressorAvailable()) {
+                Log.i("NoiseSuppressor: not available");
+            } else if (noise) {
                 if (NoiseSuppressor.create(audioSessionId) == null) {
                     Log.i("NoiseSuppressor: failed");
                 } else {
@@ -76,7 +80,9 @@ public class SpeechRecord extends AudioRecord {
                 Log.i("NoiseSuppressor: OFF");
             }
 
-            if (gain) {
+            if (gain && caps != null && !caps.isAutomaticGainControlAvailable()) {
+                Log.i("AutomaticGainControl: not available");
+            } else if (gain) {
                 if (AutomaticGainControl.create(audioSessionId) == null) {
                     Log.i("AutomaticGainControl: failed");
                 } else {
@@ -86,7 +92,9 @@ public class SpeechRecord extends AudioRecord {
                 Log.i("AutomaticGainControl: OFF");
             }
 
-            if (echo) {
+            if (echo && caps != null && !caps.isAcousticEchoCancelerAvailable()) {
+                Log.i("AcousticEchoCanceler: not available");
+            } else if (echo) {
                 if (AcousticEchoCanceler.create(audioSessionId) == null) {
                     Log.i("AcousticEchoCanceler: failed");
                 } else {
@@ -100,6 +108,10 @@ public class SpeechRecord extends AudioRecord {
 
 
     public static boolean isNoiseSuppressorAvailable() {
+        CaptureCapabilities caps = CaptureCapabilities.getCached();
+        if (caps != null) {
+            return caps.isNoiseSuppressorAvailable();
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
             return NoiseSuppressor.isAvailable();
         }
@@ -0,0 +1,321 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Multi-resolution min/max/RMS envelope of 16-bit mono audio, e.g. for drawing the waveform of
+ * a long recording. Each level summarizes the audio in frames of a fixed length (e.g. 1 ms, 10 ms,
+ * 100 ms, 1 s), where each frame length is a multiple of the previous one. The levels are updated
+ * incrementally as audio is added, the coarser levels from the finer ones.
+ * <p/>
+ * To draw N pixels, {@link #getEnvelope} uses the coarsest level that is still at least as fine as
+ * a pixel, so that the work is proportional to the number of pixels rather than samples.
+ * <p/>
+ * The levels are allocated in the constructor with a fixed capacity (number of frames), i.e.
+ * adding audio does not allocate. A full level keeps its frames (i.e. the beginning of the audio
+ * can still be drawn in detail) but stops growing, and the coarser levels cover the rest of the audio.
+ * The coarsest level never stops growing: when it is full, its frames are merged in pairs in place,
+ * i.e. its frame length doubles.
+ * <p/>
+ * Positions are sample positions counted from the first added sample.
+ * The envelope can be stored next to the WAV file of the recording, see {@link #getFile(String)}.
+ */
+public class WaveformEnvelope {
+
+    public static final int[] DEFAULT_LEVELS_IN_MILLIS = {1, 10, 100, 1000};
+
+    private static final int MAGIC = 0x454e5631; // "ENV1"
+    // E.g. 8 s of 1 ms frames, 82 s of 10 ms frames, etc.
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final String FILE_SUFFIX = ".env";
+
+    private final int mSampleRate;
+    // Frame lengths in samples (the last one doubles when the coarsest level is decimated)
+    private final int[] mFrameSizes;
+    private final Level[] mLevels;
+    // Number of samples in the complete frames of the finest level
+    private long mLength = 0;
+
+    private static class Level {
+        private final short[] mMin;
+        private final short[] mMax;
+        private final short[] mRms;
+        private int mLength = 0;
+
+        // Frame that is being accumulated
+        private int mCurMin = Short.MAX_VALUE;
+        private int mCurMax = Short.MIN_VALUE;
+        private double mCurSumOfSquares = 0;
+        private int mCurCount = 0;
+
+        private Level(int capacity) {
+            mMin = new short[capacity];
+            mMax = new short[capacity];
+            mRms = new short[capacity];
+        }
+
+        private boolean isFull() {
+            return mLength == mMin.length;
+        }
+
+        private void add(int min, int max, double sumOfSquares, int count) {
+            if (min < mCurMin) mCurMin = min;
+            if (max > mCurMax) mCurMax = max;
+            mCurSumOfSquares += sumOfSquares;
+            mCurCount += count;
+        }
+
+        /**
+         * Completes the current frame, which is stored unless the level is full.
+         */
+        private void flush(int frameSize) {
+            if (!isFull()) {
+                mMin[mLength] = (short) mCurMin;
+                mMax[mLength] = (short) mCurMax;
+                mRms[mLength] = toRms(mCurSumOfSquares / frameSize);
+                mLength++;
+            }
+            mCurMin = Short.MAX_VALUE;
+            mCurMax = Short.MIN_VALUE;
+            mCurSumOfSquares = 0;
+            mCurCount = 0;
+        }
+
+        /**
+         * Merges the frames in pairs (an odd last frame stays as it is).
+         */
+        private void decimate() {
+            int length = 0;
+            for (int i = 0; i < mLength; i += 2) {
+                if (i + 1 < mLength) {
+                    mMin[length] = (short) Math.min(mMin[i], mMin[i + 1]);
+                    mMax[length] = (short) Math.max(mMax[i], mMax[i + 1]);
+                    mRms[length] = toRms(((double) mRms[i] * mRms[i] + (double) mRms[i + 1] * mRms[i + 1]) / 2);
+                } else {
+                    mMin[length] = mMin[i];
+                    mMax[length] = mMax[i];
+                    mRms[length] = mRms[i];
+                }
+                length++;
+            }
+            mLength = length;
+        }
+    }
+
+    /**
+     * @param sampleRate     sample rate
+     * @param levelsInMillis frame lengths of the levels, from the finest to the coarsest,
+     *                       each must be a multiple of the previous
+     * @param capacity       max number of frames of each level (an even number)
+     */
+    public WaveformEnvelope(int sampleRate, int[] levelsInMillis, int capacity) {
+        if (capacity < 2 || capacity % 2 != 0) {
+            throw new IllegalArgumentException("Capacity must be a positive even number: " + capacity);
+        }
+        mSampleRate = sampleRate;
+        mFrameSizes = new int[levelsInMillis.length];
+        mLevels = new Level[levelsInMillis.length];
+        for (int i = 0; i < levelsInMillis.length; i++) {
+            mFrameSizes[i] = Math.max(1, sampleRate * levelsInMillis[i] / 1000);
+            if (i > 0 && mFrameSizes[i] % mFrameSizes[i - 1] != 0) {
+                throw new IllegalArgumentException("Level " + levelsInMillis[i] + " ms is not a multiple of the previous level");
+            }
+            mLevels[i] = new Level(capacity);
+        }
+    }
+
+    public WaveformEnvelope(int sampleRate, int[] levelsInMillis) {
+        this(sampleRate, levelsInMillis, DEFAULT_CAPACITY);
+    }
+
+    public WaveformEnvelope(int sampleRate) {
+        this(sampleRate, DEFAULT_LEVELS_IN_MILLIS);
+    }
+
+    private WaveformEnvelope(int sampleRate, int[] frameSizes, Level[] levels) {
+        mSampleRate = sampleRate;
+        mFrameSizes = frameSizes;
+        mLevels = levels;
+        for (int i = 0; i < levels.length; i++) {
+            mLength = Math.max(mLength, (long) levels[i].mLength * frameSizes[i]);
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return number of samples summarized by the finest level
+     */
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Adds the given 16-bit little-endian PCM.
+     */
+    public synchronized void add(byte[] pcm, int offset, int numBytes) {
+        Level level = mLevels[0];
+        int frameSize = mFrameSizes[0];
+        for (int i = offset; i < offset + numBytes - 1; i += 2) {
+            int sample = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+            level.add(sample, sample, (double) sample * sample, 1);
+            if (level.mCurCount == frameSize) {
+                onFrame(0);
+            }
+        }
+    }
+
+    /**
+     * Fills the given arrays with the envelope of the given range, one value per pixel.
+     * The arrays must have room for numPixels values; rms can be null.
+     *
+     * @param from      first sample of the range
+     * @param to        sample that follows the range
+     * @param numPixels number of values to produce
+     */
+    public synchronized void getEnvelope(long from, long to, int numPixels, short[] min, short[] max, short[] rms) {
+        double samplesPerPixel = (double) (to - from) / numPixels;
+        int levelIndex = 0;
+        while (levelIndex + 1 < mLevels.length && mFrameSizes[levelIndex + 1] <= samplesPerPixel) {
+            levelIndex++;
+        }
+        // a full level does not cover the end of the audio
+        while (levelIndex + 1 < mLevels.length && mLevels[levelIndex].isFull()
+                && (long) mLevels[levelIndex].mLength * mFrameSizes[levelIndex] < to) {
+            levelIndex++;
+        }
+        Level level = mLevels[levelIndex];
+        int frameSize = mFrameSizes[levelIndex];
+        for (int pixel = 0; pixel < numPixels; pixel++) {
+            long first = (long) (from + pixel * samplesPerPixel) / frameSize;
+            long last = Math.max(first + 1, (long) (from + (pixel + 1) * samplesPerPixel) / frameSize);
+            int pixelMin = 0;
+            int pixelMax = 0;
+            double sumOfSquares = 0;
+            int count = 0;
+            for (long frame = Math.max(0, first); frame < last && frame < level.mLength; frame++) {
+                int i = (int) frame;
+                if (count == 0 || level.mMin[i] < pixelMin) pixelMin = level.mMin[i];
+                if (count == 0 || level.mMax[i] > pixelMax) pixelMax = level.mMax[i];
+                sumOfSquares += (double) level.mRms[i] * level.mRms[i];
+                count++;
+            }
+            min[pixel] = (short) pixelMin;
+            max[pixel] = (short) pixelMax;
+            if (rms != null) {
+                rms[pixel] = count == 0 ? 0 : toRms(sumOfSquares / count);
+            }
+        }
+    }
+
+    /**
+     * @return file in which to store the envelope of the given WAV file
+     */
+    public static File getFile(String wavFileFullPath) {
+        return new File(wavFileFullPath + FILE_SUFFIX);
+    }
+
+    /**
+     * Stores the complete frames of all the levels into the given file.
+     */
+    public synchronized void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(mSampleRate);
+            out.writeInt(mLevels.length);
+            for (int i = 0; i < mLevels.length; i++) {
+                Level level = mLevels[i];
+                out.writeInt(mFrameSizes[i]);
+                out.writeInt(level.mLength);
+                for (int j = 0; j < level.mLength; j++) {
+                    out.writeShort(level.mMin[j]);
+                    out.writeShort(level.mMax[j]);
+                    out.writeShort(level.mRms[j]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads an envelope that was stored with {@link #save(File)}, with the default capacity
+     * (or more, if the stored levels are longer). Audio can be added to the loaded envelope only
+     * if the stored audio ended at a frame boundary of the coarsest level.
+     */
+    public static WaveformEnvelope load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a waveform envelope: " + file);
+            }
+            int sampleRate = in.readInt();
+            int numLevels = in.readInt();
+            int[] frameSizes = new int[numLevels];
+            Level[] levels = new Level[numLevels];
+            for (int i = 0; i < numLevels; i++) {
+                frameSizes[i] = in.readInt();
+                int length = in.readInt();
+                // room for at least one more frame (a full coarsest level would have been decimated)
+                Level level = new Level(Math.max(DEFAULT_CAPACITY, length + 2 - length % 2));
+                for (int j = 0; j < length; j++) {
+                    level.mMin[j] = in.readShort();
+                    level.mMax[j] = in.readShort();
+                    level.mRms[j] = in.readShort();
+                }
+                level.mLength = length;
+                levels[i] = level;
+            }
+            return new WaveformEnvelope(sampleRate, frameSizes, levels);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Completes the current frame of the given level, and propagates it to the next level.
+     */
+    private void onFrame(int levelIndex) {
+        Level level = mLevels[levelIndex];
+        int min = level.mCurMin;
+        int max = level.mCurMax;
+        double sumOfSquares = level.mCurSumOfSquares;
+        int count = level.mCurCount;
+        level.flush(mFrameSizes[levelIndex]);
+        if (levelIndex == 0) {
+            mLength += count;
+        }
+        int nextLevelIndex = levelIndex + 1;
+        if (nextLevelIndex == mLevels.length) {
+            if (level.isFull()) {
+                // the next frame (which is empty) is going to be twice as long
+                level.decimate();
+                mFrameSizes[levelIndex] *= 2;
+            }
+        } else {
+            Level nextLevel = mLevels[nextLevelIndex];
+            nextLevel.add(min, max, sumOfSquares, count);
+            if (nextLevel.mCurCount == mFrameSizes[nextLevelIndex]) {
+                onFrame(nextLevelIndex);
+            }
+        }
+    }
+
+    /**
+     * @return RMS of the given mean square, clamped to the short range (the RMS of a frame of
+     * -32768 samples is 32768)
+     */
+    private static short toRms(double meanSquare) {
+        return (short) Math.min(Short.MAX_VALUE, Math.sqrt(meanSquare));
+    }
+}
@@ -0,0 +1,88 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes AMR-WB frames in the storage format (RFC 4867, section 5), i.e. the "#!AMR-WB\n"
+ * magic followed by the frames, each of which starts with a header byte that gives its type
+ * (and thereby its size). MediaCodec outputs the frames in this form, one or more per buffer.
+ * The frame types are checked, so that a corrupt buffer does not break the rest of the stream.
+ */
+public class AmrWbWriter implements ContainerWriter {
+
+    private static final byte[] MAGIC = {'#', '!', 'A', 'M', 'R', '-', 'W', 'B', '\n'};
+
+    // Size of the frame (without the header byte) by frame type, -1 for the reserved types
+    private static final int[] FRAME_SIZES = {17, 23, 32, 36, 40, 46, 50, 58, 60, 5, -1, -1, -1, -1, 0, 0};
+
+    // Duration of a frame
+    public static final int FRAME_MILLIS = 20;
+
+    private final OutputStream mOut;
+    private boolean mIsMagicWritten = false;
+    private long mNumFrames = 0;
+
+    public AmrWbWriter(OutputStream out) {
+        mOut = out;
+    }
+
+    /**
+     * AMR-WB has no codec specific data, i.e. this does nothing.
+     */
+    @Override
+    public void writeConfig(byte[] data, int offset, int length) {
+    }
+
+    /**
+     * Writes the frames of the given packet. Throws an exception (having written the valid
+     * frames that precede it) if the packet contains a frame of a reserved type,
+     * or if the last frame is truncated.
+     */
+    @Override
+    public void writePacket(byte[] data, int offset, int length) throws IOException {
+        writeMagic();
+        int end = offset + length;
+        int start = offset;
+        while (offset < end) {
+            int frameSize = getFrameSize(data[offset]);
+            if (frameSize < 0 || offset + 1 + frameSize > end) {
+                mOut.write(data, start, offset - start);
+                throw new IOException("Invalid AMR-WB frame: " + (data[offset] & 0xFF));
+            }
+            offset += 1 + frameSize;
+            mNumFrames++;
+        }
+        mOut.write(data, start, length);
+    }
+
+    /**
+     * Writes the magic if nothing has been written yet, i.e. the stream is valid even if it has no frames.
+     */
+    @Override
+    public void close() throws IOException {
+        writeMagic();
+    }
+
+    /**
+     * @return number of frames written
+     */
+    public long getNumFrames() {
+        return mNumFrames;
+    }
+
+    /**
+     * @return size of the frame that starts with the given header byte (excluding the header),
+     * or -1 if the frame type is reserved
+     */
+    public static int getFrameSize(byte header) {
+        return FRAME_SIZES[(header >> 3) & 0x0F];
+    }
+
+    private void writeMagic() throws IOException {
+        if (!mIsMagicWritten) {
+            mOut.write(MAGIC);
+            mIsMagicWritten = true;
+        }
+    }
+}
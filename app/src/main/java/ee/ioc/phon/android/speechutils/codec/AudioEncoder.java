@@ -0,0 +1,114 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder of 16-bit little-endian mono PCM into a stream that can be sent to the server as it is,
+ * i.e. the packets are the units of the stream (e.g. FLAC frames, Ogg pages), and their
+ * concatenation is in the format given by {@link #getContentType()}.
+ * <p/>
+ * Usage: {@link #configure}, then repeatedly {@link #feed} and {@link #drain}, then {@link #flush}
+ * at the end of the input, and finally {@link #release}. The methods are called on one thread.
+ */
+public interface AudioEncoder {
+
+    /**
+     * Flag of the packets that contain stream headers rather than audio
+     * (the same value as MediaCodec.BUFFER_FLAG_CODEC_CONFIG).
+     */
+    int FLAG_CODEC_CONFIG = 2;
+
+    /**
+     * Creates the encoders of a type, e.g. an encoder per recording.
+     */
+    interface Factory {
+        AudioEncoder create();
+
+        /**
+         * @return content type of the stream that the encoders produce at the given sample rate
+         * (the same as {@link AudioEncoder#getContentType()}), or null if the stream cannot be sent as it is
+         */
+        String getContentType(int sampleRate);
+    }
+
+    /**
+     * Optional interface of the encoders whose input buffers can be filled directly, e.g. by reading
+     * the microphone into them, i.e. without copying the PCM as {@link #feed} does.
+     */
+    interface BufferInput {
+
+        /**
+         * Returns an empty input buffer, which is filled from its position. The buffer that is not
+         * queued is returned again by the next call (or used for the end of the stream by flush).
+         *
+         * @return input buffer, or null if none became available within a short while (in which case
+         * the output should be drained before trying again)
+         */
+        ByteBuffer dequeueInputBuffer() throws IOException;
+
+        /**
+         * Queues the given number of bytes written into the buffer of the last {@link #dequeueInputBuffer()}.
+         *
+         * @param presentationTimeUs presentation timestamp of the first sample
+         */
+        void queueInputBuffer(int length, long presentationTimeUs) throws IOException;
+    }
+
+    /**
+     * Receives the encoded packets. The data is only valid during the call.
+     */
+    interface PacketSink {
+        void onPacket(byte[] data, int offset, int length, long presentationTimeUs, int flags) throws IOException;
+    }
+
+    /**
+     * Optional interface of the sinks that can take the packets straight from a buffer, e.g. from
+     * the output buffer of a codec, i.e. without copying them into an intermediate array first.
+     * The encoders that have such buffers call this method instead of the array one.
+     */
+    interface BufferSink extends PacketSink {
+
+        /**
+         * Receives the packet of the given length from the position of the given buffer.
+         * The buffer is only valid during the call.
+         */
+        void onPacket(ByteBuffer data, int length, long presentationTimeUs, int flags) throws IOException;
+    }
+
+    /**
+     * Prepares the encoder for a new stream of the given sample rate.
+     *
+     * @throws IOException if the encoder does not support the sample rate, or cannot be created
+     */
+    void configure(int sampleRate) throws IOException;
+
+    /**
+     * @return content type of the stream (after configure), e.g. "audio/x-flac"
+     */
+    String getContentType();
+
+    /**
+     * Feeds PCM to the encoder. The encoder might not take all the PCM at once (e.g. if its input
+     * buffers are full), in which case the output should be drained before the rest is fed.
+     *
+     * @param presentationTimeUs presentation timestamp of the first sample
+     * @return number of bytes taken
+     */
+    int feed(byte[] pcm, int offset, int length, long presentationTimeUs) throws IOException;
+
+    /**
+     * Passes the packets that are ready to the given sink, without waiting for more.
+     */
+    void drain(PacketSink sink) throws IOException;
+
+    /**
+     * Ends the input, and passes all the remaining packets to the given sink.
+     */
+    void flush(PacketSink sink) throws IOException;
+
+    /**
+     * Frees the resources of the encoder, it cannot be used afterwards.
+     */
+    void release();
+}
@@ -0,0 +1,344 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Transcodes long recordings (16-bit mono PCM, e.g. archived WAV files) into FLAC on all the
+ * cores. The audio is split into chunks of whole FLAC blocks, which are encoded independently
+ * on a fork-join pool (each chunk with its own {@link FlacEncoder}, numbering the frames from the
+ * first frame of the chunk), and the chunks are written in order. The stream header has the
+ * complete STREAMINFO (total number of samples, min and max frame size), followed by a SEEKTABLE
+ * with a seek point at the start of every chunk.
+ * <p/>
+ * The files are memory-mapped chunk by chunk, and only a couple of encoded chunks per worker
+ * wait to be written, i.e. the files can be larger than the memory. The code does not depend on
+ * Android (apart from the API level annotation), so it also runs on the JVM of a server.
+ * Requires Android v7.0 / API 24 / N for the common fork-join pool.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+public class BatchTranscoder {
+
+    // Duration of a chunk, i.e. the distance between the seek points
+    public static final int DEFAULT_CHUNK_MILLIS = 10000;
+
+    private static final int STREAM_HEADER_SIZE = 42;
+    private static final int METADATA_BLOCK_HEADER_SIZE = 4;
+    private static final int SEEK_POINT_SIZE = 18;
+    private static final int METADATA_SEEKTABLE = 3;
+
+    // Number of encoded chunks per worker that can wait to be written
+    private static final int MAX_PENDING_CHUNKS_PER_WORKER = 2;
+
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private final ForkJoinPool mPool;
+    private int mBlockSize = FlacEncoder.DEFAULT_BLOCK_SIZE;
+    private int mChunkMillis = DEFAULT_CHUNK_MILLIS;
+
+    public BatchTranscoder(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    public BatchTranscoder() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sets the number of samples per FLAC frame.
+     */
+    public BatchTranscoder setBlockSize(int blockSize) {
+        mBlockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * Sets the (approximate) duration of a chunk, i.e. the unit of parallelism and the distance
+     * between the seek points. A chunk is rounded up to whole blocks.
+     */
+    public BatchTranscoder setChunkMillis(int chunkMillis) {
+        mChunkMillis = chunkMillis;
+        return this;
+    }
+
+    /**
+     * @return FLAC stream of the given samples
+     */
+    public byte[] transcodeToFlac(final short[] samples, int sampleRate) throws IOException {
+        final ByteArrayChunkWriter writer = new ByteArrayChunkWriter();
+        transcode(samples.length, sampleRate, (firstSample, dst, numSamples) ->
+                System.arraycopy(samples, (int) firstSample, dst, 0, numSamples), writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Transcodes the given WAV file (16-bit mono PCM) into the given FLAC file.
+     */
+    public void transcodeWavToFlac(File wavFile, File flacFile) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(wavFile, "r");
+             RandomAccessFile out = new RandomAccessFile(flacFile, "rw")) {
+            final FileChannel inChannel = in.getChannel();
+            WavInfo info = readWavInfo(inChannel);
+            final long dataOffset = info.mDataOffset;
+            out.setLength(0);
+            final FileChannel outChannel = out.getChannel();
+            transcode(info.mNumSamples, info.mSampleRate, (firstSample, dst, numSamples) ->
+                    inChannel.map(FileChannel.MapMode.READ_ONLY, dataOffset + 2 * firstSample, 2L * numSamples)
+                            .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(dst, 0, numSamples), new ChunkWriter() {
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    writeFully(outChannel, ByteBuffer.wrap(data, offset, length));
+                }
+
+                @Override
+                public void writeHeader(byte[] header) throws IOException {
+                    long position = outChannel.position();
+                    outChannel.position(0);
+                    writeFully(outChannel, ByteBuffer.wrap(header));
+                    outChannel.position(position);
+                }
+            });
+        }
+    }
+
+    /**
+     * Transcodes the given WAV files concurrently, each into a FLAC file with the same name
+     * (with the extension replaced by ".flac") in the given directory.
+     *
+     * @return FLAC files, in the order of the WAV files
+     */
+    public List<File> transcodeWavToFlac(List<File> wavFiles, File outputDir) throws IOException {
+        List<File> flacFiles = new ArrayList<>();
+        List<ForkJoinTask<File>> tasks = new ArrayList<>();
+        for (final File wavFile : wavFiles) {
+            String name = wavFile.getName();
+            int dot = name.lastIndexOf('.');
+            final File flacFile = new File(outputDir, (dot > 0 ? name.substring(0, dot) : name) + ".flac");
+            flacFiles.add(flacFile);
+            tasks.add(mPool.submit(() -> {
+                transcodeWavToFlac(wavFile, flacFile);
+                return flacFile;
+            }));
+        }
+        for (ForkJoinTask<File> task : tasks) {
+            join(task, tasks);
+        }
+        return flacFiles;
+    }
+
+    private interface SampleSource {
+        void read(long firstSample, short[] dst, int numSamples) throws IOException;
+    }
+
+    /**
+     * Receives the header space (written as zeros), then the chunks in order, and finally the header.
+     */
+    private interface ChunkWriter {
+        void write(byte[] data, int offset, int length) throws IOException;
+
+        void writeHeader(byte[] header) throws IOException;
+    }
+
+    private static class Chunk {
+        private byte[] mData;
+        private int mLength;
+        private int mMinFrameSize = Integer.MAX_VALUE;
+        private int mMaxFrameSize = 0;
+    }
+
+    private void transcode(long numSamples, final int sampleRate, final SampleSource source, ChunkWriter writer) throws IOException {
+        final int blockSize = mBlockSize;
+        final long samplesPerChunk = Math.max(1, ((long) mChunkMillis * sampleRate / 1000 + blockSize - 1) / blockSize) * blockSize;
+        FlacEncoder headerEncoder = new FlacEncoder(sampleRate, blockSize);
+        int numChunks = (int) ((numSamples + samplesPerChunk - 1) / samplesPerChunk);
+        int headerSize = STREAM_HEADER_SIZE + (numChunks > 0 ? METADATA_BLOCK_HEADER_SIZE + numChunks * SEEK_POINT_SIZE : 0);
+        writer.write(new byte[headerSize], 0, headerSize);
+
+        long[] offsets = new long[numChunks];
+        int minFrameSize = Integer.MAX_VALUE;
+        int maxFrameSize = 0;
+        long offset = 0;
+        int maxPending = MAX_PENDING_CHUNKS_PER_WORKER * mPool.getParallelism();
+        ArrayDeque<ForkJoinTask<Chunk>> pending = new ArrayDeque<>();
+        int nextChunk = 0;
+        for (int i = 0; i < numChunks; i++) {
+            while (nextChunk < numChunks && pending.size() < maxPending) {
+                final long firstSample = nextChunk * samplesPerChunk;
+                final int length = (int) Math.min(samplesPerChunk, numSamples - firstSample);
+                pending.addLast(mPool.submit(() -> encodeChunk(source, sampleRate, blockSize, firstSample, length)));
+                nextChunk++;
+            }
+            Chunk chunk = join(pending.removeFirst(), pending);
+            writer.write(chunk.mData, 0, chunk.mLength);
+            offsets[i] = offset;
+            offset += chunk.mLength;
+            minFrameSize = Math.min(minFrameSize, chunk.mMinFrameSize);
+            maxFrameSize = Math.max(maxFrameSize, chunk.mMaxFrameSize);
+        }
+
+        byte[] header = Arrays.copyOf(headerEncoder.getStreamHeader(
+                numChunks > 0 ? minFrameSize : 0, maxFrameSize, numSamples, numChunks == 0), headerSize);
+        if (numChunks > 0) {
+            ByteBuffer seekTable = ByteBuffer.wrap(header, STREAM_HEADER_SIZE, headerSize - STREAM_HEADER_SIZE);
+            seekTable.putInt(0x80000000 | (METADATA_SEEKTABLE << 24) | (numChunks * SEEK_POINT_SIZE));
+            for (int i = 0; i < numChunks; i++) {
+                long firstSample = i * samplesPerChunk;
+                seekTable.putLong(firstSample);
+                seekTable.putLong(offsets[i]);
+                seekTable.putShort((short) Math.min(blockSize, numSamples - firstSample));
+            }
+        }
+        writer.writeHeader(header);
+    }
+
+    private static Chunk encodeChunk(SampleSource source, int sampleRate, int blockSize, long firstSample, int numSamples) throws IOException {
+        FlacEncoder encoder = new FlacEncoder(sampleRate, blockSize);
+        encoder.setFrameNumber(firstSample / blockSize);
+        short[] samples = new short[numSamples];
+        source.read(firstSample, samples, numSamples);
+        int numFrames = (numSamples + blockSize - 1) / blockSize;
+        Chunk chunk = new Chunk();
+        chunk.mData = new byte[numFrames * encoder.getMaxFrameSize()];
+        for (int pos = 0; pos < numSamples; pos += blockSize) {
+            int frameSize = encoder.encodeFrame(samples, pos, Math.min(blockSize, numSamples - pos), chunk.mData, chunk.mLength);
+            chunk.mLength += frameSize;
+            chunk.mMinFrameSize = Math.min(chunk.mMinFrameSize, frameSize);
+            chunk.mMaxFrameSize = Math.max(chunk.mMaxFrameSize, frameSize);
+        }
+        return chunk;
+    }
+
+    /**
+     * Waits for the given task, and cancels the other tasks if it failed.
+     */
+    private static <T> T join(ForkJoinTask<T> task, Iterable<? extends ForkJoinTask<?>> others) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            for (ForkJoinTask<?> other : others) {
+                other.cancel(false);
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static class WavInfo {
+        private int mSampleRate;
+        private long mDataOffset;
+        private long mNumSamples;
+    }
+
+    /**
+     * Finds the format and the data of the given WAV (RIFF or RF64) file.
+     */
+    private static WavInfo readWavInfo(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, 0, 12);
+        int riff = buffer.getInt(0);
+        if ((riff != fourCc("RIFF") && riff != fourCc("RF64")) || buffer.getInt(8) != fourCc("WAVE")) {
+            throw new IOException("Not a WAV file");
+        }
+        WavInfo info = new WavInfo();
+        int numChannels = 0;
+        int bitsPerSample = 0;
+        int format = 0;
+        long dataSize64 = -1;
+        long position = 12;
+        while (position + 8 <= fileSize) {
+            readFully(channel, buffer, position, 8);
+            int id = buffer.getInt(0);
+            long size = buffer.getInt(4) & 0xFFFFFFFFL;
+            if (id == fourCc("ds64")) {
+                readFully(channel, buffer, position + 8, 24);
+                dataSize64 = buffer.getLong(8);
+            } else if (id == fourCc("fmt ")) {
+                readFully(channel, buffer, position + 8, 16);
+                format = buffer.getShort(0) & 0xFFFF;
+                numChannels = buffer.getShort(2) & 0xFFFF;
+                info.mSampleRate = buffer.getInt(4);
+                bitsPerSample = buffer.getShort(14) & 0xFFFF;
+            } else if (id == fourCc("data")) {
+                if (dataSize64 >= 0 && size == 0xFFFFFFFFL) {
+                    size = dataSize64;
+                }
+                info.mDataOffset = position + 8;
+                info.mNumSamples = Math.min(size, fileSize - info.mDataOffset) / 2;
+                break;
+            }
+            position += 8 + size + (size & 1);
+        }
+        if (info.mDataOffset == 0) {
+            throw new IOException("No data in the WAV file");
+        }
+        if ((format != WAVE_FORMAT_PCM && format != WAVE_FORMAT_EXTENSIBLE) || numChannels != 1 || bitsPerSample != 16) {
+            throw new IOException("Unsupported WAV format: " + format + "/" + numChannels + "/" + bitsPerSample);
+        }
+        return info;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the WAV file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static int fourCc(String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+
+    private static class ByteArrayChunkWriter implements ChunkWriter {
+        private byte[] mArray = new byte[0];
+        private int mLength;
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            if (mArray.length < mLength + length) {
+                mArray = Arrays.copyOf(mArray, Math.max(2 * mArray.length, mLength + length));
+            }
+            System.arraycopy(data, offset, mArray, mLength, length);
+            mLength += length;
+        }
+
+        @Override
+        public void writeHeader(byte[] header) {
+            System.arraycopy(header, 0, mArray, 0, header.length);
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(mArray, mLength);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import java.io.IOException;
+
+/**
+ * Wraps the packets produced by an encoder into a storage or streaming format, e.g. if the
+ * packets cannot be decoded without knowing their boundaries. The formatted bytes are written to
+ * an output stream given to the implementation.
+ */
+public interface ContainerWriter {
+
+    /**
+     * Writes codec specific data, which the encoder outputs before the first packet
+     * (e.g. with the codec-config flag of MediaCodec).
+     */
+    void writeConfig(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Writes an encoded packet.
+     */
+    void writePacket(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Writes everything that is still buffered, and marks the end of the stream if the format
+     * has such a mark. Does not close the output stream.
+     */
+    void close() throws IOException;
+}
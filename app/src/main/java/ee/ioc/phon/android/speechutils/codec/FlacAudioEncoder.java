@@ -0,0 +1,112 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import java.io.IOException;
+
+/**
+ * Encodes the PCM into FLAC frames with {@link FlacEncoder}. The first packet is the stream
+ * header (with the codec-config flag), followed by a packet per frame. The input is taken up to
+ * the end of the current block, i.e. at most one frame waits to be drained.
+ */
+public class FlacAudioEncoder implements AudioEncoder {
+
+    public static final String ENCODER_TYPE = "audio/x-flac";
+
+    public static class Factory implements AudioEncoder.Factory {
+        @Override
+        public AudioEncoder create() {
+            return new FlacAudioEncoder();
+        }
+
+        @Override
+        public String getContentType(int sampleRate) {
+            return ENCODER_TYPE;
+        }
+    }
+
+    private FlacEncoder mEncoder;
+    private short[] mSamples;
+    private int mNumSamples;
+    private long mBlockPresentationTimeUs;
+
+    private byte[] mHeader;
+    private byte[] mFrame;
+    private int mFrameLength;
+    private long mFramePresentationTimeUs;
+
+    @Override
+    public void configure(int sampleRate) throws IOException {
+        try {
+            mEncoder = new FlacEncoder(sampleRate);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        mSamples = new short[mEncoder.getBlockSize()];
+        mNumSamples = 0;
+        mHeader = mEncoder.getStreamHeader();
+        mFrame = new byte[mEncoder.getMaxFrameSize()];
+        mFrameLength = 0;
+    }
+
+    @Override
+    public String getContentType() {
+        return ENCODER_TYPE;
+    }
+
+    @Override
+    public int feed(byte[] pcm, int offset, int length, long presentationTimeUs) {
+        if (mFrameLength > 0) {
+            return 0;
+        }
+        if (mNumSamples == 0) {
+            mBlockPresentationTimeUs = presentationTimeUs;
+        }
+        int numSamples = Math.min(length / 2, mSamples.length - mNumSamples);
+        for (int i = 0; i < numSamples; i++) {
+            int pos = offset + 2 * i;
+            mSamples[mNumSamples++] = (short) ((pcm[pos] & 0xFF) | (pcm[pos + 1] << 8));
+        }
+        if (mNumSamples == mSamples.length) {
+            encodeBlock();
+        }
+        return 2 * numSamples;
+    }
+
+    @Override
+    public void drain(PacketSink sink) throws IOException {
+        if (mHeader != null) {
+            byte[] header = mHeader;
+            mHeader = null;
+            sink.onPacket(header, 0, header.length, 0, FLAG_CODEC_CONFIG);
+        }
+        if (mFrameLength > 0) {
+            int length = mFrameLength;
+            mFrameLength = 0;
+            sink.onPacket(mFrame, 0, length, mFramePresentationTimeUs, 0);
+        }
+    }
+
+    /**
+     * Encodes the incomplete block (if any) as the last, shorter frame.
+     */
+    @Override
+    public void flush(PacketSink sink) throws IOException {
+        drain(sink);
+        if (mNumSamples > 0) {
+            encodeBlock();
+            drain(sink);
+        }
+    }
+
+    @Override
+    public void release() {
+        mEncoder = null;
+        mSamples = null;
+        mFrame = null;
+    }
+
+    private void encodeBlock() {
+        mFrameLength = mEncoder.encodeFrame(mSamples, 0, mNumSamples, mFrame, 0);
+        mFramePresentationTimeUs = mBlockPresentationTimeUs;
+        mNumSamples = 0;
+    }
+}
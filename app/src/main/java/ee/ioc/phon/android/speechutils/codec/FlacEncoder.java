@@ -0,0 +1,715 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+/**
+ * FLAC encoder for 16-bit mono audio, for devices that do not offer a FLAC encoder via MediaCodec.
+ * <p/>
+ * The stream starts with the header returned by {@link #getStreamHeader()} (the "fLaC" marker
+ * and the STREAMINFO block), followed by the frames returned by {@link #encodeFrame}, one
+ * frame per block of samples. All the blocks must have the same size, except the last one,
+ * which can be shorter. The total number of samples and the MD5 signature in STREAMINFO are
+ * left unset (allowed by the format), so that the frames can be streamed as they are encoded
+ * (the header of a complete stream can fill in its size, see {@link BatchTranscoder}).
+ * <p/>
+ * Every subframe is encoded with the cheapest of the CONSTANT, VERBATIM, FIXED (order 0-4) and
+ * LPC (order 1-8, coefficients from the windowed autocorrelation) predictors, and the residual
+ * is Rice coded with the partition order and the Rice parameters estimated from the residual.
+ * With block sizes up to 4608, the stream conforms to the "subset" of the format, i.e. any
+ * decoder (including streaming ones) can play it.
+ * <p/>
+ * The encoder allocates only in the constructor, so it can be called on the recording thread.
+ * It is not thread-safe.
+ */
+public final class FlacEncoder {
+
+    // 1152 samples is 72 ms at 16 kHz, i.e. the latency stays low (the Android encoder uses the same size)
+    public static final int DEFAULT_BLOCK_SIZE = 1152;
+
+    private static final int MAX_BLOCK_SIZE = 16384;
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_LPC_ORDER = 8;
+    private static final int QLP_PRECISION = 12;
+    private static final int MAX_QLP_SHIFT = 15;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+    private static final int SUBFRAME_LPC = 32;
+
+    private static final int STREAM_HEADER_SIZE = 42;
+    // Sync code, block size, sample rate, channels, sample size, frame number, extra fields, CRC-8
+    private static final int MAX_FRAME_HEADER_SIZE = 16;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xFF;
+            CRC16_TABLE[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mBlockSize;
+    private final BitWriter mWriter = new BitWriter();
+
+    private long mFrameNumber = 0;
+
+    // Work arrays, sized for a block
+    private final int[] mResidual;
+    private final int[] mBestResidual;
+    private final double[] mWindowed;
+    private final double[] mAutoc = new double[MAX_LPC_ORDER + 1];
+    private final double[][] mLpc = new double[MAX_LPC_ORDER][MAX_LPC_ORDER];
+    private final int[] mQlp = new int[MAX_LPC_ORDER];
+    private final int[] mBestQlp = new int[MAX_LPC_ORDER];
+    private final long[] mPartitionSums = new long[2 << MAX_PARTITION_ORDER];
+    private final int[] mRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final int[] mBestRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+
+    // Result of the last residual estimate
+    private int mPartitionOrder;
+    private int mBestPartitionOrder;
+
+    /**
+     * @param sampleRate sample rate (up to 655350 Hz)
+     * @param blockSize  number of samples per frame (16-16384)
+     */
+    public FlacEncoder(int sampleRate, int blockSize) {
+        if (blockSize < 16 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Unsupported block size: " + blockSize);
+        }
+        if (sampleRate <= 0 || getSampleRateCode(sampleRate) < 0) {
+            throw new IllegalArgumentException("Unsupported sample rate: " + sampleRate);
+        }
+        mSampleRate = sampleRate;
+        mBlockSize = blockSize;
+        mResidual = new int[blockSize];
+        mBestResidual = new int[blockSize];
+        mWindowed = new double[blockSize];
+    }
+
+    public FlacEncoder(int sampleRate) {
+        this(sampleRate, DEFAULT_BLOCK_SIZE);
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * @return upper bound of the size of an encoded frame in bytes
+     */
+    public int getMaxFrameSize() {
+        return MAX_FRAME_HEADER_SIZE + 1 + mBlockSize * BITS_PER_SAMPLE / 8 + 2;
+    }
+
+    /**
+     * Restarts the frame numbering, i.e. the next frame starts a new stream.
+     */
+    public void reset() {
+        mFrameNumber = 0;
+    }
+
+    /**
+     * Sets the number of the next frame, e.g. to encode a part of a stream that starts with the
+     * given frame (such parts can be encoded in parallel by different encoders, and concatenated).
+     */
+    public void setFrameNumber(long frameNumber) {
+        mFrameNumber = frameNumber;
+    }
+
+    /**
+     * @return "fLaC" marker followed by the STREAMINFO metadata block
+     */
+    public byte[] getStreamHeader() {
+        return getStreamHeader(0, 0, 0, true);
+    }
+
+    /**
+     * @param minFrameSize min size of a frame in bytes (0 if unknown)
+     * @param maxFrameSize max size of a frame in bytes (0 if unknown)
+     * @param numSamples   total number of samples (0 if unknown)
+     * @param isLast       true if no other metadata blocks follow STREAMINFO
+     * @return "fLaC" marker followed by the STREAMINFO metadata block
+     */
+    public byte[] getStreamHeader(int minFrameSize, int maxFrameSize, long numSamples, boolean isLast) {
+        byte[] header = new byte[STREAM_HEADER_SIZE];
+        BitWriter w = mWriter;
+        w.reset(header, 0);
+        w.writeBits(0x664C6143, 32); // "fLaC"
+        w.writeBits(isLast ? 1 : 0, 1); // last metadata block
+        w.writeBits(0, 7); // STREAMINFO
+        w.writeBits(34, 24);
+        w.writeBits(mBlockSize, 16); // min block size
+        w.writeBits(mBlockSize, 16); // max block size
+        w.writeBits(minFrameSize, 24);
+        w.writeBits(maxFrameSize, 24);
+        w.writeBits(mSampleRate, 20);
+        w.writeBits(0, 3); // channels - 1
+        w.writeBits(BITS_PER_SAMPLE - 1, 5);
+        w.writeBits((int) (numSamples >>> 32) & 0xF, 4); // total samples (36 bits)
+        w.writeBits((int) numSamples, 32);
+        for (int i = 0; i < 4; i++) {
+            w.writeBits(0, 32); // MD5: unknown
+        }
+        return header;
+    }
+
+    /**
+     * Encodes the given block of samples into a frame.
+     *
+     * @param samples    samples
+     * @param offset     index of the first sample of the block
+     * @param numSamples number of samples in the block, must equal the block size, except for the last block
+     * @param dst        array to write the frame to, must have room for {@link #getMaxFrameSize()} bytes
+     * @param dstOffset  index in dst to write the frame to
+     * @return size of the frame in bytes
+     */
+    public int encodeFrame(short[] samples, int offset, int numSamples, byte[] dst, int dstOffset) {
+        if (numSamples < 1 || numSamples > mBlockSize) {
+            throw new IllegalArgumentException("Unsupported number of samples: " + numSamples);
+        }
+        BitWriter w = mWriter;
+        w.reset(dst, dstOffset);
+        writeFrameHeader(w, numSamples);
+        writeSubframe(w, samples, offset, numSamples);
+        w.alignToByte();
+        int crc16 = crc16(dst, dstOffset, w.getPosition() - dstOffset);
+        w.writeBits(crc16, 16);
+        mFrameNumber++;
+        return w.getPosition() - dstOffset;
+    }
+
+    private void writeFrameHeader(BitWriter w, int numSamples) {
+        int start = w.getPosition();
+        int blockSizeCode = getBlockSizeCode(numSamples);
+        int sampleRateCode = getSampleRateCode(mSampleRate);
+        w.writeBits(0x3FFE, 14); // sync code
+        w.writeBits(0, 1); // reserved
+        w.writeBits(0, 1); // fixed block size
+        w.writeBits(blockSizeCode, 4);
+        w.writeBits(sampleRateCode, 4);
+        w.writeBits(0, 4); // mono
+        w.writeBits(4, 3); // 16 bits per sample
+        w.writeBits(0, 1); // reserved
+        writeUtf8(w, mFrameNumber);
+        if (blockSizeCode == 6) {
+            w.writeBits(numSamples - 1, 8);
+        } else if (blockSizeCode == 7) {
+            w.writeBits(numSamples - 1, 16);
+        }
+        if (sampleRateCode == 12) {
+            w.writeBits(mSampleRate / 1000, 8);
+        } else if (sampleRateCode == 13) {
+            w.writeBits(mSampleRate, 16);
+        } else if (sampleRateCode == 14) {
+            w.writeBits(mSampleRate / 10, 16);
+        }
+        w.writeBits(crc8(w.getArray(), start, w.getPosition() - start), 8);
+    }
+
+    /**
+     * Writes the subframe with the cheapest predictor.
+     */
+    private void writeSubframe(BitWriter w, short[] x, int off, int n) {
+        if (isConstant(x, off, n)) {
+            w.writeBits(SUBFRAME_CONSTANT << 1, 8);
+            w.writeBits(x[off], BITS_PER_SAMPLE);
+            return;
+        }
+        long bestBits = 8 + (long) n * BITS_PER_SAMPLE;
+        int bestType = SUBFRAME_VERBATIM;
+        int bestOrder = 0;
+        int bestShift = 0;
+
+        int maxFixedOrder = Math.min(MAX_FIXED_ORDER, n - 1);
+        for (int order = 0; order <= maxFixedOrder; order++) {
+            computeFixedResidual(x, off, n, order, mResidual);
+            long bits = 8 + (long) order * BITS_PER_SAMPLE + estimateResidualBits(mResidual, n, order);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestType = SUBFRAME_FIXED;
+                bestOrder = order;
+                keepBest();
+            }
+        }
+
+        int maxLpcOrder = Math.min(MAX_LPC_ORDER, n - 1);
+        int numLpc = computeLpc(x, off, n, maxLpcOrder);
+        for (int order = 1; order <= numLpc; order++) {
+            int shift = quantize(mLpc[order - 1], order, mQlp);
+            if (shift < 0) {
+                continue;
+            }
+            computeLpcResidual(x, off, n, order, mQlp, shift, mResidual);
+            long bits = 8 + (long) order * BITS_PER_SAMPLE + 4 + 5 + (long) order * QLP_PRECISION
+                    + estimateResidualBits(mResidual, n, order);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestType = SUBFRAME_LPC;
+                bestOrder = order;
+                bestShift = shift;
+                System.arraycopy(mQlp, 0, mBestQlp, 0, order);
+                keepBest();
+            }
+        }
+
+        if (bestType == SUBFRAME_VERBATIM) {
+            w.writeBits(SUBFRAME_VERBATIM << 1, 8);
+            for (int i = 0; i < n; i++) {
+                w.writeBits(x[off + i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+        if (bestType == SUBFRAME_FIXED) {
+            w.writeBits((SUBFRAME_FIXED | bestOrder) << 1, 8);
+        } else {
+            w.writeBits((SUBFRAME_LPC | (bestOrder - 1)) << 1, 8);
+        }
+        for (int i = 0; i < bestOrder; i++) {
+            w.writeBits(x[off + i], BITS_PER_SAMPLE);
+        }
+        if (bestType == SUBFRAME_LPC) {
+            w.writeBits(QLP_PRECISION - 1, 4);
+            w.writeBits(bestShift, 5);
+            for (int i = 0; i < bestOrder; i++) {
+                w.writeBits(mBestQlp[i], QLP_PRECISION);
+            }
+        }
+        writeResidual(w, mBestResidual, n, bestOrder);
+    }
+
+    private void keepBest() {
+        System.arraycopy(mResidual, 0, mBestResidual, 0, mResidual.length);
+        System.arraycopy(mRiceParameters, 0, mBestRiceParameters, 0, 1 << mPartitionOrder);
+        mBestPartitionOrder = mPartitionOrder;
+    }
+
+    private void writeResidual(BitWriter w, int[] residual, int n, int order) {
+        int partitionOrder = mBestPartitionOrder;
+        int numPartitions = 1 << partitionOrder;
+        int partitionSize = n >> partitionOrder;
+        w.writeBits(0, 2); // Rice coding with 4-bit parameters
+        w.writeBits(partitionOrder, 4);
+        int i = order;
+        for (int p = 0; p < numPartitions; p++) {
+            int k = mBestRiceParameters[p];
+            w.writeBits(k, 4);
+            int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                w.writeRice(fold(residual[i]), k);
+            }
+        }
+    }
+
+    /**
+     * Finds the partition order and the Rice parameters that minimize the size of the
+     * coded residual (stored in mPartitionOrder and mRiceParameters).
+     *
+     * @return size of the coded residual in bits (including the partition order and the parameters)
+     */
+    private long estimateResidualBits(int[] residual, int n, int order) {
+        // The partitions must divide the block evenly, and the first one must be longer than the warm-up
+        int maxPartitionOrder = 0;
+        while (maxPartitionOrder < MAX_PARTITION_ORDER
+                && ((n >> (maxPartitionOrder + 1)) << (maxPartitionOrder + 1)) == n
+                && (n >> (maxPartitionOrder + 1)) > order) {
+            maxPartitionOrder++;
+        }
+        // Sums of the folded residual of the finest partitions, followed by the sums of the coarser ones
+        long[] sums = mPartitionSums;
+        int numPartitions = 1 << maxPartitionOrder;
+        int partitionSize = n >> maxPartitionOrder;
+        int i = order;
+        for (int p = 0; p < numPartitions; p++) {
+            long sum = 0;
+            int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                sum += fold(residual[i]);
+            }
+            sums[p] = sum;
+        }
+        long bestBits = Long.MAX_VALUE;
+        int from = 0;
+        for (int partitionOrder = maxPartitionOrder; partitionOrder >= 0; partitionOrder--) {
+            numPartitions = 1 << partitionOrder;
+            partitionSize = n >> partitionOrder;
+            if (partitionOrder < maxPartitionOrder) {
+                // merge pairs of the finer partitions
+                int finer = from;
+                from += 2 * numPartitions;
+                for (int p = 0; p < numPartitions; p++) {
+                    sums[from + p] = sums[finer + 2 * p] + sums[finer + 2 * p + 1];
+                }
+            }
+            long bits = 4;
+            for (int p = 0; p < numPartitions; p++) {
+                int count = p == 0 ? partitionSize - order : partitionSize;
+                bits += 4 + getRiceBits(sums[from + p], count);
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                mPartitionOrder = partitionOrder;
+                for (int p = 0; p < numPartitions; p++) {
+                    mRiceParameters[p] = getRiceParameter(sums[from + p], p == 0 ? partitionSize - order : partitionSize);
+                }
+            }
+        }
+        return 2 + bestBits;
+    }
+
+    /**
+     * @return bits needed to Rice code the given number of folded values with the given sum,
+     * using the parameter returned by {@link #getRiceParameter}
+     */
+    private static long getRiceBits(long sum, int count) {
+        return getRiceBits(sum, count, getRiceParameter(sum, count));
+    }
+
+    /**
+     * As the sum of the quotients is at most the quotient of the sum, this is an upper bound
+     * of the actual size, i.e. the chosen subframe is never larger than the verbatim one.
+     */
+    private static long getRiceBits(long sum, int count, int k) {
+        return (long) count * (k + 1) + (sum >> k);
+    }
+
+    /**
+     * @return Rice parameter for the given number of folded values with the given sum: the one
+     * around log2 of the mean that minimizes the size
+     */
+    private static int getRiceParameter(long sum, int count) {
+        int k = 0;
+        while (k < MAX_RICE_PARAMETER && ((long) count << (k + 1)) < sum) {
+            k++;
+        }
+        if (k < MAX_RICE_PARAMETER && getRiceBits(sum, count, k + 1) < getRiceBits(sum, count, k)) {
+            return k + 1;
+        }
+        if (k > 0 && getRiceBits(sum, count, k - 1) < getRiceBits(sum, count, k)) {
+            return k - 1;
+        }
+        return k;
+    }
+
+    /**
+     * Computes the LP coefficients of orders 1..maxOrder using the Welch window and Levinson-Durbin.
+     *
+     * @return max order for which the coefficients could be computed
+     */
+    private int computeLpc(short[] x, int off, int n, int maxOrder) {
+        double[] windowed = mWindowed;
+        double half = (n - 1) / 2.0;
+        for (int i = 0; i < n; i++) {
+            double t = (i - half) / (half + 1);
+            windowed[i] = x[off + i] * (1 - t * t);
+        }
+        double[] autoc = mAutoc;
+        for (int lag = 0; lag <= maxOrder; lag++) {
+            double sum = 0;
+            for (int i = lag; i < n; i++) {
+                sum += windowed[i] * windowed[i - lag];
+            }
+            autoc[lag] = sum;
+        }
+        if (autoc[0] == 0) {
+            return 0;
+        }
+        double err = autoc[0];
+        double[] prev = null;
+        for (int order = 1; order <= maxOrder; order++) {
+            double[] lpc = mLpc[order - 1];
+            double acc = autoc[order];
+            for (int j = 1; j < order; j++) {
+                acc -= prev[j - 1] * autoc[order - j];
+            }
+            double k = acc / err;
+            for (int j = 1; j < order; j++) {
+                lpc[j - 1] = prev[j - 1] - k * prev[order - j - 1];
+            }
+            lpc[order - 1] = k;
+            err *= 1 - k * k;
+            prev = lpc;
+            if (err <= 0) {
+                return order;
+            }
+        }
+        return maxOrder;
+    }
+
+    /**
+     * Quantizes the given coefficients with error feedback.
+     *
+     * @return shift of the quantized coefficients, or -1 if they cannot be quantized
+     */
+    private static int quantize(double[] lpc, int order, int[] qlp) {
+        double max = 0;
+        for (int i = 0; i < order; i++) {
+            max = Math.max(max, Math.abs(lpc[i]));
+        }
+        if (max <= 0) {
+            return -1;
+        }
+        int qmax = (1 << (QLP_PRECISION - 1)) - 1;
+        int qmin = -qmax - 1;
+        int log2max = Math.getExponent(max);
+        int shift = Math.min(MAX_QLP_SHIFT, QLP_PRECISION - 2 - log2max);
+        if (shift < 0) {
+            return -1;
+        }
+        double error = 0;
+        for (int i = 0; i < order; i++) {
+            error += lpc[i] * (1 << shift);
+            long q = Math.round(error);
+            if (q > qmax) {
+                q = qmax;
+            } else if (q < qmin) {
+                q = qmin;
+            }
+            error -= q;
+            qlp[i] = (int) q;
+        }
+        return shift;
+    }
+
+    private static void computeLpcResidual(short[] x, int off, int n, int order, int[] qlp, int shift, int[] residual) {
+        for (int i = order; i < n; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) qlp[j] * x[off + i - j - 1];
+            }
+            residual[i] = x[off + i] - (int) (sum >> shift);
+        }
+    }
+
+    private static void computeFixedResidual(short[] x, int off, int n, int order, int[] residual) {
+        switch (order) {
+            case 0:
+                for (int i = 0; i < n; i++) {
+                    residual[i] = x[off + i];
+                }
+                break;
+            case 1:
+                for (int i = 1; i < n; i++) {
+                    residual[i] = x[off + i] - x[off + i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < n; i++) {
+                    residual[i] = x[off + i] - 2 * x[off + i - 1] + x[off + i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < n; i++) {
+                    residual[i] = x[off + i] - 3 * x[off + i - 1] + 3 * x[off + i - 2] - x[off + i - 3];
+                }
+                break;
+            default:
+                for (int i = 4; i < n; i++) {
+                    residual[i] = x[off + i] - 4 * x[off + i - 1] + 6 * x[off + i - 2] - 4 * x[off + i - 3] + x[off + i - 4];
+                }
+                break;
+        }
+    }
+
+    private static boolean isConstant(short[] x, int off, int n) {
+        for (int i = off + 1; i < off + n; i++) {
+            if (x[i] != x[off]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps signed values to unsigned ones: 0, -1, 1, -2, 2, ... to 0, 1, 2, 3, 4, ...
+     */
+    private static int fold(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void writeUtf8(BitWriter w, long value) {
+        if (value < 0x80) {
+            w.writeBits((int) value, 8);
+            return;
+        }
+        int numBytes = 2;
+        while (numBytes < 7 && value >= 1L << (5 * numBytes + 1)) {
+            numBytes++;
+        }
+        int shift = 6 * (numBytes - 1);
+        // leading ones for the length, followed by a zero and the top bits
+        w.writeBits((0xFF00 >> numBytes) & 0xFF | (int) (value >>> shift), 8);
+        while (shift > 0) {
+            shift -= 6;
+            w.writeBits(0x80 | (int) ((value >>> shift) & 0x3F), 8);
+        }
+    }
+
+    /**
+     * @return block size code of the frame header (6 and 7 mean that the size follows as 8 or 16 bits)
+     */
+    private static int getBlockSizeCode(int blockSize) {
+        switch (blockSize) {
+            case 192:
+                return 1;
+            case 576:
+                return 2;
+            case 1152:
+                return 3;
+            case 2304:
+                return 4;
+            case 4608:
+                return 5;
+            case 256:
+                return 8;
+            case 512:
+                return 9;
+            case 1024:
+                return 10;
+            case 2048:
+                return 11;
+            case 4096:
+                return 12;
+            case 8192:
+                return 13;
+            case 16384:
+                return 14;
+            default:
+                return blockSize <= 256 ? 6 : 7;
+        }
+    }
+
+    /**
+     * @return sample rate code of the frame header (12-14 mean that the rate follows), or -1 if
+     * the sample rate cannot be expressed in a frame header
+     */
+    private static int getSampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 88200:
+                return 1;
+            case 176400:
+                return 2;
+            case 192000:
+                return 3;
+            case 8000:
+                return 4;
+            case 16000:
+                return 5;
+            case 22050:
+                return 6;
+            case 24000:
+                return 7;
+            case 32000:
+                return 8;
+            case 44100:
+                return 9;
+            case 48000:
+                return 10;
+            case 96000:
+                return 11;
+            default:
+                if (sampleRate % 1000 == 0 && sampleRate / 1000 <= 0xFF) {
+                    return 12;
+                }
+                if (sampleRate <= 0xFFFF) {
+                    return 13;
+                }
+                if (sampleRate % 10 == 0 && sampleRate / 10 <= 0xFFFF) {
+                    return 14;
+                }
+                return -1;
+        }
+    }
+
+    private static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Writes bits into a byte array, most significant bit first.
+     */
+    private static final class BitWriter {
+        private byte[] mArray;
+        private int mPosition;
+        private long mAcc;
+        private int mNumAccBits;
+
+        private void reset(byte[] array, int position) {
+            mArray = array;
+            mPosition = position;
+            mAcc = 0;
+            mNumAccBits = 0;
+        }
+
+        private byte[] getArray() {
+            return mArray;
+        }
+
+        /**
+         * @return position of the next byte, only meaningful at byte boundaries
+         */
+        private int getPosition() {
+            return mPosition;
+        }
+
+        /**
+         * Writes the lowest numBits (at most 32) of the given value.
+         */
+        private void writeBits(int value, int numBits) {
+            mAcc = (mAcc << numBits) | (value & (0xFFFFFFFFL >>> (32 - numBits)));
+            mNumAccBits += numBits;
+            while (mNumAccBits >= 8) {
+                mNumAccBits -= 8;
+                mArray[mPosition++] = (byte) (mAcc >>> mNumAccBits);
+            }
+        }
+
+        /**
+         * Writes the quotient in unary (zeros terminated by a one), followed by the k low bits.
+         */
+        private void writeRice(int value, int k) {
+            int q = value >>> k;
+            while (q >= 32) {
+                writeBits(0, 32);
+                q -= 32;
+            }
+            writeBits(1, q + 1);
+            if (k > 0) {
+                writeBits(value, k);
+            }
+        }
+
+        private void alignToByte() {
+            if (mNumAccBits > 0) {
+                writeBits(0, 8 - mNumAccBits);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+/**
+ * IMA ADPCM (4 bits per sample) in the block layout of the WAV format (mono):
+ * each block starts with a 4-byte header (the first sample as 16-bit little-endian, the step index,
+ * and a reserved zero byte), followed by the remaining samples as 4-bit codes, two per byte,
+ * low nibble first. Blocks can be decoded independently of each other.
+ * <p/>
+ * The methods do not allocate, so they can be called on the recording thread.
+ */
+public final class ImaAdpcm {
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    private static final int HEADER_SIZE = 4;
+
+    private ImaAdpcm() {
+    }
+
+    /**
+     * @return size in bytes of a block that holds the given number of samples
+     */
+    public static int getBlockSize(int samplesPerBlock) {
+        return HEADER_SIZE + samplesPerBlock / 2;
+    }
+
+    /**
+     * Encodes a block of samples.
+     *
+     * @param stepIndex step index at the end of the previous block (0 for the first block)
+     * @return step index at the end of this block, to be passed to the next call
+     */
+    public static int encodeBlock(short[] src, int srcPos, int numSamples, byte[] dst, int dstPos, int stepIndex) {
+        int predictor = src[srcPos];
+        dst[dstPos] = (byte) predictor;
+        dst[dstPos + 1] = (byte) (predictor >> 8);
+        dst[dstPos + 2] = (byte) stepIndex;
+        dst[dstPos + 3] = 0;
+        int out = dstPos + HEADER_SIZE;
+        for (int i = 1; i < numSamples; i++) {
+            int diff = src[srcPos + i] - predictor;
+            int step = STEP_TABLE[stepIndex];
+            int code = 0;
+            if (diff < 0) {
+                code = 8;
+                diff = -diff;
+            }
+            int delta = step >> 3;
+            if (diff >= step) {
+                code |= 4;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 2;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 1;
+                delta += step;
+            }
+            predictor = clip(predictor + ((code & 8) == 0 ? delta : -delta));
+            stepIndex = clipIndex(stepIndex + INDEX_TABLE[code]);
+            if ((i & 1) == 1) {
+                dst[out] = (byte) code;
+            } else {
+                dst[out] |= (byte) (code << 4);
+                out++;
+            }
+        }
+        return stepIndex;
+    }
+
+    /**
+     * Decodes a block of samples.
+     */
+    public static void decodeBlock(byte[] src, int srcPos, short[] dst, int dstPos, int numSamples) {
+        int predictor = (short) ((src[srcPos] & 0xff) | (src[srcPos + 1] << 8));
+        int stepIndex = clipIndex(src[srcPos + 2]);
+        dst[dstPos] = (short) predictor;
+        int in = srcPos + HEADER_SIZE;
+        for (int i = 1; i < numSamples; i++) {
+            int code;
+            if ((i & 1) == 1) {
+                code = src[in] & 0x0f;
+            } else {
+                code = (src[in] >> 4) & 0x0f;
+                in++;
+            }
+            int step = STEP_TABLE[stepIndex];
+            int delta = step >> 3;
+            if ((code & 4) != 0) delta += step;
+            if ((code & 2) != 0) delta += step >> 1;
+            if ((code & 1) != 0) delta += step >> 2;
+            predictor = clip(predictor + ((code & 8) == 0 ? delta : -delta));
+            stepIndex = clipIndex(stepIndex + INDEX_TABLE[code]);
+            dst[dstPos + i] = (short) predictor;
+        }
+    }
+
+    private static int clip(int sample) {
+        if (sample > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (sample < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return sample;
+    }
+
+    private static int clipIndex(int index) {
+        if (index < 0) return 0;
+        if (index > 88) return 88;
+        return index;
+    }
+}
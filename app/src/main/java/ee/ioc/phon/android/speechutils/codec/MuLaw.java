@@ -0,0 +1,62 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+/**
+ * G.711 mu-law (8 bits per sample). Decoding is a table lookup.
+ * <p/>
+ * The methods do not allocate, so they can be called on the recording thread.
+ */
+public final class MuLaw {
+
+    private static final int BIAS = 0x84;
+    private static final int CLIP = 32635;
+
+    private static final short[] DECODE_TABLE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int u = ~i & 0xff;
+            int exponent = (u >> 4) & 0x07;
+            int mantissa = u & 0x0f;
+            int sample = (((mantissa << 3) + BIAS) << exponent) - BIAS;
+            DECODE_TABLE[i] = (short) ((u & 0x80) != 0 ? -sample : sample);
+        }
+    }
+
+    private MuLaw() {
+    }
+
+    public static byte encode(short sample) {
+        int s = sample;
+        int sign = 0;
+        if (s < 0) {
+            s = -s;
+            sign = 0x80;
+        }
+        if (s > CLIP) {
+            s = CLIP;
+        }
+        s += BIAS;
+        int exponent = 7;
+        for (int mask = 0x4000; (s & mask) == 0 && exponent > 0; mask >>= 1) {
+            exponent--;
+        }
+        int mantissa = (s >> (exponent + 3)) & 0x0f;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+
+    public static short decode(byte code) {
+        return DECODE_TABLE[code & 0xff];
+    }
+
+    public static void encode(short[] src, int srcPos, byte[] dst, int dstPos, int numSamples) {
+        for (int i = 0; i < numSamples; i++) {
+            dst[dstPos + i] = encode(src[srcPos + i]);
+        }
+    }
+
+    public static void decode(byte[] src, int srcPos, short[] dst, int dstPos, int numSamples) {
+        for (int i = 0; i < numSamples; i++) {
+            dst[dstPos + i] = DECODE_TABLE[src[srcPos + i] & 0xff];
+        }
+    }
+}
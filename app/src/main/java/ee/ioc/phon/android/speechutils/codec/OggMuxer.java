@@ -0,0 +1,226 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Ogg page muxer for a single logical bitstream (RFC 3533). Packets are buffered and written to
+ * the output stream as pages. A page is written when it has 255 segments, when its body reaches
+ * the maximum page size, or when its packets span the maximum page duration (measured in granules,
+ * i.e. the latency of the stream is bounded by the duration plus a packet), and on {@link #flush()}
+ * and {@link #close()}. A packet that does not fit into a page is continued on the next page.
+ * <p/>
+ * The first page is marked as the beginning of the stream, and the page written by
+ * {@link #close()} as its end. The granule position of a page is the granule position of the
+ * last packet that is completed on the page, or -1 if there is none.
+ */
+public class OggMuxer {
+
+    public static final int DEFAULT_MAX_PAGE_SIZE = 4096;
+
+    private static final int MAX_SEGMENTS = 255;
+    private static final int HEADER_SIZE = 27;
+
+    private static final int FLAG_CONTINUED = 0x01;
+    private static final int FLAG_BOS = 0x02;
+    private static final int FLAG_EOS = 0x04;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final OutputStream mOut;
+    private final int mSerialNumber;
+    private int mMaxPageSize = DEFAULT_MAX_PAGE_SIZE;
+    private long mMaxPageGranules = -1;
+
+    private int mSequenceNumber = 0;
+    private boolean mIsClosed = false;
+
+    // Buffered segments (lacing values), with the granule position of the packet that they complete (or -1)
+    private int[] mLacing = new int[2 * MAX_SEGMENTS];
+    private long[] mGranules = new long[2 * MAX_SEGMENTS];
+    private int mNumSegments = 0;
+    // Granule position of the last page, i.e. the start of the buffered packets
+    private long mLastGranule = 0;
+    // Granule position of the last buffered packet
+    private long mBufferedGranule = 0;
+    private boolean mIsContinued = false;
+
+    private byte[] mBody = new byte[DEFAULT_MAX_PAGE_SIZE];
+    private int mBodyLength = 0;
+
+    private final byte[] mPage = new byte[HEADER_SIZE + MAX_SEGMENTS + MAX_SEGMENTS * 255];
+
+    public OggMuxer(OutputStream out, int serialNumber) {
+        mOut = out;
+        mSerialNumber = serialNumber;
+    }
+
+    /**
+     * Sets the size of the page body (in bytes) at which the page is written.
+     */
+    public OggMuxer setMaxPageSize(int maxPageSize) {
+        mMaxPageSize = maxPageSize;
+        return this;
+    }
+
+    /**
+     * Sets the duration of a page (in granules) at which the page is written, e.g. to stream with
+     * a low latency. Non-positive values switch it off (the default).
+     */
+    public OggMuxer setMaxPageGranules(long maxPageGranules) {
+        mMaxPageGranules = maxPageGranules;
+        return this;
+    }
+
+    public int getSerialNumber() {
+        return mSerialNumber;
+    }
+
+    /**
+     * @return number of pages written
+     */
+    public int getNumPages() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * Buffers the given packet, and writes the pages that are complete according to the flushing policy.
+     *
+     * @param granulePosition granule position of the end of the packet
+     */
+    public void writePacket(byte[] packet, int offset, int length, long granulePosition) throws IOException {
+        if (mIsClosed) {
+            throw new IOException("Stream is closed");
+        }
+        // The page is written when the next packet arrives, so that the last page can be marked by close()
+        if (mMaxPageGranules > 0 && mNumSegments > 0 && mBufferedGranule - mLastGranule >= mMaxPageGranules) {
+            flush();
+        }
+        int numSegments = length / 255 + 1;
+        ensureCapacity(numSegments, length);
+        System.arraycopy(packet, offset, mBody, mBodyLength, length);
+        mBodyLength += length;
+        for (int i = 0; i < numSegments; i++) {
+            mLacing[mNumSegments] = i < numSegments - 1 ? 255 : length % 255;
+            mGranules[mNumSegments] = i < numSegments - 1 ? -1 : granulePosition;
+            mNumSegments++;
+        }
+        mBufferedGranule = granulePosition;
+        while (mNumSegments >= MAX_SEGMENTS || mBodyLength >= mMaxPageSize) {
+            writePage(0);
+        }
+    }
+
+    /**
+     * Writes the buffered packets, so that the next packet starts on a new page.
+     */
+    public void flush() throws IOException {
+        while (mNumSegments > 0) {
+            writePage(0);
+        }
+    }
+
+    /**
+     * Writes the buffered packets, and marks the last page as the end of the stream
+     * (an empty page is written if nothing is buffered). Does not close the output stream.
+     */
+    public void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        do {
+            writePage(mNumSegments <= MAX_SEGMENTS ? FLAG_EOS : 0);
+        } while (mNumSegments > 0);
+        mIsClosed = true;
+    }
+
+    private void writePage(int flags) throws IOException {
+        int numSegments = Math.min(mNumSegments, MAX_SEGMENTS);
+        int bodyLength = 0;
+        long granule = -1;
+        for (int i = 0; i < numSegments; i++) {
+            bodyLength += mLacing[i];
+            if (mGranules[i] != -1) {
+                granule = mGranules[i];
+            }
+        }
+        if (mIsContinued) {
+            flags |= FLAG_CONTINUED;
+        }
+        if (mSequenceNumber == 0) {
+            flags |= FLAG_BOS;
+        }
+        if (numSegments == 0) {
+            granule = mLastGranule;
+        }
+
+        byte[] page = mPage;
+        page[0] = 'O';
+        page[1] = 'g';
+        page[2] = 'g';
+        page[3] = 'S';
+        page[4] = 0; // version
+        page[5] = (byte) flags;
+        putLe(page, 6, granule, 8);
+        putLe(page, 14, mSerialNumber, 4);
+        putLe(page, 18, mSequenceNumber, 4);
+        putLe(page, 22, 0, 4); // CRC, computed with zeros
+        page[26] = (byte) numSegments;
+        for (int i = 0; i < numSegments; i++) {
+            page[HEADER_SIZE + i] = (byte) mLacing[i];
+        }
+        int headerLength = HEADER_SIZE + numSegments;
+        System.arraycopy(mBody, 0, page, headerLength, bodyLength);
+        int pageLength = headerLength + bodyLength;
+        putLe(page, 22, crc(page, 0, pageLength), 4);
+        mOut.write(page, 0, pageLength);
+
+        mSequenceNumber++;
+        mIsContinued = numSegments > 0 && mLacing[numSegments - 1] == 255;
+        if (granule != -1) {
+            mLastGranule = granule;
+        }
+        // remove the written segments
+        mNumSegments -= numSegments;
+        System.arraycopy(mLacing, numSegments, mLacing, 0, mNumSegments);
+        System.arraycopy(mGranules, numSegments, mGranules, 0, mNumSegments);
+        mBodyLength -= bodyLength;
+        System.arraycopy(mBody, bodyLength, mBody, 0, mBodyLength);
+    }
+
+    private void ensureCapacity(int numSegments, int length) {
+        if (mNumSegments + numSegments > mLacing.length) {
+            int capacity = Math.max(2 * mLacing.length, mNumSegments + numSegments);
+            mLacing = Arrays.copyOf(mLacing, capacity);
+            mGranules = Arrays.copyOf(mGranules, capacity);
+        }
+        if (mBodyLength + length > mBody.length) {
+            mBody = Arrays.copyOf(mBody, Math.max(2 * mBody.length, mBodyLength + length));
+        }
+    }
+
+    private static void putLe(byte[] array, int offset, long value, int numBytes) {
+        for (int i = 0; i < numBytes; i++) {
+            array[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static int crc(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,199 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes Opus packets as an Ogg Opus stream (RFC 7845): the identification header (OpusHead)
+ * and the comment header (OpusTags) on pages of their own, followed by the audio pages.
+ * The granule position counts the samples at 48 kHz (as required by the format), and is derived
+ * from the packets themselves (their TOC byte), i.e. it does not depend on timestamps.
+ * <p/>
+ * The identification header is taken from the codec specific data if it contains one
+ * (as plain OpusHead, or in the marked form of the Android encoders), otherwise it is
+ * generated with the default pre-skip.
+ */
+public class OggOpusWriter implements ContainerWriter {
+
+    // Encoder delay of libopus at 48 kHz, used if the encoder does not report it
+    public static final int DEFAULT_PRE_SKIP = 312;
+
+    private static final int GRANULE_RATE = 48000;
+    private static final int OPUS_HEAD_SIZE = 19;
+    private static final String VENDOR = "speechutils";
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final byte[] OPUS_HEAD = "OpusHead".getBytes(US_ASCII);
+    private static final byte[] OPUS_TAGS = "OpusTags".getBytes(US_ASCII);
+    // Markers of the codec specific data of the Android Opus encoders
+    private static final byte[] MARKER_PREFIX = "AOPUS".getBytes(US_ASCII);
+    private static final byte[] MARKER_HEADER = "AOPUSHDR".getBytes(US_ASCII);
+
+    // Frame sizes (in samples at 48 kHz) by the configuration number of the TOC byte
+    private static final int[] FRAME_SIZES = {
+            480, 960, 1920, 2880, 480, 960, 1920, 2880, 480, 960, 1920, 2880, // SILK
+            480, 960, 480, 960, // Hybrid
+            120, 240, 480, 960, 120, 240, 480, 960, 120, 240, 480, 960, 120, 240, 480, 960 // CELT
+    };
+
+    private final OggMuxer mMuxer;
+    private final int mInputSampleRate;
+    private boolean mIsHeaderWritten = false;
+    private long mGranulePosition = 0;
+
+    /**
+     * @param out             output stream
+     * @param inputSampleRate sample rate of the encoded audio (informative)
+     * @param serialNumber    serial number of the Ogg stream (should be random)
+     */
+    public OggOpusWriter(OutputStream out, int inputSampleRate, int serialNumber) {
+        mMuxer = new OggMuxer(out, serialNumber);
+        mInputSampleRate = inputSampleRate;
+    }
+
+    /**
+     * Sets the max duration of an audio page, i.e. the latency of streaming (and the overhead of
+     * the page headers, about 30 bytes per page).
+     */
+    public OggOpusWriter setMaxPageMillis(int maxPageMillis) {
+        mMuxer.setMaxPageGranules((long) maxPageMillis * GRANULE_RATE / 1000);
+        return this;
+    }
+
+    /**
+     * @return number of samples (at 48 kHz) in the packets written so far
+     */
+    public long getGranulePosition() {
+        return mGranulePosition;
+    }
+
+    @Override
+    public void writeConfig(byte[] data, int offset, int length) throws IOException {
+        if (mIsHeaderWritten) {
+            return;
+        }
+        if (startsWith(data, offset, length, OPUS_HEAD)) {
+            writeHeader(data, offset, length);
+        } else if (startsWith(data, offset, length, MARKER_PREFIX)) {
+            // marker (8 bytes), length (8 bytes, little-endian), content
+            int end = offset + length;
+            while (offset + 16 <= end) {
+                int size = (int) getLe(data, offset + 8, 8);
+                int start = offset + 16;
+                if (size < 0 || start + size > end) {
+                    break;
+                }
+                if (startsWith(data, offset, end - offset, MARKER_HEADER)) {
+                    writeHeader(data, start, size);
+                    return;
+                }
+                offset = start + size;
+            }
+        }
+    }
+
+    @Override
+    public void writePacket(byte[] data, int offset, int length) throws IOException {
+        if (!mIsHeaderWritten) {
+            byte[] header = createHeader(1, DEFAULT_PRE_SKIP, mInputSampleRate);
+            writeHeader(header, 0, header.length);
+        }
+        mGranulePosition += getNumSamples(data, offset, length);
+        mMuxer.writePacket(data, offset, length, mGranulePosition);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!mIsHeaderWritten) {
+            byte[] header = createHeader(1, DEFAULT_PRE_SKIP, mInputSampleRate);
+            writeHeader(header, 0, header.length);
+        }
+        mMuxer.close();
+    }
+
+    /**
+     * @return identification header for the given number of channels (1 or 2), pre-skip
+     * (in samples at 48 kHz), and input sample rate
+     */
+    public static byte[] createHeader(int numChannels, int preSkip, int inputSampleRate) {
+        byte[] header = new byte[OPUS_HEAD_SIZE];
+        System.arraycopy(OPUS_HEAD, 0, header, 0, OPUS_HEAD.length);
+        header[8] = 1; // version
+        header[9] = (byte) numChannels;
+        putLe(header, 10, preSkip, 2);
+        putLe(header, 12, inputSampleRate, 4);
+        putLe(header, 16, 0, 2); // output gain
+        header[18] = 0; // channel mapping family
+        return header;
+    }
+
+    /**
+     * @return duration of the given packet in samples at 48 kHz (0 if the packet is malformed)
+     */
+    public static int getNumSamples(byte[] packet, int offset, int length) {
+        if (length < 1) {
+            return 0;
+        }
+        int toc = packet[offset] & 0xFF;
+        int numFrames;
+        switch (toc & 0x03) {
+            case 0:
+                numFrames = 1;
+                break;
+            case 3:
+                if (length < 2) {
+                    return 0;
+                }
+                numFrames = packet[offset + 1] & 0x3F;
+                break;
+            default:
+                numFrames = 2;
+                break;
+        }
+        return numFrames * FRAME_SIZES[toc >> 3];
+    }
+
+    /**
+     * Writes the given identification header and the comment header, each on a page of its own.
+     */
+    private void writeHeader(byte[] data, int offset, int length) throws IOException {
+        mMuxer.writePacket(data, offset, length, 0);
+        mMuxer.flush();
+        byte[] vendor = VENDOR.getBytes(US_ASCII);
+        byte[] tags = new byte[OPUS_TAGS.length + 4 + vendor.length + 4];
+        System.arraycopy(OPUS_TAGS, 0, tags, 0, OPUS_TAGS.length);
+        putLe(tags, 8, vendor.length, 4);
+        System.arraycopy(vendor, 0, tags, 12, vendor.length);
+        putLe(tags, 12 + vendor.length, 0, 4); // number of comments
+        mMuxer.writePacket(tags, 0, tags.length, 0);
+        mMuxer.flush();
+        mIsHeaderWritten = true;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getLe(byte[] array, int offset, int numBytes) {
+        long value = 0;
+        for (int i = numBytes - 1; i >= 0; i--) {
+            value = (value << 8) | (array[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void putLe(byte[] array, int offset, long value, int numBytes) {
+        for (int i = 0; i < numBytes; i++) {
+            array[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Passes the PCM through, i.e. each fed piece becomes a packet. Useful as a baseline when
+ * benchmarking the encoders, and for servers that accept raw audio.
+ */
+public class PcmAudioEncoder implements AudioEncoder {
+
+    public static final String ENCODER_TYPE = "audio/x-raw";
+
+    public static class Factory implements AudioEncoder.Factory {
+        @Override
+        public AudioEncoder create() {
+            return new PcmAudioEncoder();
+        }
+
+        @Override
+        public String getContentType(int sampleRate) {
+            return PcmAudioEncoder.getContentType(sampleRate);
+        }
+    }
+
+    private int mSampleRate;
+    private byte[] mBuffer = new byte[0];
+    private int mLength;
+    private long mPresentationTimeUs;
+
+    @Override
+    public void configure(int sampleRate) {
+        mSampleRate = sampleRate;
+        mLength = 0;
+    }
+
+    @Override
+    public String getContentType() {
+        return getContentType(mSampleRate);
+    }
+
+    /**
+     * @return content type in the same form as {@link ee.ioc.phon.android.speechutils.RawAudioRecorder}
+     */
+    static String getContentType(int sampleRate) {
+        return ENCODER_TYPE + ",+layout=(string)interleaved,+rate=(int)" + sampleRate + ",+format=(string)S16LE,+channels=(int)1";
+    }
+
+    @Override
+    public int feed(byte[] pcm, int offset, int length, long presentationTimeUs) {
+        if (mLength == 0) {
+            mPresentationTimeUs = presentationTimeUs;
+        }
+        if (mBuffer.length < mLength + length) {
+            mBuffer = Arrays.copyOf(mBuffer, mLength + length);
+        }
+        System.arraycopy(pcm, offset, mBuffer, mLength, length);
+        mLength += length;
+        return length;
+    }
+
+    @Override
+    public void drain(PacketSink sink) throws IOException {
+        if (mLength > 0) {
+            int length = mLength;
+            mLength = 0;
+            sink.onPacket(mBuffer, 0, length, mPresentationTimeUs, 0);
+        }
+    }
+
+    @Override
+    public void flush(PacketSink sink) throws IOException {
+        drain(sink);
+    }
+
+    @Override
+    public void release() {
+        mBuffer = new byte[0];
+    }
+}
@@ -0,0 +1,208 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Streams PCM into a WAV file. The header is written once, together with the first PCM (with a
+ * gathering write, i.e. the PCM is not copied to prepend the header), and the PCM is then
+ * written through as it comes.
+ * <p/>
+ * If the size of the data is not known in advance then the header reserves room for the
+ * ds64 chunk (as a JUNK chunk, as recommended by EBU Tech 3306), and the sizes are set to
+ * 0xFFFFFFFF, which the players read as "unknown". If the output is a file channel then the
+ * header is updated on {@link #close()}, and becomes an RF64 header if the data does not fit into
+ * the 32-bit sizes of RIFF (i.e. 4 GB). Data of known size gets the plain 44-byte header, or
+ * an RF64 header if it is too large.
+ */
+public class WavWriter {
+
+    public static final int RIFF_HEADER_SIZE = 44;
+    public static final int RF64_HEADER_SIZE = 80;
+
+    // Max size of the data in a RIFF file, so that the RIFF size (header included) fits into 32 bits
+    public static final long MAX_RIFF_DATA_SIZE = 0xFFFFFFFFL - RF64_HEADER_SIZE;
+
+    private static final long UNKNOWN_SIZE = -1;
+    private static final int SIZE_MARKER = 0xFFFFFFFF;
+    private static final int WAVE_FORMAT_PCM = 1;
+
+    private final GatheringByteChannel mChannel;
+    private final int mSampleRate;
+    private final int mNumChannels;
+    private final int mBitsPerSample;
+    private final long mDeclaredDataSize;
+    private final byte[] mHeader;
+    private final ByteBuffer[] mBuffers = new ByteBuffer[2];
+
+    private long mHeaderPosition = -1;
+    private long mDataSize = 0;
+    private boolean mIsClosed = false;
+
+    /**
+     * Creates a writer for data of unknown size.
+     */
+    public WavWriter(GatheringByteChannel channel, int sampleRate, int numChannels, int bitsPerSample) {
+        this(channel, sampleRate, numChannels, bitsPerSample, UNKNOWN_SIZE);
+    }
+
+    /**
+     * Creates a writer for data of the given size in bytes, whose header is final unless
+     * the output is a file channel.
+     */
+    public WavWriter(GatheringByteChannel channel, int sampleRate, int numChannels, int bitsPerSample, long dataSize) {
+        mChannel = channel;
+        mSampleRate = sampleRate;
+        mNumChannels = numChannels;
+        mBitsPerSample = bitsPerSample;
+        mDeclaredDataSize = dataSize;
+        if (dataSize == UNKNOWN_SIZE) {
+            mHeader = createHeader(UNKNOWN_SIZE, sampleRate, numChannels, bitsPerSample, true);
+        } else {
+            mHeader = getHeader(dataSize, sampleRate, numChannels, bitsPerSample);
+        }
+    }
+
+    /**
+     * @return number of bytes of PCM written so far
+     */
+    public long getDataSize() {
+        return mDataSize;
+    }
+
+    /**
+     * @return size of the header in bytes
+     */
+    public int getHeaderSize() {
+        return mHeader.length;
+    }
+
+    public void write(byte[] pcm, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(pcm, offset, length));
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer (preceded by the header, if it has not been written yet).
+     */
+    public void write(ByteBuffer pcm) throws IOException {
+        if (mIsClosed) {
+            throw new IOException("Writer is closed");
+        }
+        int length = pcm.remaining();
+        if (mHeaderPosition < 0) {
+            mHeaderPosition = mChannel instanceof FileChannel ? ((FileChannel) mChannel).position() : 0;
+            mBuffers[0] = ByteBuffer.wrap(mHeader);
+            mBuffers[1] = pcm;
+            while (mBuffers[1].hasRemaining() || mBuffers[0].hasRemaining()) {
+                mChannel.write(mBuffers);
+            }
+            mBuffers[1] = null;
+        } else {
+            writeFully(pcm);
+        }
+        mDataSize += length;
+    }
+
+    /**
+     * Writes the header if nothing has been written, pads the data to an even size, and, if the output
+     * is a file channel, updates the header with the final sizes. Does not close the channel.
+     *
+     * @throws IOException if the data does not fit into the header of the declared size, and cannot be updated
+     */
+    public void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        if (mHeaderPosition < 0) {
+            write(ByteBuffer.allocate(0));
+        }
+        mIsClosed = true;
+        if ((mDataSize & 1) != 0) {
+            writeFully(ByteBuffer.allocate(1));
+        }
+        if (mDataSize == mDeclaredDataSize) {
+            return;
+        }
+        if (!(mChannel instanceof FileChannel)) {
+            if (mDeclaredDataSize != UNKNOWN_SIZE) {
+                throw new IOException("WAV data size " + mDataSize + " differs from the declared " + mDeclaredDataSize);
+            }
+            return;
+        }
+        byte[] header;
+        if (mHeader.length == RF64_HEADER_SIZE) {
+            header = createHeader(mDataSize, mSampleRate, mNumChannels, mBitsPerSample, mDataSize <= MAX_RIFF_DATA_SIZE);
+        } else if (mDataSize <= MAX_RIFF_DATA_SIZE) {
+            header = getHeader(mDataSize, mSampleRate, mNumChannels, mBitsPerSample);
+        } else {
+            throw new IOException("WAV data size " + mDataSize + " does not fit into the RIFF header");
+        }
+        FileChannel channel = (FileChannel) mChannel;
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        long position = mHeaderPosition;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * @return header for the given size of the data in bytes: RIFF (44 bytes), or RF64 (80 bytes)
+     * if the data is too large for RIFF
+     */
+    public static byte[] getHeader(long dataSize, int sampleRate, int numChannels, int bitsPerSample) {
+        if (dataSize > MAX_RIFF_DATA_SIZE) {
+            return createHeader(dataSize, sampleRate, numChannels, bitsPerSample, false);
+        }
+        ByteBuffer header = ByteBuffer.allocate(RIFF_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(fourCc("RIFF")).putInt((int) (36 + dataSize + (dataSize & 1))).putInt(fourCc("WAVE"));
+        putFormat(header, sampleRate, numChannels, bitsPerSample);
+        header.putInt(fourCc("data")).putInt((int) dataSize);
+        return header.array();
+    }
+
+    /**
+     * @return 80-byte header with a ds64 chunk (RF64), or with a JUNK chunk of the same size
+     * in its place (RIFF, the sizes are unknown if the data size is negative)
+     */
+    private static byte[] createHeader(long dataSize, int sampleRate, int numChannels, int bitsPerSample, boolean isJunk) {
+        int blockAlign = numChannels * ((bitsPerSample + 7) / 8);
+        long riffSize = dataSize < 0 ? -1 : RF64_HEADER_SIZE - 8 + dataSize + (dataSize & 1);
+        ByteBuffer header = ByteBuffer.allocate(RF64_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (isJunk) {
+            header.putInt(fourCc("RIFF")).putInt(riffSize < 0 ? SIZE_MARKER : (int) riffSize).putInt(fourCc("WAVE"));
+            header.putInt(fourCc("JUNK")).putInt(28).put(new byte[28]);
+        } else {
+            header.putInt(fourCc("RF64")).putInt(SIZE_MARKER).putInt(fourCc("WAVE"));
+            header.putInt(fourCc("ds64")).putInt(28);
+            header.putLong(riffSize).putLong(dataSize).putLong(dataSize / blockAlign);
+            header.putInt(0); // no table
+        }
+        putFormat(header, sampleRate, numChannels, bitsPerSample);
+        header.putInt(fourCc("data")).putInt(dataSize < 0 || !isJunk ? SIZE_MARKER : (int) dataSize);
+        return header.array();
+    }
+
+    private static void putFormat(ByteBuffer header, int sampleRate, int numChannels, int bitsPerSample) {
+        int blockAlign = numChannels * ((bitsPerSample + 7) / 8);
+        header.putInt(fourCc("fmt ")).putInt(16);
+        header.putShort((short) WAVE_FORMAT_PCM);
+        header.putShort((short) numChannels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * blockAlign); // byte rate
+        header.putShort((short) blockAlign);
+        header.putShort((short) bitsPerSample);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private static int fourCc(String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+}
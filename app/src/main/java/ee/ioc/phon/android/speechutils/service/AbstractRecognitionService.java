@@ -14,13 +14,23 @@ import android.speech.SpeechRecognizer;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import ee.ioc.phon.android.speechutils.AbstractAudioRecorder;
+import ee.ioc.phon.android.speechutils.AdaptiveBufferSizer;
 import ee.ioc.phon.android.speechutils.AudioCue;
+import ee.ioc.phon.android.speechutils.AudioEncoderRegistry;
 import ee.ioc.phon.android.speechutils.AudioPauser;
 import ee.ioc.phon.android.speechutils.AudioRecorder;
+import ee.ioc.phon.android.speechutils.AudioRecorderPool;
+import ee.ioc.phon.android.speechutils.CaptureCapabilities;
+import ee.ioc.phon.android.speechutils.ContinuousRawAudioRecorder;
 import ee.ioc.phon.android.speechutils.EncodedAudioRecorder;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.Log;
+import ee.ioc.phon.android.speechutils.MediaCodecAudioEncoder;
+import ee.ioc.phon.android.speechutils.MediaCodecPool;
+import ee.ioc.phon.android.speechutils.MediaFormatFactory;
 import ee.ioc.phon.android.speechutils.RawAudioRecorder;
+import ee.ioc.phon.android.speechutils.codec.AudioEncoder;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
 /**
@@ -38,18 +48,38 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     private static final int TASK_INTERVAL_STOP = 1000;
     private static final int TASK_DELAY_STOP = 1000;
 
+    // Length of the raw window of an encoded recorder (enough for the volume and the pause detection)
+    private static final int RAW_WINDOW_MILLIS = 2000;
+
     private AudioCue mAudioCue;
     private AudioPauser mAudioPauser;
     private RecognitionService.Callback mListener;
 
     private AudioRecorder mRecorder;
 
+    private AdaptiveBufferSizer mBufferSizer;
+
+    private AudioRecorderPool mRecorderPool;
+
+    // Recorder of the previous session that is kept warm for the next session
+    private AbstractAudioRecorder mWarmRecorder;
+    private String mWarmRecorderKey;
+    private Handler mKeepWarmHandler = new Handler();
+    private Runnable mCoolDownTask = new Runnable() {
+        public void run() {
+            coolDown();
+        }
+    };
+
     private Handler mVolumeHandler = new Handler();
     private Runnable mShowVolumeTask;
 
     private Handler mStopHandler = new Handler();
     private Runnable mStopTask;
 
+    // Streams the audio to the transport (if the service has one)
+    private AudioStreamer mStreamer;
+
     private Bundle mExtras;
 
     protected static Bundle toResultsBundle(String hypothesis) {
@@ -76,7 +106,8 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     protected abstract void configure(Intent recognizerIntent) throws IOException;
 
     /**
-     * Start sending audio to the server.
+     * Start sending audio to the server. If the service has a transport (see {@link #createTransport()})
+     * then the audio is sent via the transport, and this only needs to open the connection (if any).
      */
     protected abstract void connect();
 
@@ -89,18 +120,104 @@ public abstract class AbstractRecognitionService extends RecognitionService {
      * Returns the type of encoder to use. Subclasses must override this method if they want to
      * record in a non-raw format.
      *
-     * @return type of encoder as string (e.g. "audio/x-flac")
+     * @return type of encoder as string, i.e. the content type of the encoded audio:
+     * "audio/x-flac" (FLAC), "audio/ogg" (Opus in Ogg), "audio/AMR-WB" (AMR-WB in the AMR storage format),
+     * "audio/x-mulaw", or any other type that is registered in {@link AudioEncoderRegistry}
      */
     protected String getEncoderType() {
         return null;
     }
 
+    /**
+     * Returns what the encoded recorder keeps of the raw audio, see {@link EncodedAudioRecorder}.
+     * By default (FULL) the raw audio is kept in addition to the encoded audio, although only
+     * the encoded audio is consumed. WINDOW keeps the last 2 seconds, which is enough for the volume
+     * and the pause detection. NONE keeps nothing, i.e. the volume is not reported and
+     * the auto-stop after pause does not work. Does not affect raw recording.
+     */
+    protected AbstractAudioRecorder.RawPolicy getRawPolicy() {
+        return AbstractAudioRecorder.RawPolicy.FULL;
+    }
+
+    /**
+     * Creates the transport via which the recorded audio is sent to the server while recording.
+     * If a transport is returned then the service streams the audio itself (see {@link AudioStreamer}):
+     * the audio of the recorder (encoded if the encoder type is set) is collected into packets
+     * (see {@link #getStreamChunkMillis()}), which are queued (see {@link #getStreamQueueSize()})
+     * and sent on a separate thread, followed by EOS after the end of speech, i.e. the subclass
+     * only implements the transport. If the transport fails then the service reports a network
+     * error. Called after {@link #connect()}. Null (the default) leaves the sending to the subclass.
+     */
+    protected Transport createTransport() {
+        return null;
+    }
+
+    /**
+     * Gets the duration of the audio that is collected into a packet before it is sent via
+     * the transport. Longer packets mean fewer sends, but a longer latency.
+     */
+    protected int getStreamChunkMillis() {
+        return AudioStreamer.DEFAULT_CHUNK_MILLIS;
+    }
+
+    /**
+     * Gets the max number of packets that can wait for the transport. If the transport falls
+     * further behind then the audio waits in the recorder.
+     */
+    protected int getStreamQueueSize() {
+        return AudioStreamer.DEFAULT_QUEUE_SIZE;
+    }
+
+    /**
+     * @return counters describing the streaming of the current session, or null if the service does not stream
+     */
+    protected StreamMetrics getStreamMetrics() {
+        AudioStreamer streamer = mStreamer;
+        return streamer == null ? null : streamer.getMetrics();
+    }
+
+    /**
+     * Gets the length (in milliseconds) of the ring via which the encoded recorder passes the audio
+     * from the microphone to the encoder, which then runs on its own thread, so that a stalling
+     * encoder does not stall the reading of the microphone, see
+     * {@link EncodedAudioRecorder#setCaptureRingMillis(int)}. Zero (the default) switches it off.
+     */
+    protected int getCaptureRingMillis() {
+        return 0;
+    }
+
     /**
      * @return Audio recorder
      */
     protected AudioRecorder getAudioRecorder() throws IOException {
         if (mRecorder == null) {
-            mRecorder = createAudioRecorder(getEncoderType(), getSampleRate());
+            if (isProbeCaptureCapabilities()) {
+                // the recorder uses the platform values until the capabilities are available
+                CaptureCapabilities.getAsync(getSharedPreferences());
+            }
+            if (mWarmRecorder != null) {
+                mKeepWarmHandler.removeCallbacks(mCoolDownTask);
+                if (getRecorderKey().equals(mWarmRecorderKey)) {
+                    mRecorder = mWarmRecorder;
+                    mWarmRecorder = null;
+                } else {
+                    coolDown();
+                }
+            }
+            if (mRecorder == null && isRecorderPooling()) {
+                mRecorder = getRecorderPool().acquire(getRecorderKey());
+            }
+            if (mRecorder == null) {
+                if (isPreRoll()) {
+                    mRecorder = new ContinuousRawAudioRecorder(AudioRecorder.DEFAULT_AUDIO_SOURCE, getSampleRate(),
+                            getPreRollRingMillis(), getBufferSizer());
+                } else {
+                    mRecorder = createAudioRecorder(getEncoderType(), getSampleRate(), getBufferSizer(), getRawPolicy());
+                }
+            }
+            if (mRecorder instanceof EncodedAudioRecorder) {
+                ((EncodedAudioRecorder) mRecorder).setCaptureRingMillis(getCaptureRingMillis());
+            }
         }
         return mRecorder;
     }
@@ -113,6 +230,98 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         return false;
     }
 
+    /**
+     * Queries if the recorder should auto-tune its read size and buffer size to the device,
+     * starting from the values that were stored for this device model in an earlier session.
+     */
+    protected boolean isAdaptiveBufferSize() {
+        return false;
+    }
+
+    /**
+     * Queries if the capture capabilities of the device (min buffer sizes, working audio sources,
+     * available effects) should be probed once and then reused, instead of querying the platform
+     * every time the recorder is created. The probe runs in the background when the service
+     * is created (and again when a recorder is created while the capabilities are still missing,
+     * e.g. because the permission was missing), and its result is stored for the current build
+     * of the device. Until the probe has finished, the recorders query the platform.
+     */
+    protected boolean isProbeCaptureCapabilities() {
+        return false;
+    }
+
+    /**
+     * Gets the number of configured MediaCodec encoders (per encoder type and sample rate) that are
+     * kept for reuse between sessions, see {@link MediaCodecPool}. If positive then an encoder for
+     * the current encoder type and sample rate is also created in the background when the service
+     * is created, so that the first session does not pay for it. Zero (the default) switches it off.
+     */
+    protected int getEncoderPoolSize() {
+        return 0;
+    }
+
+    /**
+     * Queries if the recorder of a finished session should be kept (without holding the microphone)
+     * and reused in the next session with the same sample rate and encoder type, instead of
+     * allocating the recording buffers again.
+     */
+    protected boolean isRecorderPooling() {
+        return false;
+    }
+
+    /**
+     * Gets the number of milliseconds for which the microphone is kept warm after a session ends,
+     * so that the next session can start without creating and starting a new recorder.
+     * If the next session does not start within this time then the recorder is released.
+     * Zero (the default) switches keep-warm off.
+     */
+    protected int getKeepWarmMillis() {
+        return 0;
+    }
+
+    /**
+     * Queries if the microphone keeps capturing (and discarding) audio while it is kept warm.
+     * This gives the shortest time to the first sample, but the platform shows the microphone
+     * privacy indicator also between the sessions. If false (the default) then the recorder is
+     * only kept initialized, and the indicator is off between the sessions.
+     */
+    protected boolean isKeepWarmCapturing() {
+        return false;
+    }
+
+    /**
+     * Gets the number of milliseconds of audio before onReadyForSpeech (i.e. before the start beep)
+     * that the session should include, so that the beginning of the utterance is not lost if the
+     * user starts to speak too early. The session is then backed by a continuous recorder that
+     * is started before the beep. The pre-roll can only contain audio that was recorded, i.e. it
+     * is limited by the start of the recorder, unless the recorder is kept warm and capturing
+     * (see {@link #getKeepWarmMillis()}). Zero (the default) switches pre-roll off.
+     * Pre-roll is only supported for raw audio (i.e. if getEncoderType returns null).
+     */
+    protected int getPreRollMillis() {
+        return 0;
+    }
+
+    /**
+     * Queries if the start beep that the microphone picks up during the pre-roll should be
+     * replaced by silence. Only the duration of the beep sound is muted, not the delay after it,
+     * because the user might already speak then. Otherwise (the default) the beep is kept,
+     * and only its span is reported (see {@link #onPreRoll(int, int)}).
+     */
+    protected boolean isPreRollMuteStartBeep() {
+        return false;
+    }
+
+    /**
+     * Called when a session with pre-roll starts recording.
+     *
+     * @param beepStartMillis start of the span of the start beep, in milliseconds from the beginning of the consumed audio
+     * @param beepEndMillis   end of the span of the start beep
+     */
+    protected void onPreRoll(int beepStartMillis, int beepEndMillis) {
+        // Nothing to do by default
+    }
+
     /**
      * Gets the sample rate used in the recorder.
      * Different services can use a different sample rate.
@@ -152,9 +361,42 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         return PreferenceManager.getDefaultSharedPreferences(this);
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (isProbeCaptureCapabilities()) {
+            CaptureCapabilities.getAsync(getSharedPreferences());
+        }
+        if (getEncoderPoolSize() > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            MediaCodecPool.setMaxIdle(getEncoderPoolSize());
+            AudioEncoder.Factory factory = AudioEncoderRegistry.get(getEncoderType());
+            if (factory instanceof MediaCodecAudioEncoder.Factory) {
+                final MediaFormatFactory.Type type = ((MediaCodecAudioEncoder.Factory) factory).getType();
+                final int sampleRate = getSampleRate();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        MediaCodecPool.warmUp(type, sampleRate);
+                    }
+                }, "MediaCodecPool").start();
+            }
+        }
+    }
+
     public void onDestroy() {
         super.onDestroy();
         disconnectAndStopRecording();
+        mKeepWarmHandler.removeCallbacks(mCoolDownTask);
+        coolDown();
+        if (mRecorderPool != null) {
+            mRecorderPool.clear();
+        }
+        if (getEncoderPoolSize() > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Switches the pool off (and releases the idle codecs), so that a warm-up that is still
+            // creating its codec, or a session that is still finishing, releases its codec instead
+            // of pooling it
+            MediaCodecPool.setMaxIdle(0);
+        }
     }
 
     /**
@@ -187,8 +429,15 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         mAudioPauser.pause();
 
         try {
+            long beepStart = -1;
+            if (isPreRoll()) {
+                beepStart = startPreRollRecording();
+            }
             onReadyForSpeech(new Bundle());
             startRecord();
+            if (beepStart >= 0) {
+                setPreRoll(beepStart);
+            }
         } catch (IOException e) {
             onError(SpeechRecognizer.ERROR_AUDIO);
             return;
@@ -196,6 +445,10 @@ public abstract class AbstractRecognitionService extends RecognitionService {
 
         onBeginningOfSpeech();
         connect();
+        Transport transport = createTransport();
+        if (transport != null) {
+            startStreaming(transport);
+        }
     }
 
     /**
@@ -301,7 +554,12 @@ public abstract class AbstractRecognitionService extends RecognitionService {
 
         // TODO: make sure this call does not do too much work in the case of the
         // WebSocket-service which does not use the bytes in the end
-        if (mRecorder instanceof EncodedAudioRecorder) {
+        if (mStreamer != null) {
+            // the recorder stops, and the streamer takes the rest of the audio from it (incl. the tail
+            // of the encoder), sends it followed by EOS in the background, and then releases the recorder
+            finishStreaming();
+            recording = new byte[0];
+        } else if (mRecorder instanceof EncodedAudioRecorder) {
             recording = ((EncodedAudioRecorder) mRecorder).consumeRecordingEnc();
         } else {
             recording = mRecorder.consumeRecording();
@@ -352,14 +610,35 @@ public abstract class AbstractRecognitionService extends RecognitionService {
      * audio recorder. If an unsupported encoder is specified then throws an exception.
      */
     protected static AudioRecorder createAudioRecorder(String encoderType, int sampleRate) throws IOException {
-        // TODO: take from an enum
-        if ("audio/x-flac".equals(encoderType)) {
+        return createAudioRecorder(encoderType, sampleRate, null);
+    }
+
+    /**
+     * Constructs a recorder based on the encoder type and sample rate, which optionally auto-tunes
+     * its buffer sizes using the given sizer.
+     */
+    protected static AudioRecorder createAudioRecorder(String encoderType, int sampleRate, AdaptiveBufferSizer bufferSizer) throws IOException {
+        return createAudioRecorder(encoderType, sampleRate, bufferSizer, AbstractAudioRecorder.RawPolicy.FULL);
+    }
+
+    /**
+     * Constructs a recorder based on the encoder type and sample rate, whose encoded recorder
+     * keeps the raw audio according to the given policy.
+     */
+    protected static AudioRecorder createAudioRecorder(String encoderType, int sampleRate, AdaptiveBufferSizer bufferSizer,
+                                                       AbstractAudioRecorder.RawPolicy rawPolicy) throws IOException {
+        AudioEncoder.Factory factory = AudioEncoderRegistry.get(encoderType);
+        if (factory != null) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-                return new EncodedAudioRecorder(sampleRate);
+                if (rawPolicy == AbstractAudioRecorder.RawPolicy.FULL) {
+                    return new EncodedAudioRecorder(AudioRecorder.DEFAULT_AUDIO_SOURCE, sampleRate, bufferSizer, factory);
+                }
+                return new EncodedAudioRecorder(AudioRecorder.DEFAULT_AUDIO_SOURCE, sampleRate, bufferSizer, factory,
+                        rawPolicy, RAW_WINDOW_MILLIS);
             }
             throw new IOException(encoderType + " not supported");
         }
-        return new RawAudioRecorder(sampleRate);
+        return new RawAudioRecorder(AudioRecorder.DEFAULT_AUDIO_SOURCE, sampleRate, bufferSizer);
     }
 
 
@@ -374,14 +653,17 @@ public abstract class AbstractRecognitionService extends RecognitionService {
             throw new IOException();
         }
 
-        if (mRecorder.getState() != AudioRecorder.State.READY) {
-            throw new IOException();
-        }
+        // The pre-roll recorder has already been started
+        if (!(isPreRoll() && mRecorder.getState() == AudioRecorder.State.RECORDING)) {
+            if (mRecorder.getState() != AudioRecorder.State.READY) {
+                throw new IOException();
+            }
 
-        mRecorder.start();
+            mRecorder.start();
 
-        if (mRecorder.getState() != AudioRecorder.State.RECORDING) {
-            throw new IOException();
+            if (mRecorder.getState() != AudioRecorder.State.RECORDING) {
+                throw new IOException();
+            }
         }
 
         // Monitor the volume level
@@ -417,6 +699,55 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     }
 
 
+    private boolean isPreRoll() {
+        return getPreRollMillis() > 0 && getEncoderType() == null;
+    }
+
+    /**
+     * @return length of the ring of the pre-roll recorder, which holds the pre-roll and the complete
+     * recording (as long as a raw recording without pre-roll can be), i.e. the audio is not lost
+     * even if it is consumed only at the end
+     */
+    private int getPreRollRingMillis() {
+        return getPreRollMillis() + Math.min(getAutoStopAfterMillis(), AbstractAudioRecorder.DEFAULT_BUFFER_LENGTH_IN_MILLIS);
+    }
+
+    /**
+     * Starts the pre-roll recorder before the start beep.
+     *
+     * @return position of the recorder (in samples) before the beep
+     * @throws IOException if the recorder could not be started
+     */
+    private long startPreRollRecording() throws IOException {
+        AbstractAudioRecorder recorder = (AbstractAudioRecorder) getAudioRecorder();
+        mRecorder = recorder;
+        if (recorder.getState() == AudioRecorder.State.READY) {
+            recorder.start();
+        }
+        if (recorder.getState() != AudioRecorder.State.RECORDING) {
+            throw new IOException();
+        }
+        return recorder.getPosition();
+    }
+
+    /**
+     * Makes the session start the pre-roll before the start beep, and mutes or marks the beep.
+     * The beep starts at the recorder position before the beep was played, and lasts for the duration
+     * of the beep sound (i.e. the span is approximate), or is empty if no beep was played.
+     */
+    private void setPreRoll(long beepStart) {
+        AbstractAudioRecorder recorder = (AbstractAudioRecorder) mRecorder;
+        int sampleRate = recorder.getSampleRate();
+        int beepMillis = mAudioCue == null ? 0 : mAudioCue.getStartSoundMillis();
+        long beepEnd = Math.min(recorder.getPosition(), beepStart + (long) beepMillis * sampleRate / 1000);
+        // the actual start is later if the recorder did not record the complete pre-roll
+        long start = recorder.setConsumedPosition(beepStart - (long) getPreRollMillis() * sampleRate / 1000);
+        if (isPreRollMuteStartBeep()) {
+            recorder.mute(beepStart, beepEnd);
+        }
+        onPreRoll((int) ((beepStart - start) * 1000 / sampleRate), (int) ((beepEnd - start) * 1000 / sampleRate));
+    }
+
     private void stopRecording0() {
         releaseRecorder();
         if (mVolumeHandler != null) mVolumeHandler.removeCallbacks(mShowVolumeTask);
@@ -427,9 +758,81 @@ public abstract class AbstractRecognitionService extends RecognitionService {
 
     private void releaseRecorder() {
         if (mRecorder != null) {
-            mRecorder.release();
+            if (getKeepWarmMillis() > 0 && mRecorder instanceof AbstractAudioRecorder
+                    && mRecorder.getState() != AudioRecorder.State.ERROR) {
+                keepWarm((AbstractAudioRecorder) mRecorder);
+            } else {
+                recycleOrRelease(mRecorder, getRecorderKey());
+            }
             mRecorder = null;
         }
+        if (mBufferSizer != null) {
+            mBufferSizer.save(getSharedPreferences());
+        }
+    }
+
+
+    private void keepWarm(AbstractAudioRecorder recorder) {
+        coolDown();
+        recorder.standby(isKeepWarmCapturing());
+        if (recorder.getState() == AudioRecorder.State.READY) {
+            mWarmRecorder = recorder;
+            mWarmRecorderKey = getRecorderKey();
+            mKeepWarmHandler.postDelayed(mCoolDownTask, getKeepWarmMillis());
+        } else {
+            recycleOrRelease(recorder, getRecorderKey());
+        }
+    }
+
+    /**
+     * Releases the recorder that is kept warm (if any).
+     */
+    private void coolDown() {
+        if (mWarmRecorder != null) {
+            Log.i("Keep-warm: cooling down");
+            recycleOrRelease(mWarmRecorder, mWarmRecorderKey);
+            mWarmRecorder = null;
+            mWarmRecorderKey = null;
+        }
+    }
+
+    private void recycleOrRelease(AudioRecorder recorder, String key) {
+        if (isRecorderPooling() && recorder instanceof AbstractAudioRecorder) {
+            getRecorderPool().recycle(key, (AbstractAudioRecorder) recorder);
+        } else {
+            recorder.release();
+        }
+    }
+
+    private AudioRecorderPool getRecorderPool() {
+        if (mRecorderPool == null) {
+            mRecorderPool = new AudioRecorderPool();
+        }
+        return mRecorderPool;
+    }
+
+    private String getRecorderKey() {
+        String format = isPreRoll() ? "pre-roll/" + getPreRollRingMillis() : getEncoderType();
+        if (!isPreRoll() && getEncoderType() != null && getRawPolicy() != AbstractAudioRecorder.RawPolicy.FULL) {
+            format += "/" + getRawPolicy();
+        }
+        return AudioRecorderPool.getKey(AudioRecorder.DEFAULT_AUDIO_SOURCE, getSampleRate(), format);
+    }
+
+
+    /**
+     * @return buffer sizer initialized from the values stored for this device, or null if adaptive
+     * buffer sizing is switched off
+     */
+    private AdaptiveBufferSizer getBufferSizer() {
+        if (!isAdaptiveBufferSize()) {
+            return null;
+        }
+        if (mBufferSizer == null) {
+            mBufferSizer = new AdaptiveBufferSizer();
+            mBufferSizer.load(getSharedPreferences());
+        }
+        return mBufferSizer;
     }
 
 
@@ -442,7 +845,70 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     }
 
 
+    /**
+     * Starts streaming the audio of the recorder to the given transport.
+     */
+    private void startStreaming(Transport transport) {
+        if (mStreamer != null) {
+            // the streamer of an earlier session that is still sending its tail is left to finish
+            // in the background, an unfinished one is stopped
+            if (!mStreamer.isFinishing()) {
+                mStreamer.cancel();
+            }
+            Log.i("Stream metrics: " + mStreamer.getMetrics());
+            mStreamer = null;
+        }
+        final AudioStreamer streamer = new AudioStreamer(mRecorder, transport)
+                .setChunkMillis(getStreamChunkMillis())
+                .setQueueSize(getStreamQueueSize());
+        streamer.setOnErrorListener(new AudioStreamer.OnErrorListener() {
+            @Override
+            public void onError(IOException e) {
+                mStopHandler.post(new Runnable() {
+                    public void run() {
+                        // ignore the errors of an earlier session
+                        if (mStreamer == streamer) {
+                            AbstractRecognitionService.this.onError(SpeechRecognizer.ERROR_NETWORK);
+                        }
+                    }
+                });
+            }
+        });
+        mStreamer = streamer;
+        streamer.start();
+    }
+
+    /**
+     * Stops the recorder, and hands it over to the streamer, which releases it (on the main thread)
+     * after it has taken the rest of the audio. The recorder is not kept warm, because a new session
+     * might have started meanwhile.
+     */
+    private void finishStreaming() {
+        final AudioRecorder recorder = mRecorder;
+        final String key = getRecorderKey();
+        mRecorder = null;
+        if (recorder instanceof AbstractAudioRecorder) {
+            ((AbstractAudioRecorder) recorder).stop();
+        }
+        mStreamer.setOnRecorderDoneListener(new AudioStreamer.OnRecorderDoneListener() {
+            @Override
+            public void onRecorderDone() {
+                mStopHandler.post(new Runnable() {
+                    public void run() {
+                        recycleOrRelease(recorder, key);
+                    }
+                });
+            }
+        });
+        mStreamer.finish();
+    }
+
     private void disconnectAndStopRecording() {
+        if (mStreamer != null) {
+            mStreamer.cancel();
+            Log.i("Stream metrics: " + mStreamer.getMetrics());
+            mStreamer = null;
+        }
         disconnect();
         stopRecording0();
     }
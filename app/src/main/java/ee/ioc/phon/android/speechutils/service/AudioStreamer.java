@@ -0,0 +1,352 @@
+package ee.ioc.phon.android.speechutils.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ee.ioc.phon.android.speechutils.AbstractAudioRecorder;
+import ee.ioc.phon.android.speechutils.AudioChunk;
+import ee.ioc.phon.android.speechutils.AudioRecorder;
+import ee.ioc.phon.android.speechutils.EncodedAudioRecorder;
+import ee.ioc.phon.android.speechutils.EncodedChunk;
+import ee.ioc.phon.android.speechutils.Log;
+import ee.ioc.phon.android.speechutils.codec.AudioEncoder;
+
+/**
+ * Streams the audio of a recorder to a {@link Transport} while recording, in two stages that
+ * run on their own threads:
+ * <p/>
+ * The source takes the audio from the recorder as it becomes available (the encoded chunks of
+ * {@link EncodedAudioRecorder}, otherwise the raw audio), and coalesces it into packets of
+ * about the given duration, so that the transport is not called for every small codec buffer.
+ * The packets are passed to the sink via a bounded queue. If the queue is full then the source
+ * waits (back-pressure), i.e. the audio stays in the recorder, which handles its overflow
+ * (see {@link AbstractAudioRecorder.GapPolicy}).
+ * <p/>
+ * The sink sends the packets one by one, and finally EOS.
+ * <p/>
+ * At the end the recorder is stopped first, and then the streamer is finished: the source takes
+ * the audio from the recorder until the recorder reports the end of the stream (i.e. also the
+ * tail that the encoder produces after the stop), and then lets the sink send EOS.
+ * <p/>
+ * The latencies of the stages are measured, see {@link StreamMetrics}.
+ */
+public class AudioStreamer {
+
+    /**
+     * Called (on the sink thread) if the transport fails. The streaming stops.
+     */
+    public interface OnErrorListener {
+        void onError(IOException e);
+    }
+
+    /**
+     * Called (on the source thread) when the source has stopped taking audio from the recorder,
+     * i.e. after the end of the stream, the cancellation, or the failure of the transport.
+     * The recorder can be released afterwards. If the source has already stopped when the listener
+     * is set then it is called at once (on the calling thread).
+     */
+    public interface OnRecorderDoneListener {
+        void onRecorderDone();
+    }
+
+    public static final int DEFAULT_CHUNK_MILLIS = 100;
+    public static final int DEFAULT_QUEUE_SIZE = 16;
+
+    // Time period to poll the recorder (and to check if the sink is still running)
+    private static final int POLL_INTERVAL_MILLIS = 20;
+
+    private static final Packet EOS = new Packet(new byte[0], -1, 0, 0);
+
+    private final AudioRecorder mRecorder;
+    private final Transport mTransport;
+    private final StreamMetrics mMetrics = new StreamMetrics();
+
+    private int mChunkMillis = DEFAULT_CHUNK_MILLIS;
+    private int mQueueSize = DEFAULT_QUEUE_SIZE;
+    private OnErrorListener mOnErrorListener;
+    // Guarded by this
+    private OnRecorderDoneListener mOnRecorderDoneListener;
+    private boolean mIsSourceDone = false;
+
+    private BlockingQueue<Packet> mQueue;
+    private Thread mSourceThread;
+    private Thread mSinkThread;
+    private volatile boolean mIsFinishing = false;
+    private volatile boolean mIsCancelled = false;
+    private volatile boolean mIsSinkDone = false;
+
+    // Packet that the source is coalescing: the audio, the timestamp of its first sample (-1 if
+    // not known yet), the time when the first audio was taken from the recorder, and
+    // the estimated time when the first sample was recorded
+    private final ByteArrayOutputStream mBatch = new ByteArrayOutputStream();
+    private long mBatchPtsUs = -1;
+    private long mBatchTakenNanos;
+    private long mBatchCapturedNanos;
+
+    public AudioStreamer(AudioRecorder recorder, Transport transport) {
+        mRecorder = recorder;
+        mTransport = transport;
+    }
+
+    /**
+     * Sets the duration of the audio that is collected into a packet. Zero sends the audio as it
+     * comes from the recorder. Longer packets mean fewer sends, but a longer latency.
+     */
+    public AudioStreamer setChunkMillis(int chunkMillis) {
+        mChunkMillis = chunkMillis;
+        return this;
+    }
+
+    /**
+     * Sets the max number of packets that wait for the transport.
+     */
+    public AudioStreamer setQueueSize(int queueSize) {
+        mQueueSize = queueSize;
+        return this;
+    }
+
+    public AudioStreamer setOnErrorListener(OnErrorListener onErrorListener) {
+        mOnErrorListener = onErrorListener;
+        return this;
+    }
+
+    public AudioStreamer setOnRecorderDoneListener(OnRecorderDoneListener onRecorderDoneListener) {
+        boolean isSourceDone;
+        synchronized (this) {
+            mOnRecorderDoneListener = onRecorderDoneListener;
+            isSourceDone = mIsSourceDone;
+        }
+        if (isSourceDone && onRecorderDoneListener != null) {
+            onRecorderDoneListener.onRecorderDone();
+        }
+        return this;
+    }
+
+    public StreamMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Starts the source and the sink threads.
+     */
+    public void start() {
+        mMetrics.reset();
+        synchronized (this) {
+            mIsSourceDone = false;
+        }
+        mQueue = new ArrayBlockingQueue<>(Math.max(1, mQueueSize));
+        mSinkThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sinkLoop();
+            }
+        }, "AudioStreamer-sink");
+        mSourceThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sourceLoop();
+            }
+        }, "AudioStreamer-source");
+        mSinkThread.start();
+        mSourceThread.start();
+    }
+
+    /**
+     * Lets the source take the rest of the audio from the (stopped) recorder until the end of
+     * the stream, after which the sink sends EOS. Returns immediately, i.e. the rest of the audio
+     * and EOS are sent in the background, see {@link OnRecorderDoneListener}.
+     */
+    public void finish() {
+        mIsFinishing = true;
+    }
+
+    /**
+     * @return true if {@link #finish()} has been called, i.e. the rest of the audio and EOS are
+     * (being) sent in the background
+     */
+    public boolean isFinishing() {
+        return mIsFinishing;
+    }
+
+    /**
+     * Stops the streaming without sending the rest of the audio or EOS.
+     */
+    public void cancel() {
+        mIsCancelled = true;
+        if (mSourceThread != null) {
+            mSourceThread.interrupt();
+        }
+        if (mSinkThread != null) {
+            mSinkThread.interrupt();
+        }
+    }
+
+    private void sourceLoop() {
+        try {
+            while (!mIsCancelled && !mIsSinkDone) {
+                // checked before polling, so that the last poll takes all the audio of the recorder
+                boolean isEndOfStream = mIsFinishing && isEndOfStream();
+                pollRecorder();
+                if (mBatch.size() > 0 && (isEndOfStream || System.nanoTime() - mBatchTakenNanos >= mChunkMillis * 1000000L)) {
+                    if (!enqueue(takeBatch())) {
+                        break;
+                    }
+                }
+                if (isEndOfStream) {
+                    enqueue(EOS);
+                    break;
+                }
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Log.i("Streamer: source: interrupted");
+        } finally {
+            OnRecorderDoneListener onRecorderDoneListener;
+            synchronized (this) {
+                mIsSourceDone = true;
+                onRecorderDoneListener = mOnRecorderDoneListener;
+            }
+            if (onRecorderDoneListener != null) {
+                onRecorderDoneListener.onRecorderDone();
+            }
+        }
+    }
+
+    /**
+     * @return true if the recorder adds no more audio
+     */
+    private boolean isEndOfStream() {
+        if (mRecorder instanceof AbstractAudioRecorder) {
+            return ((AbstractAudioRecorder) mRecorder).isEndOfStream();
+        }
+        return mRecorder.getState() != AudioRecorder.State.RECORDING;
+    }
+
+    private void sinkLoop() {
+        long[] nanos = new long[StreamMetrics.Stage.values().length];
+        try {
+            while (true) {
+                Packet packet = mQueue.take();
+                if (packet == EOS) {
+                    mTransport.sendEos();
+                    Log.i("Streamer: EOS: " + mMetrics);
+                    break;
+                }
+                long takenNanos = System.nanoTime();
+                mTransport.send(packet.mData, 0, packet.mData.length, packet.mPtsUs);
+                long sentNanos = System.nanoTime();
+                nanos[StreamMetrics.Stage.SOURCE.ordinal()] = packet.mTakenNanos - packet.mCapturedNanos;
+                nanos[StreamMetrics.Stage.COALESCE.ordinal()] = packet.mQueuedNanos - packet.mTakenNanos;
+                nanos[StreamMetrics.Stage.QUEUE.ordinal()] = takenNanos - packet.mQueuedNanos;
+                nanos[StreamMetrics.Stage.SEND.ordinal()] = sentNanos - takenNanos;
+                nanos[StreamMetrics.Stage.TOTAL.ordinal()] = sentNanos - packet.mCapturedNanos;
+                mMetrics.onSent(packet.mData.length, nanos);
+            }
+        } catch (InterruptedException e) {
+            Log.i("Streamer: sink: interrupted");
+        } catch (IOException e) {
+            Log.e("Streamer: transport: " + e.getMessage());
+            if (!mIsCancelled && mOnErrorListener != null) {
+                mOnErrorListener.onError(e);
+            }
+        } finally {
+            mIsSinkDone = true;
+        }
+    }
+
+    /**
+     * Adds the given packet to the queue, waiting for room if needed (unless the streaming stops meanwhile).
+     *
+     * @return true if the packet was added
+     */
+    private boolean enqueue(Packet packet) throws InterruptedException {
+        long queuedNanos = System.nanoTime();
+        packet.mQueuedNanos = queuedNanos;
+        long blockedNanos = 0;
+        if (!mQueue.offer(packet)) {
+            mMetrics.onBlocked();
+            while (!mQueue.offer(packet, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (mIsCancelled || mIsSinkDone) {
+                    return false;
+                }
+            }
+            blockedNanos = System.nanoTime() - queuedNanos;
+        }
+        mMetrics.onQueued(blockedNanos, mQueue.size());
+        return true;
+    }
+
+    /**
+     * Takes the available audio from the recorder into the batch.
+     */
+    private void pollRecorder() {
+        long nowNanos = System.nanoTime();
+        if (mRecorder instanceof EncodedAudioRecorder) {
+            EncodedAudioRecorder recorder = (EncodedAudioRecorder) mRecorder;
+            EncodedChunk chunk;
+            while ((chunk = recorder.pollEncodedChunk()) != null) {
+                // codec config has no meaningful timestamp
+                long ptsUs = (chunk.getFlags() & AudioEncoder.FLAG_CODEC_CONFIG) == 0 ? chunk.getPresentationTimeUs() : -1;
+                addToBatch(chunk.getData(), chunk.getLength(), ptsUs, ptsUs < 0 ? -1 : recorder.getSamplePosition(ptsUs), nowNanos);
+                recorder.recycle(chunk);
+            }
+        } else if (mRecorder instanceof AbstractAudioRecorder) {
+            AbstractAudioRecorder recorder = (AbstractAudioRecorder) mRecorder;
+            AudioChunk chunk = recorder.consumeChunk();
+            if (chunk != null && chunk.getBytes().length > 0) {
+                long ptsUs = chunk.getPosition() * 1000000L / recorder.getSampleRate();
+                addToBatch(chunk.getBytes(), chunk.getBytes().length, ptsUs, chunk.getPosition(), nowNanos);
+            }
+        } else {
+            byte[] bytes = mRecorder.consumeRecording();
+            if (bytes != null && bytes.length > 0) {
+                addToBatch(bytes, bytes.length, -1, -1, nowNanos);
+            }
+        }
+    }
+
+    /**
+     * @param samplePosition absolute position of the first sample of the audio in the recording, or -1 if not known
+     */
+    private void addToBatch(byte[] data, int length, long ptsUs, long samplePosition, long nowNanos) {
+        if (mBatch.size() == 0) {
+            mBatchTakenNanos = nowNanos;
+            mBatchCapturedNanos = nowNanos;
+        }
+        if (mBatchPtsUs < 0 && ptsUs >= 0) {
+            mBatchPtsUs = ptsUs;
+            if (samplePosition >= 0) {
+                // the first sample was recorded that many samples before the current position
+                AbstractAudioRecorder recorder = (AbstractAudioRecorder) mRecorder;
+                long age = Math.max(0, recorder.getPosition() - samplePosition) * 1000000000L / recorder.getSampleRate();
+                mBatchCapturedNanos = Math.min(mBatchTakenNanos, nowNanos - age);
+            }
+        }
+        mBatch.write(data, 0, length);
+    }
+
+    private Packet takeBatch() {
+        Packet packet = new Packet(mBatch.toByteArray(), mBatchPtsUs, mBatchTakenNanos, mBatchCapturedNanos);
+        mBatch.reset();
+        mBatchPtsUs = -1;
+        return packet;
+    }
+
+    private static class Packet {
+        private final byte[] mData;
+        private final long mPtsUs;
+        private final long mTakenNanos;
+        private final long mCapturedNanos;
+        private long mQueuedNanos;
+
+        private Packet(byte[] data, long ptsUs, long takenNanos, long capturedNanos) {
+            mData = data;
+            mPtsUs = ptsUs;
+            mTakenNanos = takenNanos;
+            mCapturedNanos = capturedNanos;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package ee.ioc.phon.android.speechutils.service;
+
+/**
+ * Counters that describe how the streaming keeps up with the recorder, per stage of
+ * {@link AudioStreamer}. Updated by the streaming threads, and can be queried from any thread.
+ * <p/>
+ * The latencies of a packet (i.e. of the coalesced audio that is sent at once) are measured from
+ * its first sample:
+ * SOURCE: how old the first sample was when it was taken from the recorder (i.e. the buffering
+ * in the recorder and the encoder),
+ * COALESCE: time spent collecting the rest of the packet,
+ * QUEUE: time spent in the queue (and waiting for room in it) before the transport took it,
+ * SEND: time spent in the transport,
+ * TOTAL: from the recording of the first sample until the packet was sent.
+ */
+public class StreamMetrics {
+
+    public enum Stage {
+        SOURCE, COALESCE, QUEUE, SEND, TOTAL
+    }
+
+    private final long[] mSumNanos = new long[Stage.values().length];
+    private final long[] mMaxNanos = new long[Stage.values().length];
+
+    private long mNumPackets;
+    private long mNumBytes;
+    private long mNumBlocks;
+    private long mBlockedNanos;
+    private int mMaxQueueSize;
+
+    /**
+     * @param nanos latency of each stage of the packet, indexed by the stage
+     */
+    synchronized void onSent(int numBytes, long[] nanos) {
+        mNumPackets++;
+        mNumBytes += numBytes;
+        for (int i = 0; i < nanos.length; i++) {
+            mSumNanos[i] += nanos[i];
+            if (nanos[i] > mMaxNanos[i]) {
+                mMaxNanos[i] = nanos[i];
+            }
+        }
+    }
+
+    /**
+     * Called when the source starts waiting for room in the queue, i.e. the block is counted
+     * already while it lasts.
+     */
+    synchronized void onBlocked() {
+        mNumBlocks++;
+    }
+
+    /**
+     * @param blockedNanos time for which the source waited for room in the queue
+     * @param queueSize    number of packets in the queue after the packet was added
+     */
+    synchronized void onQueued(long blockedNanos, int queueSize) {
+        mBlockedNanos += blockedNanos;
+        if (queueSize > mMaxQueueSize) {
+            mMaxQueueSize = queueSize;
+        }
+    }
+
+    public synchronized long getNumPackets() {
+        return mNumPackets;
+    }
+
+    public synchronized long getNumBytes() {
+        return mNumBytes;
+    }
+
+    /**
+     * @return number of packets for which the source had to wait because the queue was full
+     * (back-pressure), incl. the packet that it is waiting for
+     */
+    public synchronized long getNumBlocks() {
+        return mNumBlocks;
+    }
+
+    public synchronized long getBlockedMillis() {
+        return mBlockedNanos / 1000000;
+    }
+
+    public synchronized int getMaxQueueSize() {
+        return mMaxQueueSize;
+    }
+
+    public synchronized long getAvgLatencyMillis(Stage stage) {
+        if (mNumPackets == 0) {
+            return 0;
+        }
+        return mSumNanos[stage.ordinal()] / mNumPackets / 1000000;
+    }
+
+    public synchronized long getMaxLatencyMillis(Stage stage) {
+        return mMaxNanos[stage.ordinal()] / 1000000;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mSumNanos.length; i++) {
+            mSumNanos[i] = 0;
+            mMaxNanos[i] = 0;
+        }
+        mNumPackets = 0;
+        mNumBytes = 0;
+        mNumBlocks = 0;
+        mBlockedNanos = 0;
+        mMaxQueueSize = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("packets: ").append(mNumPackets).append("/").append(mNumBytes);
+        sb.append(", blocks: ").append(mNumBlocks).append("/").append(getBlockedMillis()).append(" ms");
+        sb.append(", max queue: ").append(mMaxQueueSize);
+        sb.append(", latency avg/max (ms):");
+        for (Stage stage : Stage.values()) {
+            sb.append(" ").append(stage).append(" ").append(getAvgLatencyMillis(stage)).append("/").append(getMaxLatencyMillis(stage));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,26 @@
+package ee.ioc.phon.android.speechutils.service;
+
+import java.io.IOException;
+
+/**
+ * Sink of the audio that {@link AudioStreamer} streams during the recording, e.g. a WebSocket
+ * or an HTTP chunked upload. The methods are called one after the other on the streaming thread,
+ * i.e. the implementation does not need to be thread-safe, and may block: a blocking send holds
+ * back the following audio (which is buffered in a bounded queue, and then in the recorder).
+ */
+public interface Transport {
+
+    /**
+     * Sends the given audio. The array is not used by the streamer after the call returns.
+     *
+     * @param presentationTimeUs time of the first sample of the audio (from the start of the recording),
+     *                           or -1 if unknown
+     */
+    void send(byte[] data, int offset, int length, long presentationTimeUs) throws IOException;
+
+    /**
+     * Called after the last audio has been sent, e.g. to send EOS to the server.
+     * Not called if the streaming was cancelled or failed.
+     */
+    void sendEos() throws IOException;
+}
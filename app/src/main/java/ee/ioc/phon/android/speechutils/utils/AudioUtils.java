@@ -11,18 +11,28 @@ import android.text.TextUtils;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ee.ioc.phon.android.speechutils.Log;
 import ee.ioc.phon.android.speechutils.MediaFormatFactory;
+import ee.ioc.phon.android.speechutils.codec.WavWriter;
 
 public class AudioUtils {
 
+    // Mime type (lower case) -> names of the suitable encoders
+    private static final Map<String, List<String>> ENCODER_NAMES = new ConcurrentHashMap<>();
+
     private AudioUtils() {
     }
 
@@ -47,59 +57,31 @@ public class AudioUtils {
         }
     }
 
+    /**
+     * @return 44-byte RIFF header of the given number of bytes of PCM, see {@link WavWriter}
+     */
     public static byte[] getWavHeader(int totalAudioLen, int sampleRate, short resolutionInBytes, short channels) {
-        int headerLen = 44;
-        int byteRate = sampleRate * resolutionInBytes; // sampleRate*(16/8)*1 ???
-        int totalDataLen = totalAudioLen + headerLen;
-
-        byte[] header = new byte[headerLen];
-
-        header[0] = 'R';  // RIFF/WAVE header
-        header[1] = 'I';
-        header[2] = 'F';
-        header[3] = 'F';
-        header[4] = (byte) (totalDataLen & 0xff);
-        header[5] = (byte) ((totalDataLen >> 8) & 0xff);
-        header[6] = (byte) ((totalDataLen >> 16) & 0xff);
-        header[7] = (byte) ((totalDataLen >> 24) & 0xff);
-        header[8] = 'W';
-        header[9] = 'A';
-        header[10] = 'V';
-        header[11] = 'E';
-        header[12] = 'f';  // 'fmt ' chunk
-        header[13] = 'm';
-        header[14] = 't';
-        header[15] = ' ';
-        header[16] = 16;  // 4 bytes: size of 'fmt ' chunk
-        header[17] = 0;
-        header[18] = 0;
-        header[19] = 0;
-        header[20] = 1;  // format = 1
-        header[21] = 0;
-        header[22] = (byte) channels;
-        header[23] = 0;
-        header[24] = (byte) (sampleRate & 0xff);
-        header[25] = (byte) ((sampleRate >> 8) & 0xff);
-        header[26] = (byte) ((sampleRate >> 16) & 0xff);
-        header[27] = (byte) ((sampleRate >> 24) & 0xff);
-        header[28] = (byte) (byteRate & 0xff);
-        header[29] = (byte) ((byteRate >> 8) & 0xff);
-        header[30] = (byte) ((byteRate >> 16) & 0xff);
-        header[31] = (byte) ((byteRate >> 24) & 0xff);
-        header[32] = (byte) (2 * 16 / 8);  // block align
-        header[33] = 0;
-        header[34] = (byte) (8 * resolutionInBytes);  // bits per sample
-        header[35] = 0;
-        header[36] = 'd';
-        header[37] = 'a';
-        header[38] = 't';
-        header[39] = 'a';
-        header[40] = (byte) (totalAudioLen & 0xff);
-        header[41] = (byte) ((totalAudioLen >> 8) & 0xff);
-        header[42] = (byte) ((totalAudioLen >> 16) & 0xff);
-        header[43] = (byte) ((totalAudioLen >> 24) & 0xff);
-
-        return header;
+        return WavWriter.getHeader(totalAudioLen, sampleRate, channels, 8 * resolutionInBytes);
+    }
+
+    /**
+     * Saves the given PCM into the given WAV file. The header and the PCM are written with a
+     * gathering write, i.e. unlike {@link #getRecordingAsWav}, the PCM is not copied.
+     */
+    public static void savePcmAsWavToFile(String wavFileFullPath, byte[] pcm, int offset, int length,
+                                          int sampleRate, short resolutionInBytes, short channels) {
+        try {
+            FileOutputStream out = new FileOutputStream(wavFileFullPath);
+            try {
+                WavWriter writer = new WavWriter(out.getChannel(), sampleRate, channels, 8 * resolutionInBytes, length);
+                writer.write(pcm, offset, length);
+                writer.close();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e("Could not save a recording to " + wavFileFullPath + " due to: " + e.getMessage());
+        }
     }
 
     public static byte[] getRecordingAsWav(byte[] pcm, int sampleRate, short resolutionInBytes, short channels) {
@@ -110,6 +92,72 @@ public class AudioUtils {
         return wav;
     }
 
+    /**
+     * Bulk-converts little-endian 16-bit PCM bytes into samples. The byte order is resolved by
+     * the buffer view, so the conversion is a single bulk copy rather than per-sample byte assembly.
+     *
+     * @param pcm        little-endian 16-bit PCM
+     * @param offset     offset in bytes (must be even)
+     * @param dst        destination samples
+     * @param dstPos     position in the destination
+     * @param numSamples number of samples to convert
+     */
+    public static void toShorts(byte[] pcm, int offset, short[] dst, int dstPos, int numSamples) {
+        ByteBuffer.wrap(pcm, offset, 2 * numSamples).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(dst, dstPos, numSamples);
+    }
+
+    public static short[] toShorts(byte[] pcm) {
+        short[] samples = new short[pcm.length / 2];
+        toShorts(pcm, 0, samples, 0, samples.length);
+        return samples;
+    }
+
+    /**
+     * Bulk-converts samples into little-endian 16-bit PCM bytes (e.g. for sending over the wire).
+     */
+    public static void toBytes(short[] src, int srcPos, byte[] pcm, int offset, int numSamples) {
+        ByteBuffer.wrap(pcm, offset, 2 * numSamples).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(src, srcPos, numSamples);
+    }
+
+    public static byte[] toBytes(short[] samples) {
+        byte[] pcm = new byte[2 * samples.length];
+        toBytes(samples, 0, pcm, 0, samples.length);
+        return pcm;
+    }
+
+    /**
+     * Converts 16-bit samples to floats in [-1, 1). Written as a plain counted loop without
+     * branches or calls so that the JIT can unroll/vectorize it.
+     */
+    public static void toFloats(short[] src, int srcPos, float[] dst, int dstPos, int numSamples) {
+        final float scale = 1f / 32768f;
+        for (int i = 0; i < numSamples; i++) {
+            dst[dstPos + i] = src[srcPos + i] * scale;
+        }
+    }
+
+    /**
+     * Converts floats in [-1, 1] to 16-bit samples, clipping values that are out of range.
+     */
+    public static void toShorts(float[] src, int srcPos, short[] dst, int dstPos, int numSamples) {
+        for (int i = 0; i < numSamples; i++) {
+            float f = src[srcPos + i] * 32768f;
+            dst[dstPos + i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, f));
+        }
+    }
+
+    /**
+     * @return sum of the squares of the given samples
+     */
+    public static long getSumOfSquares(short[] samples, int pos, int numSamples) {
+        long sum = 0;
+        for (int i = pos; i < pos + numSamples; i++) {
+            int sample = samples[i];
+            sum += sample * sample;
+        }
+        return sum;
+    }
+
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     public static List<String> getAvailableEncoders(int sampleRate) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -133,10 +181,22 @@ public class AudioUtils {
 
     /**
      * Maps the given mime type to a list of names of suitable codecs.
-     * Only OMX-codecs are considered.
+     * Only OMX-codecs (and their Codec 2.0 successors, Android 10+) are considered.
+     * The codecs of the device do not change while the process is running, so the list
+     * is looked up once per mime type, and then served from a process-wide cache.
      */
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     public static List<String> getEncoderNamesForType(String mime) {
+        String key = mime.toLowerCase(Locale.ENGLISH);
+        List<String> names = ENCODER_NAMES.get(key);
+        if (names == null) {
+            names = Collections.unmodifiableList(findEncoderNamesForType(mime));
+            ENCODER_NAMES.put(key, names);
+        }
+        return names;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static List<String> findEncoderNamesForType(String mime) {
         LinkedList<String> names = new LinkedList<>();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
             int n = MediaCodecList.getCodecCount();
@@ -145,7 +205,7 @@ public class AudioUtils {
                 if (!info.isEncoder()) {
                     continue;
                 }
-                if (!info.getName().startsWith("OMX.")) {
+                if (!info.getName().startsWith("OMX.") && !info.getName().startsWith("c2.")) {
                     // Unfortunately for legacy reasons, "AACEncoder", a
                     // non OMX component had to be in this list for the video
                     // editor code to work... but it cannot actually be instantiated
@@ -0,0 +1,62 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs on the JVM (i.e. without a device): fills a ring of 60 seconds in pieces, as the recorder
+ * does, reads it back, and checks that both are faster than real time.
+ */
+public class CompressedAudioRingBenchmarkTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int LENGTH_IN_MILLIS = 60000;
+    // Size of the pieces of PCM (as read from the microphone), 20 ms
+    private static final int PIECE_SIZE = 2 * SAMPLE_RATE / 50;
+
+    @Test
+    public void test01() {
+        benchmark(CompressedAudioRing.Format.IMA_ADPCM);
+    }
+
+    @Test
+    public void test02() {
+        benchmark(CompressedAudioRing.Format.MU_LAW);
+    }
+
+    /**
+     * Writes and reads the full ring (after a warm-up round), and reports the throughput in
+     * the failure message.
+     */
+    private static void benchmark(CompressedAudioRing.Format format) {
+        CompressedAudioRing ring = new CompressedAudioRing(format, SAMPLE_RATE, LENGTH_IN_MILLIS);
+        byte[] pcm = createPcm(SAMPLE_RATE * LENGTH_IN_MILLIS / 1000);
+        byte[] decoded = new byte[pcm.length];
+        writeAndRead(ring, pcm, decoded);
+        ring.reset();
+        long startNanos = System.nanoTime();
+        writeAndRead(ring, pcm, decoded);
+        long nanos = Math.max(1, System.nanoTime() - startNanos);
+        long speed = LENGTH_IN_MILLIS * 1000000L / nanos;
+        assertThat(format + ": " + speed + "x real time", speed > 1, is(true));
+    }
+
+    private static void writeAndRead(CompressedAudioRing ring, byte[] pcm, byte[] decoded) {
+        for (int i = 0; i < pcm.length; i += PIECE_SIZE) {
+            ring.write(pcm, i, Math.min(PIECE_SIZE, pcm.length - i));
+        }
+        assertThat(ring.read(0, decoded, 0, pcm.length / 2), is(pcm.length / 2));
+    }
+
+    private static byte[] createPcm(int numSamples) {
+        byte[] pcm = new byte[2 * numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            short sample = (short) (8000 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE) + 500 * Math.sin(i));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,58 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs on the JVM (i.e. without a device): drives the pure Java encoders through their factories
+ * and the AudioEncoder interface in the same way as the recorder, and checks that they encode
+ * faster than real time.
+ */
+public class AudioEncoderBenchmarkTest {
+
+    private static final int SAMPLE_RATE = AudioEncoderTest.SAMPLE_RATE;
+    private static final int NUM_SECONDS = 60;
+    // Size of the pieces of PCM (as read from the microphone), 20 ms
+    private static final int PIECE_SIZE = 2 * SAMPLE_RATE / 50;
+
+    @Test
+    public void test01() throws IOException {
+        // the factory knows the content type without creating an encoder
+        AudioEncoder.Factory[] factories = {new PcmAudioEncoder.Factory(), new MuLawAudioEncoder.Factory(), new FlacAudioEncoder.Factory()};
+        for (AudioEncoder.Factory factory : factories) {
+            AudioEncoder encoder = factory.create();
+            encoder.configure(SAMPLE_RATE);
+            assertThat(factory.getContentType(SAMPLE_RATE), is(encoder.getContentType()));
+            encoder.release();
+        }
+    }
+
+    @Test
+    public void test02() throws IOException {
+        byte[] pcm = AudioEncoderTest.createPcm(NUM_SECONDS * SAMPLE_RATE);
+        assertThat(benchmark(new PcmAudioEncoder.Factory(), pcm), is((long) pcm.length));
+        assertThat(benchmark(new MuLawAudioEncoder.Factory(), pcm), is((long) pcm.length / 2));
+        long numFlacBytes = benchmark(new FlacAudioEncoder.Factory(), pcm);
+        assertThat(numFlacBytes > 0 && numFlacBytes < pcm.length, is(true));
+    }
+
+    /**
+     * Encodes the given PCM (after a warm-up round), and checks that it is encoded faster than
+     * real time, reporting the throughput in the failure message.
+     *
+     * @return number of encoded bytes
+     */
+    private static long benchmark(AudioEncoder.Factory factory, byte[] pcm) throws IOException {
+        AudioEncoderTest.encode(factory.create(), pcm, PIECE_SIZE);
+        long startNanos = System.nanoTime();
+        AudioEncoderTest.Output output = AudioEncoderTest.encode(factory.create(), pcm, PIECE_SIZE);
+        long nanos = Math.max(1, System.nanoTime() - startNanos);
+        long speed = NUM_SECONDS * 1000000000L / nanos;
+        assertThat(factory.getContentType(SAMPLE_RATE) + ": " + speed + "x real time", speed > 1, is(true));
+        return output.mBytes.size();
+    }
+}
@@ -0,0 +1,96 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * The pure Java encoders are driven through the AudioEncoder interface, as the recorder does.
+ */
+public class AudioEncoderTest {
+
+    static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void test01() throws IOException {
+        // PCM passthrough returns the input unchanged
+        byte[] pcm = createPcm(5000);
+        Output output = encode(new PcmAudioEncoder(), pcm, 640);
+        assertThat(output.mBytes.toByteArray(), is(pcm));
+        assertThat(output.mTimestamps.get(1), is(20000L));
+    }
+
+    @Test
+    public void test02() throws IOException {
+        // mu-law produces a byte per sample, and decodes back to about the same signal
+        byte[] pcm = createPcm(5000);
+        Output output = encode(new MuLawAudioEncoder(), pcm, 640);
+        byte[] encoded = output.mBytes.toByteArray();
+        assertThat(encoded.length, is(5000));
+        for (int i = 0; i < encoded.length; i++) {
+            int sample = (short) ((pcm[2 * i] & 0xFF) | (pcm[2 * i + 1] << 8));
+            int error = Math.abs(MuLaw.decode(encoded[i]) - sample);
+            assertThat(error <= Math.abs(sample) / 16 + 8, is(true));
+        }
+    }
+
+    @Test
+    public void test03() throws IOException {
+        // FLAC starts with the stream header (as codec config), and ends with the short last block
+        byte[] pcm = createPcm(3 * FlacEncoder.DEFAULT_BLOCK_SIZE + 100);
+        Output output = encode(new FlacAudioEncoder(), pcm, 1000);
+        assertThat(output.mFlags.get(0), is(AudioEncoder.FLAG_CODEC_CONFIG));
+        assertThat(output.mSizes.get(0), is(42));
+        assertThat(output.mFlags.size(), is(1 + 4));
+        long blockUs = 1000000L * FlacEncoder.DEFAULT_BLOCK_SIZE / SAMPLE_RATE;
+        assertThat(output.mTimestamps.get(4), is(3 * blockUs));
+    }
+
+    static class Output {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        final List<Integer> mSizes = new ArrayList<>();
+        final List<Integer> mFlags = new ArrayList<>();
+        final List<Long> mTimestamps = new ArrayList<>();
+    }
+
+    /**
+     * Feeds the PCM in pieces (as read from the microphone), draining after each feed, and
+     * collects the packets. Also used by AudioEncoderBenchmarkTest.
+     */
+    static Output encode(AudioEncoder encoder, byte[] pcm, int pieceSize) throws IOException {
+        Output output = new Output();
+        AudioEncoder.PacketSink sink = (data, offset, length, presentationTimeUs, flags) -> {
+            output.mBytes.write(data, offset, length);
+            output.mSizes.add(length);
+            output.mFlags.add(flags);
+            output.mTimestamps.add(presentationTimeUs);
+        };
+        encoder.configure(SAMPLE_RATE);
+        for (int pos = 0; pos < pcm.length; ) {
+            int end = Math.min(pcm.length, pos + pieceSize);
+            while (pos < end) {
+                pos += encoder.feed(pcm, pos, end - pos, 1000000L * pos / 2 / SAMPLE_RATE);
+                encoder.drain(sink);
+            }
+        }
+        encoder.flush(sink);
+        encoder.release();
+        return output;
+    }
+
+    static byte[] createPcm(int numSamples) {
+        byte[] pcm = new byte[2 * numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            short sample = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,116 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * The chunks are encoded in parallel, so the frames must be the same as the ones that a single
+ * encoder produces in sequence.
+ */
+public class BatchTranscoderTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int CHUNK_MILLIS = 1000;
+
+    @Test
+    public void test01() throws IOException {
+        short[] signal = getSignal(7 * SAMPLE_RATE + 123);
+        byte[] flac = new BatchTranscoder(new ForkJoinPool(4)).setChunkMillis(CHUNK_MILLIS).transcodeToFlac(signal, SAMPLE_RATE);
+        ByteBuffer buffer = ByteBuffer.wrap(flac);
+
+        // STREAMINFO with the total number of samples, followed by the (last) SEEKTABLE block
+        assertThat(buffer.getInt(0), is(0x664C6143));
+        assertThat(flac[4] & 0xFF, is(0));
+        long numSamples = ((flac[21] & 0x0FL) << 32) | (buffer.getInt(22) & 0xFFFFFFFFL);
+        assertThat(numSamples, is((long) signal.length));
+        int numSeekPoints = (buffer.getInt(42) & 0xFFFFFF) / 18;
+        assertThat(flac[42] & 0xFF, is(0x83));
+        assertThat(numSeekPoints, is(7));
+        int framesStart = 42 + 4 + 18 * numSeekPoints;
+
+        // the frames are the ones of a sequential encoder
+        byte[] frames = encodeFrames(new FlacEncoder(SAMPLE_RATE), signal);
+        assertThat(Arrays.copyOfRange(flac, framesStart, flac.length), is(frames));
+
+        // every seek point points to the first frame of a chunk
+        int samplesPerChunk = 14 * FlacEncoder.DEFAULT_BLOCK_SIZE;
+        for (int i = 0; i < numSeekPoints; i++) {
+            int pos = 46 + 18 * i;
+            assertThat(buffer.getLong(pos), is((long) i * samplesPerChunk));
+            int offset = (int) buffer.getLong(pos + 8);
+            assertThat(buffer.getShort(framesStart + offset) & 0xFFFF, is(0xFFF8));
+        }
+    }
+
+    @Test
+    public void test02() throws IOException {
+        // a WAV file is transcoded into the same stream as the samples in memory
+        short[] signal = getSignal(3 * SAMPLE_RATE);
+        File dir = new File(System.getProperty("java.io.tmpdir"), "BatchTranscoderTest");
+        dir.mkdirs();
+        File wavFile = new File(dir, "test.wav");
+        try (OutputStream out = new FileOutputStream(wavFile)) {
+            out.write(getWav(signal));
+        }
+        BatchTranscoder transcoder = new BatchTranscoder().setChunkMillis(CHUNK_MILLIS);
+        List<File> flacFiles = transcoder.transcodeWavToFlac(Collections.singletonList(wavFile), dir);
+        assertThat(flacFiles.get(0).getName(), is("test.flac"));
+        assertThat(readFile(flacFiles.get(0)), is(transcoder.transcodeToFlac(signal, SAMPLE_RATE)));
+        flacFiles.get(0).delete();
+        wavFile.delete();
+        dir.delete();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    private static byte[] encodeFrames(FlacEncoder encoder, short[] signal) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] frame = new byte[encoder.getMaxFrameSize()];
+        for (int i = 0; i < signal.length; i += encoder.getBlockSize()) {
+            int size = encoder.encodeFrame(signal, i, Math.min(encoder.getBlockSize(), signal.length - i), frame, 0);
+            out.write(frame, 0, size);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] getWav(short[] signal) {
+        ByteBuffer wav = ByteBuffer.allocate(44 + 2 * signal.length).order(ByteOrder.LITTLE_ENDIAN);
+        wav.put("RIFF".getBytes()).putInt(36 + 2 * signal.length).put("WAVE".getBytes());
+        wav.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(SAMPLE_RATE).putInt(2 * SAMPLE_RATE).putShort((short) 2).putShort((short) 16);
+        wav.put("data".getBytes()).putInt(2 * signal.length);
+        wav.asShortBuffer().put(signal);
+        return wav.array();
+    }
+
+    private static short[] getSignal(int length) {
+        short[] signal = new short[length];
+        Random random = new Random(0);
+        for (int i = 0; i < length; i++) {
+            signal[i] = (short) (3000 * Math.sin(2 * Math.PI * 300 * i / SAMPLE_RATE) + random.nextGaussian() * 200);
+        }
+        return signal;
+    }
+}
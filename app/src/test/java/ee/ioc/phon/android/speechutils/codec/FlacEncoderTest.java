@@ -0,0 +1,294 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * The encoded streams are decoded by a straightforward decoder written after the format
+ * specification, which also checks the CRCs, and compared to the input bit by bit.
+ */
+public class FlacEncoderTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int LENGTH_IN_MILLIS = 60000;
+
+    @Test
+    public void test01() {
+        short[] signal = getSpeechLikeSignal(10 * SAMPLE_RATE);
+        byte[] flac = encode(new FlacEncoder(SAMPLE_RATE), signal);
+        assertThat(decode(flac), is(signal));
+        // speech compresses to less than 60% of the raw PCM
+        assertThat(flac.length, lessThan(2 * signal.length * 6 / 10));
+    }
+
+    @Test
+    public void test02() {
+        // silence, full scale noise, extreme values, and a short last frame
+        short[] signal = new short[3 * FlacEncoder.DEFAULT_BLOCK_SIZE + 100];
+        Random random = new Random(1);
+        for (int i = FlacEncoder.DEFAULT_BLOCK_SIZE; i < 2 * FlacEncoder.DEFAULT_BLOCK_SIZE; i++) {
+            signal[i] = (short) random.nextInt();
+        }
+        for (int i = 2 * FlacEncoder.DEFAULT_BLOCK_SIZE; i < signal.length; i++) {
+            signal[i] = (i / 7) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        byte[] flac = encode(new FlacEncoder(SAMPLE_RATE), signal);
+        assertThat(decode(flac), is(signal));
+    }
+
+    @Test
+    public void test03() {
+        // sample rate and block size that are stored explicitly in the frame header
+        short[] signal = getSpeechLikeSignal(3 * 11025);
+        byte[] flac = encode(new FlacEncoder(11025, 1000), signal);
+        assertThat(decode(flac), is(signal));
+    }
+
+    @Test
+    public void test04() {
+        // 60 seconds of audio, i.e. the frame numbers take more than one byte
+        short[] signal = getSpeechLikeSignal(SAMPLE_RATE * LENGTH_IN_MILLIS / 1000);
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE);
+        assertThat(signal.length / encoder.getBlockSize() > 0x7F, is(true));
+        assertThat(decode(encode(encoder, signal)), is(signal));
+    }
+
+    private static byte[] encode(FlacEncoder encoder, short[] signal) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = encoder.getStreamHeader();
+        out.write(header, 0, header.length);
+        byte[] frame = new byte[encoder.getMaxFrameSize()];
+        for (int i = 0; i < signal.length; i += encoder.getBlockSize()) {
+            int size = encoder.encodeFrame(signal, i, Math.min(encoder.getBlockSize(), signal.length - i), frame, 0);
+            out.write(frame, 0, size);
+        }
+        return out.toByteArray();
+    }
+
+    private static short[] getSpeechLikeSignal(int length) {
+        Random random = new Random(0);
+        short[] signal = new short[length];
+        for (int i = 0; i < length; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 3 * t);
+            double voice = Math.sin(2 * Math.PI * 180 * t) + 0.5 * Math.sin(2 * Math.PI * 360 * t)
+                    + 0.25 * Math.sin(2 * Math.PI * 900 * t);
+            signal[i] = (short) (6000 * envelope * voice + 30 * random.nextGaussian());
+        }
+        return signal;
+    }
+
+    private static short[] decode(byte[] flac) {
+        BitReader r = new BitReader(flac);
+        assertThat(r.read(32), is(0x664C6143));
+        boolean isLast;
+        do {
+            isLast = r.read(1) == 1;
+            int type = r.read(7);
+            int length = r.read(24);
+            assertThat(type, is(0));
+            assertThat(length, is(34));
+            r.skip(length * 8);
+        } while (!isLast);
+
+        short[] samples = new short[16];
+        int numSamples = 0;
+        long expectedFrameNumber = 0;
+        while (r.getBytePosition() < flac.length) {
+            int start = r.getBytePosition();
+            assertThat(r.read(14), is(0x3FFE));
+            assertThat(r.read(2), is(0));
+            int blockSizeCode = r.read(4);
+            int sampleRateCode = r.read(4);
+            assertThat(r.read(4), is(0));
+            assertThat(r.read(3), is(4));
+            assertThat(r.read(1), is(0));
+            assertThat(readUtf8(r), is(expectedFrameNumber++));
+            int blockSize;
+            if (blockSizeCode == 1) {
+                blockSize = 192;
+            } else if (blockSizeCode >= 2 && blockSizeCode <= 5) {
+                blockSize = 576 << (blockSizeCode - 2);
+            } else if (blockSizeCode == 6) {
+                blockSize = r.read(8) + 1;
+            } else if (blockSizeCode == 7) {
+                blockSize = r.read(16) + 1;
+            } else {
+                blockSize = 256 << (blockSizeCode - 8);
+            }
+            if (sampleRateCode == 12) {
+                r.skip(8);
+            } else if (sampleRateCode == 13 || sampleRateCode == 14) {
+                r.skip(16);
+            }
+            int crc8 = crc(flac, start, r.getBytePosition(), 8, 0x07);
+            assertThat(r.read(8), is(crc8));
+
+            if (samples.length < numSamples + blockSize) {
+                samples = Arrays.copyOf(samples, 2 * (numSamples + blockSize));
+            }
+            decodeSubframe(r, samples, numSamples, blockSize);
+            numSamples += blockSize;
+            r.alignToByte();
+            int crc16 = crc(flac, start, r.getBytePosition(), 16, 0x8005);
+            assertThat(r.read(16), is(crc16));
+        }
+        return Arrays.copyOf(samples, numSamples);
+    }
+
+    private static void decodeSubframe(BitReader r, short[] x, int off, int n) {
+        assertThat(r.read(1), is(0));
+        int type = r.read(6);
+        assertThat(r.read(1), is(0));
+        if (type == 0) {
+            short value = (short) r.readSigned(16);
+            Arrays.fill(x, off, off + n, value);
+        } else if (type == 1) {
+            for (int i = 0; i < n; i++) {
+                x[off + i] = (short) r.readSigned(16);
+            }
+        } else if (type >= 8 && type <= 12) {
+            int order = type - 8;
+            for (int i = 0; i < order; i++) {
+                x[off + i] = (short) r.readSigned(16);
+            }
+            int[] residual = readResidual(r, n, order);
+            for (int i = order; i < n; i++) {
+                int p = off + i;
+                int prediction;
+                if (order == 0) {
+                    prediction = 0;
+                } else if (order == 1) {
+                    prediction = x[p - 1];
+                } else if (order == 2) {
+                    prediction = 2 * x[p - 1] - x[p - 2];
+                } else if (order == 3) {
+                    prediction = 3 * x[p - 1] - 3 * x[p - 2] + x[p - 3];
+                } else {
+                    prediction = 4 * x[p - 1] - 6 * x[p - 2] + 4 * x[p - 3] - x[p - 4];
+                }
+                x[p] = (short) (prediction + residual[i]);
+            }
+        } else if (type >= 32) {
+            int order = type - 31;
+            for (int i = 0; i < order; i++) {
+                x[off + i] = (short) r.readSigned(16);
+            }
+            int precision = r.read(4) + 1;
+            int shift = r.readSigned(5);
+            int[] coefs = new int[order];
+            for (int i = 0; i < order; i++) {
+                coefs[i] = r.readSigned(precision);
+            }
+            int[] residual = readResidual(r, n, order);
+            for (int i = order; i < n; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefs[j] * x[off + i - j - 1];
+                }
+                x[off + i] = (short) ((sum >> shift) + residual[i]);
+            }
+        } else {
+            throw new AssertionError("Reserved subframe type: " + type);
+        }
+    }
+
+    private static int[] readResidual(BitReader r, int n, int order) {
+        assertThat(r.read(2), is(0));
+        int partitionOrder = r.read(4);
+        int[] residual = new int[n];
+        int i = order;
+        for (int p = 0; p < 1 << partitionOrder; p++) {
+            int k = r.read(4);
+            assertThat(k, lessThan(15));
+            int end = (p + 1) * (n >> partitionOrder);
+            for (; i < end; i++) {
+                int q = 0;
+                while (r.read(1) == 0) {
+                    q++;
+                }
+                int u = (q << k) | (k == 0 ? 0 : r.read(k));
+                residual[i] = (u >>> 1) ^ -(u & 1);
+            }
+        }
+        assertThat(i, is(n));
+        return residual;
+    }
+
+    private static long readUtf8(BitReader r) {
+        int first = r.read(8);
+        if ((first & 0x80) == 0) {
+            return first;
+        }
+        int numBytes = 0;
+        while ((first & (0x80 >> numBytes)) != 0) {
+            numBytes++;
+        }
+        long value = first & (0x7F >> numBytes);
+        for (int i = 1; i < numBytes; i++) {
+            int next = r.read(8);
+            assertThat(next & 0xC0, is(0x80));
+            value = (value << 6) | (next & 0x3F);
+        }
+        return value;
+    }
+
+    /**
+     * Bitwise (i.e. table-less) CRC with the given width and polynomial, and zero initial value.
+     */
+    private static int crc(byte[] data, int from, int to, int width, int poly) {
+        int mask = (1 << width) - 1;
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= (data[i] & 0xFF) << (width - 8);
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & (1 << (width - 1))) != 0 ? (crc << 1) ^ poly : crc << 1;
+                crc &= mask;
+            }
+        }
+        return crc;
+    }
+
+    private static class BitReader {
+        private final byte[] mData;
+        private long mBitPosition = 0;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        int read(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                int bit = (mData[(int) (mBitPosition >> 3)] >> (7 - (mBitPosition & 7))) & 1;
+                value = (value << 1) | bit;
+                mBitPosition++;
+            }
+            return (int) value;
+        }
+
+        int readSigned(int numBits) {
+            int value = read(numBits);
+            return (value << (32 - numBits)) >> (32 - numBits);
+        }
+
+        void skip(int numBits) {
+            mBitPosition += numBits;
+        }
+
+        void alignToByte() {
+            mBitPosition = (mBitPosition + 7) & ~7L;
+        }
+
+        int getBytePosition() {
+            return (int) (mBitPosition >> 3);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * The written streams are parsed back page by page, checking the CRCs.
+ */
+public class OggMuxerTest {
+
+    private static final int SERIAL_NUMBER = 0x12345678;
+
+    @Test
+    public void test01() throws IOException {
+        // packets of various sizes, including ones that span pages, are reassembled
+        Random random = new Random(0);
+        List<byte[]> packets = new ArrayList<>();
+        for (int size : new int[]{0, 1, 254, 255, 256, 510, 3000, 70000, 100}) {
+            byte[] packet = new byte[size];
+            random.nextBytes(packet);
+            packets.add(packet);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OggMuxer muxer = new OggMuxer(out, SERIAL_NUMBER);
+        for (int i = 0; i < packets.size(); i++) {
+            muxer.writePacket(packets.get(i), 0, packets.get(i).length, i + 1);
+        }
+        muxer.close();
+        List<Page> pages = parse(out.toByteArray());
+        assertThat(pages.get(0).mFlags & 0x02, is(0x02));
+        assertThat(pages.get(pages.size() - 1).mFlags & 0x04, is(0x04));
+        assertThat(pages.get(pages.size() - 1).mGranule, is((long) packets.size()));
+        List<byte[]> parsed = getPackets(pages);
+        assertThat(parsed.size(), is(packets.size()));
+        for (int i = 0; i < packets.size(); i++) {
+            assertThat(parsed.get(i), is(packets.get(i)));
+        }
+    }
+
+    @Test
+    public void test02() throws IOException {
+        // 20 ms Opus packets (CELT, TOC config 31) are paged according to the max page duration
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OggOpusWriter writer = new OggOpusWriter(out, 16000, SERIAL_NUMBER).setMaxPageMillis(200);
+        byte[] packet = new byte[60];
+        packet[0] = (byte) (31 << 3);
+        for (int i = 0; i < 50; i++) {
+            writer.writePacket(packet, 0, packet.length);
+        }
+        writer.close();
+        List<Page> pages = parse(out.toByteArray());
+        // OpusHead and OpusTags on pages of their own, then 1 s of audio in pages of 200 ms
+        assertThat(pages.size(), is(2 + 5));
+        assertThat(new String(pages.get(0).mBody, 0, 8, "US-ASCII"), is("OpusHead"));
+        assertThat(pages.get(0).mBody.length, is(19));
+        assertThat(new String(pages.get(1).mBody, 0, 8, "US-ASCII"), is("OpusTags"));
+        for (int i = 2; i < pages.size(); i++) {
+            assertThat(pages.get(i).mGranule, is((i - 1) * 9600L));
+        }
+        assertThat(writer.getGranulePosition(), is(48000L));
+    }
+
+    @Test
+    public void test03() throws IOException {
+        // the header is taken from the codec specific data of the Android encoders
+        byte[] head = OggOpusWriter.createHeader(1, 120, 16000);
+        ByteArrayOutputStream csd = new ByteArrayOutputStream();
+        csd.write("AOPUSHDR".getBytes("US-ASCII"));
+        csd.write(new byte[]{(byte) head.length, 0, 0, 0, 0, 0, 0, 0});
+        csd.write(head);
+        csd.write("AOPUSDLY".getBytes("US-ASCII"));
+        csd.write(new byte[]{8, 0, 0, 0, 0, 0, 0, 0});
+        csd.write(new byte[8]);
+        byte[] config = csd.toByteArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OggOpusWriter writer = new OggOpusWriter(out, 16000, SERIAL_NUMBER);
+        writer.writeConfig(config, 0, config.length);
+        writer.close();
+        List<Page> pages = parse(out.toByteArray());
+        assertThat(pages.get(0).mBody, is(head));
+    }
+
+    @Test
+    public void test04() throws IOException {
+        // AMR-WB frames are written after the magic, and their types are checked
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AmrWbWriter writer = new AmrWbWriter(out);
+        byte[] frames = new byte[2 * 61];
+        frames[0] = (byte) (8 << 3);
+        frames[61] = (byte) (8 << 3);
+        writer.writePacket(frames, 0, frames.length);
+        assertThat(writer.getNumFrames(), is(2L));
+        assertThat(out.size(), is(9 + frames.length));
+        byte[] invalid = new byte[10];
+        invalid[0] = (byte) (10 << 3);
+        boolean isThrown = false;
+        try {
+            writer.writePacket(invalid, 0, invalid.length);
+        } catch (IOException e) {
+            isThrown = true;
+        }
+        assertThat(isThrown, is(true));
+        assertThat(out.size(), lessThan(9 + frames.length + 1));
+    }
+
+    private static class Page {
+        private int mFlags;
+        private long mGranule;
+        private int[] mLacing;
+        private byte[] mBody;
+    }
+
+    private static List<Page> parse(byte[] data) throws IOException {
+        List<Page> pages = new ArrayList<>();
+        int pos = 0;
+        int sequenceNumber = 0;
+        while (pos < data.length) {
+            assertThat(new String(data, pos, 4, "US-ASCII"), is("OggS"));
+            assertThat((int) data[pos + 4], is(0));
+            Page page = new Page();
+            page.mFlags = data[pos + 5];
+            page.mGranule = getLe(data, pos + 6, 8);
+            assertThat((int) getLe(data, pos + 14, 4), is(SERIAL_NUMBER));
+            assertThat((int) getLe(data, pos + 18, 4), is(sequenceNumber++));
+            int crc = (int) getLe(data, pos + 22, 4);
+            int numSegments = data[pos + 26] & 0xFF;
+            page.mLacing = new int[numSegments];
+            int bodyLength = 0;
+            for (int i = 0; i < numSegments; i++) {
+                page.mLacing[i] = data[pos + 27 + i] & 0xFF;
+                bodyLength += page.mLacing[i];
+            }
+            int headerLength = 27 + numSegments;
+            page.mBody = Arrays.copyOfRange(data, pos + headerLength, pos + headerLength + bodyLength);
+            byte[] copy = Arrays.copyOfRange(data, pos, pos + headerLength + bodyLength);
+            Arrays.fill(copy, 22, 26, (byte) 0);
+            assertThat(crc(copy), is(crc));
+            pages.add(page);
+            pos += headerLength + bodyLength;
+        }
+        return pages;
+    }
+
+    private static List<byte[]> getPackets(List<Page> pages) {
+        List<byte[]> packets = new ArrayList<>();
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        boolean isContinued = false;
+        for (Page page : pages) {
+            assertThat((page.mFlags & 0x01) != 0, is(isContinued));
+            int pos = 0;
+            for (int lacing : page.mLacing) {
+                packet.write(page.mBody, pos, lacing);
+                pos += lacing;
+                if (lacing < 255) {
+                    packets.add(packet.toByteArray());
+                    packet.reset();
+                }
+            }
+            isContinued = page.mLacing.length > 0 && page.mLacing[page.mLacing.length - 1] == 255;
+        }
+        return packets;
+    }
+
+    private static long getLe(byte[] data, int offset, int numBytes) {
+        long value = 0;
+        for (int i = numBytes - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Bitwise CRC-32 with the polynomial 0x04C11DB7, no reflection, and zero initial value.
+     */
+    private static int crc(byte[] data) {
+        int crc = 0;
+        for (byte b : data) {
+            crc ^= (b & 0xFF) << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+        }
+        return crc;
+    }
+}
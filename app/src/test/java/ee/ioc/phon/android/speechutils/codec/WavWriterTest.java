@@ -0,0 +1,118 @@
+package ee.ioc.phon.android.speechutils.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WavWriterTest {
+
+    @Test
+    public void test01() throws IOException {
+        // stereo 24-bit: the byte rate and the block align depend on the channels and the resolution
+        ByteBuffer header = ByteBuffer.wrap(WavWriter.getHeader(600, 48000, 2, 24)).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(header.capacity(), is(WavWriter.RIFF_HEADER_SIZE));
+        assertThat(header.getInt(4), is(36 + 600));
+        assertThat(header.getShort(22), is((short) 2));
+        assertThat(header.getInt(28), is(48000 * 6));
+        assertThat(header.getShort(32), is((short) 6));
+        assertThat(header.getShort(34), is((short) 24));
+        assertThat(header.getInt(40), is(600));
+
+        // data that does not fit into RIFF gets an RF64 header with the sizes in ds64
+        long size = 5000000000L;
+        header = ByteBuffer.wrap(WavWriter.getHeader(size, 16000, 1, 16)).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(header.capacity(), is(WavWriter.RF64_HEADER_SIZE));
+        assertThat(new String(header.array(), 0, 4, "US-ASCII"), is("RF64"));
+        assertThat(header.getInt(4), is(-1));
+        assertThat(new String(header.array(), 12, 4, "US-ASCII"), is("ds64"));
+        assertThat(header.getLong(20), is(72 + size));
+        assertThat(header.getLong(28), is(size));
+        assertThat(header.getLong(36), is(size / 2));
+        assertThat(header.getInt(76), is(-1));
+    }
+
+    @Test
+    public void test02() throws IOException {
+        // the header and the PCM of known size are streamed through a channel that takes a few bytes at a time
+        SlowChannel channel = new SlowChannel();
+        WavWriter writer = new WavWriter(channel, 16000, 1, 16, 1000);
+        byte[] pcm = new byte[1000];
+        Arrays.fill(pcm, (byte) 7);
+        writer.write(pcm, 0, 600);
+        writer.write(pcm, 600, 400);
+        writer.close();
+        byte[] wav = channel.mOut.toByteArray();
+        assertThat(Arrays.copyOf(wav, 44), is(WavWriter.getHeader(1000, 16000, 1, 16)));
+        assertThat(Arrays.copyOfRange(wav, 44, wav.length), is(pcm));
+    }
+
+    @Test
+    public void test03() throws IOException {
+        // a file of unknown size is updated on close (the reserved ds64 space stays as JUNK)
+        File file = File.createTempFile("WavWriterTest", ".wav");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        WavWriter writer = new WavWriter(raf.getChannel(), 16000, 1, 16);
+        writer.write(new byte[501], 0, 501);
+        writer.close();
+        raf.close();
+        raf = new RandomAccessFile(file, "r");
+        byte[] wav = new byte[(int) raf.length()];
+        raf.readFully(wav);
+        raf.close();
+        file.delete();
+        ByteBuffer buffer = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(wav.length, is(80 + 502));
+        assertThat(new String(wav, 0, 4, "US-ASCII"), is("RIFF"));
+        assertThat(buffer.getInt(4), is(wav.length - 8));
+        assertThat(new String(wav, 12, 4, "US-ASCII"), is("JUNK"));
+        assertThat(new String(wav, 72, 4, "US-ASCII"), is("data"));
+        assertThat(buffer.getInt(76), is(501));
+    }
+
+    private static class SlowChannel implements GatheringByteChannel {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                if (srcs[i].hasRemaining()) {
+                    return write(srcs[i]);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = Math.min(src.remaining(), 7);
+            for (int i = 0; i < length; i++) {
+                mOut.write(src.get());
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}